@@ -21,15 +21,18 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
-import com.android.traceur.TraceUtils.Streamer;
+import perfetto.protos.TraceConfigOuterClass.TraceConfig.TriggerConfig;
+
+import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState;
 
 /**
  * Utility functions for calling atrace
@@ -55,14 +58,23 @@ public class AtraceUtils implements TraceUtils.TraceEngine {
     /* Note: attachToBugreport, longTrace, maxLongTrace* parameters are ignored in atrace mode. */
     public boolean traceStart(Collection<String> tags, int bufferSizeKb, boolean apps,
             boolean attachToBugreport, boolean longTrace, int maxLongTraceSizeMb,
-            int maxLongTraceDurationMinutes) {
-        String appParameter = apps ? "-a '*' " : "";
-        String cmd = "atrace --async_start -c -b " + bufferSizeKb + " "
-            + appParameter + TextUtils.join(" ", tags);
+            int maxLongTraceDurationMinutes, TriggerConfig triggerConfig) {
+        if (triggerConfig != null) {
+            Log.e(TAG, "atrace does not support trigger-driven tracing.");
+            return false;
+        }
 
-        Log.v(TAG, "Starting async atrace: " + cmd);
+        List<String> cmd = new ArrayList<>(Arrays.asList(
+            "atrace", "--async_start", "-c", "-b", Integer.toString(bufferSizeKb)));
+        if (apps) {
+            cmd.add("-a");
+            cmd.add("*");
+        }
+        cmd.addAll(tags);
+
+        Log.v(TAG, "Starting async atrace: " + TextUtils.join(" ", cmd));
         try {
-            Process atrace = TraceUtils.exec(cmd);
+            Process atrace = TraceUtils.exec(cmd.toArray(new String[0]));
             if (atrace.waitFor() != 0) {
                 Log.e(TAG, "atraceStart failed with: " + atrace.exitValue());
                 return false;
@@ -74,11 +86,13 @@ public class AtraceUtils implements TraceUtils.TraceEngine {
     }
 
     public void traceStop() {
-        String cmd = "atrace --async_stop > /dev/null";
+        String[] cmd = {"atrace", "--async_stop"};
 
-        Log.v(TAG, "Stopping async atrace: " + cmd);
+        Log.v(TAG, "Stopping async atrace: " + String.join(" ", cmd));
         try {
-            Process atrace = TraceUtils.exec(cmd);
+            // The trace is written to stdout, which isn't needed here.
+            Process atrace = ProcessLauncher.exec(cmd, null,
+                    ProcessBuilder.Redirect.to(new File("/dev/null")));
 
             if (atrace.waitFor() != 0) {
                 Log.e(TAG, "atraceStop failed with: " + atrace.exitValue());
@@ -89,9 +103,18 @@ public class AtraceUtils implements TraceUtils.TraceEngine {
     }
 
     public boolean traceDump(File outFile) {
-        String cmd = "atrace --async_stop -z -c -o " + outFile;
+        return atraceDump("--async_stop", outFile);
+    }
+
+    /* Dumps the current contents of the ring buffer without stopping tracing. */
+    public boolean traceSnapshot(File outFile) {
+        return atraceDump("--async_dump", outFile);
+    }
+
+    private boolean atraceDump(String mode, File outFile) {
+        String[] cmd = {"atrace", mode, "-z", "-c", "-o", outFile.getPath()};
 
-        Log.v(TAG, "Dumping async atrace: " + cmd);
+        Log.v(TAG, "Dumping async atrace: " + String.join(" ", cmd));
         try {
             Process atrace = TraceUtils.exec(cmd);
 
@@ -100,10 +123,8 @@ public class AtraceUtils implements TraceUtils.TraceEngine {
                 return false;
             }
 
-            Process ps = TraceUtils.exec("ps -AT", null, false);
-
-            new Streamer("atraceDump:ps:stdout",
-                    ps.getInputStream(), new FileOutputStream(outFile, true /* append */));
+            Process ps = ProcessLauncher.exec(new String[] {"ps", "-AT"}, null,
+                    ProcessBuilder.Redirect.appendTo(outFile));
 
             if (ps.waitFor() != 0) {
                 Log.e(TAG, "atraceDump:ps failed with: " + ps.exitValue());
@@ -119,6 +140,12 @@ public class AtraceUtils implements TraceUtils.TraceEngine {
         return true;
     }
 
+    /* Note: atrace has no service state of its own, but its categories are still listed by
+     * traced. */
+    public TracingServiceState queryServiceState() {
+        return PerfettoUtils.perfettoQueryServiceState();
+    }
+
     public boolean isTracingOn() {
         boolean userInitiatedTracingFlag =
             TraceProperties.user_initiated().orElse(false);
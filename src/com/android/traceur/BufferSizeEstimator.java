@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * Picks the ftrace buffer size for the "automatic" buffer size setting.
+ *
+ * After each session, the statistics in the saved trace give how much data the session
+ * produced, including what was overwritten or lost. From that and the session's length, an
+ * event rate is kept for each set of categories. The next session with the same categories
+ * gets a buffer that holds a target window of trace at that rate: the last seconds before the
+ * trace is stopped for a short trace, which stays in the ring buffer until then, or a few file
+ * write periods for a long trace, which only needs to hold what traced hasn't written yet.
+ */
+public class BufferSizeEstimator {
+
+    static final String TAG = "Traceur";
+
+    // This is target_buffer: 0 in PerfettoUtils.buildTraceConfig(), which holds ftrace data.
+    private static final int FTRACE_BUFFER = 0;
+
+    private static final String PREFS_NAME = "buffer_size_estimates";
+    private static final String KEY_SESSION_CATEGORIES = "session_categories";
+    private static final String KEY_SESSION_START_MS = "session_start_ms";
+    private static final String RATE_SUFFIX = ":bytes_per_second";
+
+    // Weight of the latest session in the running estimates.
+    private static final float SMOOTHING = 0.5f;
+    // How much trace the buffer should hold. Long traces are written to the file every second,
+    // and the rest is slack for when writing falls behind.
+    private static final long RING_BUFFER_WINDOW_MS = 30000;
+    private static final long LONG_TRACE_WINDOW_MS = 10000;
+    // Extra space on top of the estimate, so that a slightly busier session still fits.
+    private static final float HEADROOM = 1.25f;
+    private static final int MIN_BUFFER_SIZE_KB = 4096;
+    private static final int MAX_BUFFER_SIZE_KB = 65536;
+    private static final int BUFFER_SIZE_GRANULARITY_KB = 1024;
+
+    /*
+     * Returns the per-CPU buffer size to use for the given categories, or defaultSizeKb if no
+     * session with these categories has been measured yet.
+     */
+    public static int getBufferSizeKb(Context context, Collection<String> tags, boolean apps,
+            boolean longTrace, int defaultSizeKb) {
+        float bytesPerSecond = getPrefs(context).getFloat(getKey(tags, apps) + RATE_SUFFIX, -1);
+        if (bytesPerSecond < 0) {
+            return defaultSizeKb;
+        }
+
+        long windowMs = longTrace ? LONG_TRACE_WINDOW_MS : RING_BUFFER_WINDOW_MS;
+        int numCpus = Runtime.getRuntime().availableProcessors();
+        double totalKb = bytesPerSecond * (windowMs / 1000.0) * HEADROOM / 1024;
+        int sizeKb = (int) Math.ceil(totalKb / numCpus / BUFFER_SIZE_GRANULARITY_KB)
+                * BUFFER_SIZE_GRANULARITY_KB;
+        return Math.max(MIN_BUFFER_SIZE_KB, Math.min(MAX_BUFFER_SIZE_KB, sizeKb));
+    }
+
+    /*
+     * Remembers the categories and start time of a new session, to be matched with its stats
+     * once it is saved.
+     */
+    public static void onSessionStarted(Context context, Collection<String> tags,
+            boolean apps) {
+        getPrefs(context).edit()
+            .putString(KEY_SESSION_CATEGORIES, getKey(tags, apps))
+            .putLong(KEY_SESSION_START_MS, SystemClock.elapsedRealtime())
+            .apply();
+    }
+
+    /*
+     * Updates the estimate for the categories of the session that just ended, from the stats
+     * of its saved trace.
+     */
+    public static void onSessionSaved(Context context, TraceStatsVisitor stats) {
+        SharedPreferences prefs = getPrefs(context);
+        String key = prefs.getString(KEY_SESSION_CATEGORIES, null);
+        long startMs = prefs.getLong(KEY_SESSION_START_MS, -1);
+        prefs.edit().remove(KEY_SESSION_CATEGORIES).remove(KEY_SESSION_START_MS).apply();
+
+        long durationMs = SystemClock.elapsedRealtime() - startMs;
+        if (key == null || startMs < 0 || durationMs <= 0 || !stats.hasStats()) {
+            return;
+        }
+
+        long producedBytes = stats.getProducedBytes(FTRACE_BUFFER);
+        float bytesPerSecond = producedBytes * 1000f / durationMs;
+        Log.v(TAG, "Session produced " + producedBytes + " bytes in " + durationMs + " ms ("
+                + (long) bytesPerSecond + " B/s), overrun: "
+                + stats.hasOverrun(FTRACE_BUFFER));
+
+        float oldRate = prefs.getFloat(key + RATE_SUFFIX, -1);
+        if (oldRate >= 0) {
+            bytesPerSecond = SMOOTHING * bytesPerSecond + (1 - SMOOTHING) * oldRate;
+        }
+        prefs.edit().putFloat(key + RATE_SUFFIX, bytesPerSecond).apply();
+    }
+
+    private static String getKey(Collection<String> tags, boolean apps) {
+        // Sorted, so that the key doesn't depend on the order of the tags.
+        return String.join(",", new TreeSet<>(tags)) + (apps ? "+apps" : "");
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
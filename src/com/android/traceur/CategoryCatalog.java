@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import perfetto.protos.DataSourceDescriptorOuterClass.DataSourceDescriptor;
+import perfetto.protos.FtraceDescriptorOuterClass.FtraceDescriptor.AtraceCategory;
+import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState;
+import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState.DataSource;
+
+/**
+ * Caches the atrace categories advertised by traced, so that listing them doesn't need to query
+ * the tracing service every time.
+ *
+ * The catalog is kept in memory and persisted to disk, keyed by the build fingerprint and the
+ * categories of the linux.ftrace data source. Other data sources, such as the track_event
+ * producers of apps, come and go without changing it. After a process start the persisted
+ * catalog is served right away and re-validated against traced in the background.
+ */
+public class CategoryCatalog {
+
+    static final String TAG = "Traceur";
+
+    private static final String CACHE_FILE = "category_catalog";
+    private static final int CACHE_VERSION = 2;
+
+    private static final ExecutorService REFRESH_EXECUTOR = Executors.newSingleThreadExecutor();
+    private static final AtomicBoolean sRefreshPending = new AtomicBoolean();
+
+    private static volatile Catalog sCatalog;
+
+    /**
+     * Returns an immutable, sorted view of the available categories and their descriptions.
+     *
+     * This is called from the UI thread, so it never queries traced itself. Until there is a
+     * catalog, it returns the default tags without descriptions, and the UI is asked to
+     * refresh once traced has answered.
+     */
+    public static SortedMap<String, String> getCategories(Context context) {
+        Catalog catalog = sCatalog;
+        if (catalog != null) {
+            return catalog.categories;
+        }
+
+        synchronized (CategoryCatalog.class) {
+            catalog = sCatalog;
+            if (catalog == null) {
+                // If nothing usable is on disk, e.g. on the first run after an OTA, each call
+                // looks again until traced has answered.
+                catalog = load(context);
+                sCatalog = catalog;
+                refreshAsync(context);
+            }
+        }
+        return catalog != null ? catalog.categories : getFallbackCategories();
+    }
+
+    /**
+     * Re-queries traced in the background. If the categories changed, the catalog is replaced
+     * and the UI is asked to refresh.
+     */
+    public static void refreshAsync(Context context) {
+        if (!sRefreshPending.compareAndSet(false, true)) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        REFRESH_EXECUTOR.execute(() -> {
+            sRefreshPending.set(false);
+            Catalog previous = sCatalog;
+            try {
+                refresh(appContext);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to refresh the category catalog", e);
+                return;
+            }
+            Catalog current = sCatalog;
+            if (current != null && (previous == null || !previous.key().equals(current.key()))) {
+                appContext.sendBroadcast(new Intent(MainFragment.ACTION_REFRESH_TAGS));
+            }
+        });
+    }
+
+    private static SortedMap<String, String> getFallbackCategories() {
+        TreeMap<String, String> categories = new TreeMap<>();
+        for (String tag : Receiver.getDefaultTagList()) {
+            categories.put(tag, "");
+        }
+        return Collections.unmodifiableSortedMap(categories);
+    }
+
+    private static void refresh(Context context) {
+        update(context, TraceUtils.queryServiceState());
+    }
+
+    /**
+     * Updates the catalog from a service state queried by the caller.
+     */
+    static synchronized void update(Context context, TracingServiceState state) {
+        Catalog previous = sCatalog;
+        if (state == null) {
+            // Keep serving what we have, if anything, but don't cache a failed query.
+            return;
+        }
+
+        Catalog catalog = Catalog.from(state);
+        if (previous == null || !previous.key().equals(catalog.key())) {
+            sCatalog = catalog;
+            save(context, catalog);
+        }
+    }
+
+    private static Catalog load(Context context) {
+        AtomicFile file = getCacheFile(context);
+        try (DataInputStream in = new DataInputStream(file.openRead())) {
+            if (in.readInt() != CACHE_VERSION) {
+                return null;
+            }
+            String fingerprint = in.readUTF();
+            if (!Build.FINGERPRINT.equals(fingerprint)) {
+                Log.i(TAG, "Build changed, discarding the category catalog.");
+                return null;
+            }
+            Catalog catalog = new Catalog(fingerprint);
+            TreeMap<String, String> categories = new TreeMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                categories.put(in.readUTF(), in.readUTF());
+            }
+            catalog.categories = Collections.unmodifiableSortedMap(categories);
+            return catalog;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the category catalog", e);
+            return null;
+        }
+    }
+
+    private static void save(Context context, Catalog catalog) {
+        AtomicFile file = getCacheFile(context);
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(CACHE_VERSION);
+            data.writeUTF(catalog.fingerprint);
+            data.writeInt(catalog.categories.size());
+            for (Map.Entry<String, String> category : catalog.categories.entrySet()) {
+                data.writeUTF(category.getKey());
+                data.writeUTF(category.getValue());
+            }
+            data.flush();
+            file.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write the category catalog", e);
+            file.failWrite(out);
+        }
+    }
+
+    private static AtomicFile getCacheFile(Context context) {
+        return new AtomicFile(new File(context.getNoBackupFilesDir(), CACHE_FILE));
+    }
+
+    private static class Catalog {
+        final String fingerprint;
+        SortedMap<String, String> categories;
+
+        Catalog(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        static Catalog from(TracingServiceState state) {
+            Catalog catalog = new Catalog(Build.FINGERPRINT);
+            TreeMap<String, String> categories = new TreeMap<>();
+            for (DataSource dataSource : state.getDataSourcesList()) {
+                DataSourceDescriptor descriptor = dataSource.getDsDescriptor();
+                if (descriptor.getName().equals("linux.ftrace")) {
+                    for (AtraceCategory category :
+                            descriptor.getFtraceDescriptor().getAtraceCategoriesList()) {
+                        categories.put(category.getName(), category.getDescription());
+                    }
+                }
+            }
+            catalog.categories = Collections.unmodifiableSortedMap(categories);
+            return catalog;
+        }
+
+        String key() {
+            return fingerprint + categories;
+        }
+    }
+}
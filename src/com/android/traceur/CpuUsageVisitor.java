@@ -0,0 +1,663 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+import perfetto.protos.FtraceEventBundleOuterClass.FtraceEventBundle;
+import perfetto.protos.FtraceEventBundleOuterClass.FtraceEventBundle.CompactSched;
+import perfetto.protos.FtraceEventOuterClass.FtraceEvent;
+import perfetto.protos.ProcessTreeOuterClass.ProcessTree;
+import perfetto.protos.Sched.SchedSwitchFtraceEvent;
+import perfetto.protos.Sched.SchedWakingFtraceEvent;
+import perfetto.protos.TracePacketOuterClass.TracePacket;
+
+/**
+ * Works out which processes and threads used the CPU during a trace, and which threads waited
+ * longest to run, from the scheduler events in the trace.
+ *
+ * Both sched_switch events and compact_sched bundles are decoded, in place and without
+ * building protos, and process_tree packets name the processes. The state kept is per CPU and
+ * per thread, never per event, and the number of threads is capped, so memory stays bounded
+ * however long the trace is.
+ *
+ * A thread waits to run from when it is woken, or preempted, until it is switched in. Events
+ * of different CPUs are in separate bundles, which are not strictly in time order, so waits
+ * across CPUs are approximate.
+ *
+ * The result is kept as a JSON sidecar next to the trace's metadata.
+ */
+public class CpuUsageVisitor implements TracePacketReader.PacketVisitor {
+
+    static final String TAG = "Traceur";
+
+    private static final String SUFFIX = ".cpu.json";
+    private static final int VERSION = 1;
+
+    // How many processes and threads the sidecar lists per ranking.
+    public static final int TOP_COUNT = 10;
+
+    // Threads beyond this many are left out.
+    private static final int MAX_THREADS = 1 << 16;
+
+    // The prev_state of a thread that was preempted, rather than blocked.
+    private static final long TASK_RUNNING = 0;
+
+    public static class Usage {
+        public final int id;
+        public String name;
+        public long cpuNs;
+        public long waitNs;
+        public long maxWaitNs;
+
+        Usage(int id) {
+            this.id = id;
+        }
+    }
+
+    private static class ThreadState extends Usage {
+        // The thread group, i.e. process, or 0 if unknown.
+        int pid;
+        // When the thread last became runnable, or -1 if it isn't.
+        long runnableSinceNs = -1;
+
+        ThreadState(int tid) {
+            super(tid);
+        }
+    }
+
+    // A growable array of longs, reused across bundles.
+    private static class LongArray {
+        long[] values = new long[256];
+        int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    private final SparseArray<ThreadState> mThreads = new SparseArray<>();
+    private final SparseArray<String> mProcessNames = new SparseArray<>();
+
+    // The thread running on each CPU, and since when.
+    private int[] mCpuTids = new int[16];
+    private long[] mCpuSinceNs = new long[16];
+
+    private long mFirstNs = Long.MAX_VALUE;
+    private long mLastNs = Long.MIN_VALUE;
+
+    // The columns of the compact_sched bundle being decoded.
+    private final LongArray mSwitchTimestamps = new LongArray();
+    private final LongArray mSwitchPrevStates = new LongArray();
+    private final LongArray mSwitchNextPids = new LongArray();
+    private final LongArray mSwitchNextComms = new LongArray();
+    private final LongArray mWakingTimestamps = new LongArray();
+    private final LongArray mWakingPids = new LongArray();
+    private final LongArray mWakingComms = new LongArray();
+    private final List<String> mInternTable = new ArrayList<>();
+
+    @Override
+    public void visitPacket(long offset, int size, byte[] packet, int length)
+            throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(packet, 0, length);
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case TracePacket.FTRACE_EVENTS_FIELD_NUMBER: {
+                    int limit = in.pushLimit(in.readRawVarint32());
+                    visitBundle(in);
+                    in.popLimit(limit);
+                    break;
+                }
+                case TracePacket.PROCESS_TREE_FIELD_NUMBER: {
+                    int limit = in.pushLimit(in.readRawVarint32());
+                    visitProcessTree(in);
+                    in.popLimit(limit);
+                    break;
+                }
+                default:
+                    in.skipField(tag);
+                    break;
+            }
+        }
+    }
+
+    /* Whether the trace had any scheduler events. */
+    public boolean hasUsage() {
+        return mFirstNs <= mLastNs;
+    }
+
+    /* How long the scheduler events cover, or -1 if there are none. */
+    public long getDurationMs() {
+        return hasUsage() ? (mLastNs - mFirstNs) / 1000000 : -1;
+    }
+
+    /* The processes that used the most CPU time, most first. */
+    public List<Usage> getTopProcesses(int count) {
+        SparseArray<Usage> processes = new SparseArray<>();
+        for (int i = 0; i < mThreads.size(); i++) {
+            ThreadState thread = mThreads.valueAt(i);
+            int pid = getPid(thread);
+            Usage process = processes.get(pid);
+            if (process == null) {
+                process = new Usage(pid);
+                process.name = getProcessName(pid);
+                processes.put(pid, process);
+            }
+            process.cpuNs += thread.cpuNs;
+            process.waitNs += thread.waitNs;
+            process.maxWaitNs = Math.max(process.maxWaitNs, thread.maxWaitNs);
+        }
+
+        List<Usage> result = new ArrayList<>();
+        for (int i = 0; i < processes.size(); i++) {
+            result.add(processes.valueAt(i));
+        }
+        return top(result, usage -> usage.cpuNs, count);
+    }
+
+    /* The threads that used the most CPU time, most first. */
+    public List<Usage> getTopThreads(int count) {
+        return top(getThreads(), usage -> usage.cpuNs, count);
+    }
+
+    /* The threads that spent the most time runnable but not running, most first. */
+    public List<Usage> getTopWaits(int count) {
+        return top(getThreads(), usage -> usage.waitNs, count);
+    }
+
+    private List<Usage> getThreads() {
+        List<Usage> threads = new ArrayList<>(mThreads.size());
+        for (int i = 0; i < mThreads.size(); i++) {
+            threads.add(mThreads.valueAt(i));
+        }
+        return threads;
+    }
+
+    // The count usages with the largest non-zero keys, largest first.
+    private static List<Usage> top(List<Usage> usages, ToLongFunction<Usage> key, int count) {
+        usages.sort((a, b) -> Long.compare(key.applyAsLong(b), key.applyAsLong(a)));
+        List<Usage> result = new ArrayList<>();
+        for (Usage usage : usages) {
+            if (result.size() == count || key.applyAsLong(usage) <= 0) {
+                break;
+            }
+            result.add(usage);
+        }
+        return result;
+    }
+
+    // Threads missing from the process tree are counted as processes of their own.
+    private static int getPid(ThreadState thread) {
+        return thread.pid != 0 ? thread.pid : thread.id;
+    }
+
+    private String getProcessName(int pid) {
+        String name = mProcessNames.get(pid);
+        if (name == null) {
+            // The main thread is named after the process, if not the whole command line.
+            ThreadState main = mThreads.get(pid);
+            name = main != null ? main.name : null;
+        }
+        return name != null ? name : "pid " + pid;
+    }
+
+    /*
+     * Decodes the scheduler events of a bundle. traced writes the CPU of a bundle before its
+     * events, and the timestamp of an event before its payload, which this relies on.
+     */
+    private void visitBundle(CodedInputStream in) throws IOException {
+        int cpu = 0;
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case FtraceEventBundle.CPU_FIELD_NUMBER:
+                    cpu = in.readUInt32();
+                    break;
+                case FtraceEventBundle.EVENT_FIELD_NUMBER: {
+                    int limit = in.pushLimit(in.readRawVarint32());
+                    visitEvent(in, cpu);
+                    in.popLimit(limit);
+                    break;
+                }
+                case FtraceEventBundle.COMPACT_SCHED_FIELD_NUMBER: {
+                    int limit = in.pushLimit(in.readRawVarint32());
+                    visitCompactSched(in, cpu);
+                    in.popLimit(limit);
+                    break;
+                }
+                default:
+                    in.skipField(tag);
+                    break;
+            }
+        }
+    }
+
+    private void visitEvent(CodedInputStream in, int cpu) throws IOException {
+        long timestampNs = 0;
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case FtraceEvent.TIMESTAMP_FIELD_NUMBER:
+                    timestampNs = in.readUInt64();
+                    break;
+                case FtraceEvent.SCHED_SWITCH_FIELD_NUMBER: {
+                    int limit = in.pushLimit(in.readRawVarint32());
+                    visitSchedSwitch(in, cpu, timestampNs);
+                    in.popLimit(limit);
+                    break;
+                }
+                case FtraceEvent.SCHED_WAKING_FIELD_NUMBER:
+                case FtraceEvent.SCHED_WAKEUP_FIELD_NUMBER: {
+                    int limit = in.pushLimit(in.readRawVarint32());
+                    visitSchedWaking(in, timestampNs);
+                    in.popLimit(limit);
+                    break;
+                }
+                default:
+                    in.skipField(tag);
+                    break;
+            }
+        }
+    }
+
+    private void visitSchedSwitch(CodedInputStream in, int cpu, long timestampNs)
+            throws IOException {
+        int prevTid = -1;
+        long prevState = TASK_RUNNING;
+        int nextTid = 0;
+        String nextComm = null;
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case SchedSwitchFtraceEvent.PREV_PID_FIELD_NUMBER:
+                    prevTid = in.readInt32();
+                    break;
+                case SchedSwitchFtraceEvent.PREV_STATE_FIELD_NUMBER:
+                    prevState = in.readInt64();
+                    break;
+                case SchedSwitchFtraceEvent.NEXT_PID_FIELD_NUMBER:
+                    nextTid = in.readInt32();
+                    break;
+                case SchedSwitchFtraceEvent.NEXT_COMM_FIELD_NUMBER:
+                    nextComm = in.readString();
+                    break;
+                default:
+                    in.skipField(tag);
+                    break;
+            }
+        }
+        onSwitch(cpu, timestampNs, prevTid, prevState, nextTid, nextComm);
+    }
+
+    // sched_waking and sched_wakeup have the same layout.
+    private void visitSchedWaking(CodedInputStream in, long timestampNs) throws IOException {
+        int tid = 0;
+        String comm = null;
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case SchedWakingFtraceEvent.PID_FIELD_NUMBER:
+                    tid = in.readInt32();
+                    break;
+                case SchedWakingFtraceEvent.COMM_FIELD_NUMBER:
+                    comm = in.readString();
+                    break;
+                default:
+                    in.skipField(tag);
+                    break;
+            }
+        }
+        onWaking(timestampNs, tid, comm);
+    }
+
+    /*
+     * Decodes a compact_sched bundle, which holds the switch and waking events of a CPU as
+     * columns, with delta-encoded timestamps and interned comms. The two kinds of events are
+     * merged back into time order.
+     */
+    private void visitCompactSched(CodedInputStream in, int cpu) throws IOException {
+        mSwitchTimestamps.size = 0;
+        mSwitchPrevStates.size = 0;
+        mSwitchNextPids.size = 0;
+        mSwitchNextComms.size = 0;
+        mWakingTimestamps.size = 0;
+        mWakingPids.size = 0;
+        mWakingComms.size = 0;
+        mInternTable.clear();
+
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case CompactSched.INTERN_TABLE_FIELD_NUMBER:
+                    mInternTable.add(in.readString());
+                    break;
+                case CompactSched.SWITCH_TIMESTAMP_FIELD_NUMBER:
+                    readPacked(in, tag, mSwitchTimestamps);
+                    break;
+                case CompactSched.SWITCH_PREV_STATE_FIELD_NUMBER:
+                    readPacked(in, tag, mSwitchPrevStates);
+                    break;
+                case CompactSched.SWITCH_NEXT_PID_FIELD_NUMBER:
+                    readPacked(in, tag, mSwitchNextPids);
+                    break;
+                case CompactSched.SWITCH_NEXT_COMM_INDEX_FIELD_NUMBER:
+                    readPacked(in, tag, mSwitchNextComms);
+                    break;
+                case CompactSched.WAKING_TIMESTAMP_FIELD_NUMBER:
+                    readPacked(in, tag, mWakingTimestamps);
+                    break;
+                case CompactSched.WAKING_PID_FIELD_NUMBER:
+                    readPacked(in, tag, mWakingPids);
+                    break;
+                case CompactSched.WAKING_COMM_INDEX_FIELD_NUMBER:
+                    readPacked(in, tag, mWakingComms);
+                    break;
+                default:
+                    in.skipField(tag);
+                    break;
+            }
+        }
+
+        int switches = Math.min(mSwitchTimestamps.size,
+                Math.min(mSwitchNextPids.size, mSwitchPrevStates.size));
+        int wakings = Math.min(mWakingTimestamps.size, mWakingPids.size);
+        int s = 0;
+        int w = 0;
+        long switchNs = switches > 0 ? mSwitchTimestamps.values[0] : 0;
+        long wakingNs = wakings > 0 ? mWakingTimestamps.values[0] : 0;
+        while (s < switches || w < wakings) {
+            if (w == wakings || (s < switches && switchNs <= wakingNs)) {
+                onSwitch(cpu, switchNs, -1, mSwitchPrevStates.values[s],
+                        (int) mSwitchNextPids.values[s], intern(mSwitchNextComms, s));
+                if (++s < switches) {
+                    switchNs += mSwitchTimestamps.values[s];
+                }
+            } else {
+                onWaking(wakingNs, (int) mWakingPids.values[w], intern(mWakingComms, w));
+                if (++w < wakings) {
+                    wakingNs += mWakingTimestamps.values[w];
+                }
+            }
+        }
+    }
+
+    private String intern(LongArray indexes, int i) {
+        if (i >= indexes.size) {
+            return null;
+        }
+        int index = (int) indexes.values[i];
+        return index < mInternTable.size() ? mInternTable.get(index) : null;
+    }
+
+    // Reads a repeated varint field, whether or not it was packed.
+    private static void readPacked(CodedInputStream in, int tag, LongArray out)
+            throws IOException {
+        if (WireFormat.getTagWireType(tag) != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+            out.add(in.readRawVarint64());
+            return;
+        }
+        int limit = in.pushLimit(in.readRawVarint32());
+        while (in.getBytesUntilLimit() > 0) {
+            out.add(in.readRawVarint64());
+        }
+        in.popLimit(limit);
+    }
+
+    private void visitProcessTree(CodedInputStream in) throws IOException {
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case ProcessTree.PROCESSES_FIELD_NUMBER: {
+                    int limit = in.pushLimit(in.readRawVarint32());
+                    visitProcess(in);
+                    in.popLimit(limit);
+                    break;
+                }
+                case ProcessTree.THREADS_FIELD_NUMBER: {
+                    int limit = in.pushLimit(in.readRawVarint32());
+                    visitThread(in);
+                    in.popLimit(limit);
+                    break;
+                }
+                default:
+                    in.skipField(tag);
+                    break;
+            }
+        }
+    }
+
+    private void visitProcess(CodedInputStream in) throws IOException {
+        int pid = 0;
+        String name = null;
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case ProcessTree.Process.PID_FIELD_NUMBER:
+                    pid = in.readInt32();
+                    break;
+                case ProcessTree.Process.CMDLINE_FIELD_NUMBER: {
+                    // The first argument is the process name.
+                    String arg = in.readString();
+                    if (name == null) {
+                        name = arg;
+                    }
+                    break;
+                }
+                default:
+                    in.skipField(tag);
+                    break;
+            }
+        }
+        if (pid > 0 && name != null && !name.isEmpty()
+                && (mProcessNames.size() < MAX_THREADS || mProcessNames.get(pid) != null)) {
+            mProcessNames.put(pid, name);
+        }
+    }
+
+    private void visitThread(CodedInputStream in) throws IOException {
+        int tid = 0;
+        int pid = 0;
+        String name = null;
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case ProcessTree.Thread.TID_FIELD_NUMBER:
+                    tid = in.readInt32();
+                    break;
+                case ProcessTree.Thread.TGID_FIELD_NUMBER:
+                    pid = in.readInt32();
+                    break;
+                case ProcessTree.Thread.NAME_FIELD_NUMBER:
+                    name = in.readString();
+                    break;
+                default:
+                    in.skipField(tag);
+                    break;
+            }
+        }
+        ThreadState thread = getThread(tid);
+        if (thread != null) {
+            thread.pid = pid;
+            if (name != null && !name.isEmpty()) {
+                thread.name = name;
+            }
+        }
+    }
+
+    /*
+     * Charges the time since the last switch on cpu to the thread that was running, and
+     * starts the wait of a preempted thread. prevTid is -1 if the event doesn't say, as in
+     * compact_sched, in which case it is the thread the last switch switched in.
+     */
+    private void onSwitch(int cpu, long timestampNs, int prevTid, long prevState, int nextTid,
+            String nextComm) {
+        updateRange(timestampNs);
+        if (cpu >= mCpuTids.length) {
+            mCpuTids = Arrays.copyOf(mCpuTids, cpu + 1);
+            mCpuSinceNs = Arrays.copyOf(mCpuSinceNs, cpu + 1);
+        }
+        if (prevTid < 0) {
+            prevTid = mCpuTids[cpu];
+        }
+
+        // The idle task is tid 0.
+        ThreadState prev = prevTid > 0 ? getThread(prevTid) : null;
+        if (prev != null) {
+            long sinceNs = mCpuSinceNs[cpu];
+            if (sinceNs > 0 && timestampNs > sinceNs && mCpuTids[cpu] == prevTid) {
+                prev.cpuNs += timestampNs - sinceNs;
+            }
+            if (prevState == TASK_RUNNING && prev.runnableSinceNs < 0) {
+                prev.runnableSinceNs = timestampNs;
+            }
+        }
+
+        ThreadState next = nextTid > 0 ? getThread(nextTid) : null;
+        if (next != null) {
+            if (nextComm != null && !nextComm.isEmpty()) {
+                next.name = nextComm;
+            }
+            if (next.runnableSinceNs >= 0 && timestampNs > next.runnableSinceNs) {
+                long waitNs = timestampNs - next.runnableSinceNs;
+                next.waitNs += waitNs;
+                next.maxWaitNs = Math.max(next.maxWaitNs, waitNs);
+            }
+            next.runnableSinceNs = -1;
+        }
+
+        mCpuTids[cpu] = nextTid;
+        mCpuSinceNs[cpu] = timestampNs;
+    }
+
+    private void onWaking(long timestampNs, int tid, String comm) {
+        updateRange(timestampNs);
+        ThreadState thread = tid > 0 ? getThread(tid) : null;
+        if (thread == null) {
+            return;
+        }
+        if (thread.name == null && comm != null && !comm.isEmpty()) {
+            thread.name = comm;
+        }
+        if (thread.runnableSinceNs < 0) {
+            thread.runnableSinceNs = timestampNs;
+        }
+    }
+
+    private void updateRange(long timestampNs) {
+        if (timestampNs > 0) {
+            mFirstNs = Math.min(mFirstNs, timestampNs);
+            mLastNs = Math.max(mLastNs, timestampNs);
+        }
+    }
+
+    // Returns null once MAX_THREADS threads are tracked and tid isn't one of them.
+    private ThreadState getThread(int tid) {
+        ThreadState thread = mThreads.get(tid);
+        if (thread == null && mThreads.size() < MAX_THREADS) {
+            thread = new ThreadState(tid);
+            mThreads.put(tid, thread);
+        }
+        return thread;
+    }
+
+    public void save(Context context, String traceName) {
+        if (!hasUsage()) {
+            return;
+        }
+        AtomicFile file = new AtomicFile(getFile(context, traceName));
+        FileOutputStream out = null;
+        try {
+            byte[] json = toJson().toString(2).getBytes(StandardCharsets.UTF_8);
+            out = file.startWrite();
+            out.write(json);
+            file.finishWrite(out);
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Failed to write the CPU usage of " + traceName, e);
+            file.failWrite(out);
+        }
+    }
+
+    private JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("version", VERSION);
+        json.put("duration_ms", getDurationMs());
+        json.put("processes", toJson(getTopProcesses(TOP_COUNT), "pid"));
+        json.put("threads", toJson(getTopThreads(TOP_COUNT), "tid"));
+        json.put("runnable_waits", toJson(getTopWaits(TOP_COUNT), "tid"));
+        return json;
+    }
+
+    private JSONArray toJson(List<Usage> usages, String idName) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (Usage usage : usages) {
+            JSONObject item = new JSONObject();
+            item.put(idName, usage.id);
+            if (usage instanceof ThreadState) {
+                int pid = getPid((ThreadState) usage);
+                item.put("pid", pid);
+                item.put("process", getProcessName(pid));
+            }
+            item.put("name", usage.name != null ? usage.name : "");
+            item.put("cpu_ms", usage.cpuNs / 1000000);
+            item.put("runnable_wait_ms", usage.waitNs / 1000000);
+            item.put("max_runnable_wait_ms", usage.maxWaitNs / 1000000);
+            array.put(item);
+        }
+        return array;
+    }
+
+    /* The sidecar of a trace, which may not exist. */
+    public static File getFile(Context context, String traceName) {
+        return new File(TraceMetadata.getDirectory(context), traceName + SUFFIX);
+    }
+
+    public static boolean exists(Context context, String traceName) {
+        return getFile(context, traceName).isFile();
+    }
+
+    /* The name of the trace a sidecar belongs to, or null if name isn't a sidecar. */
+    public static String getTraceName(String name) {
+        return name != null && name.endsWith(SUFFIX)
+                ? name.substring(0, name.length() - SUFFIX.length()) : null;
+    }
+
+    /* Moves the sidecar along with a trace that was renamed, e.g. when it was compressed. */
+    public static void rename(Context context, String traceName, String newTraceName) {
+        File file = getFile(context, traceName);
+        if (file.exists() && !file.renameTo(getFile(context, newTraceName))) {
+            Log.w(TAG, "Failed to move the CPU usage of " + traceName);
+        }
+    }
+
+    public static void delete(Context context, String traceName) {
+        new AtomicFile(getFile(context, traceName)).delete();
+    }
+}
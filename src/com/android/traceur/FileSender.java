@@ -32,6 +32,8 @@ import android.os.SystemProperties;
 import android.util.Patterns;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Sends bugreport-y files, adapted from fw/base/packages/Shell's BugreportReceiver.
@@ -42,12 +44,37 @@ public class FileSender {
     private static final String MIME_TYPE = "application/vnd.android.systrace";
 
     public static void postNotification(Context context, File file) {
+        postNotification(context, file, null);
+    }
+
+    /**
+     * Posts the trace saved notification. If details is non-null, it is shown below the
+     * "tap to share" message when the notification is expanded.
+     */
+    public static void postNotification(Context context, File file, String details) {
+        postNotification(context, file, null, details);
+    }
+
+    /**
+     * Same as above, but if parts is non-null, the parts the trace was split into are shared
+     * instead of the trace itself.
+     */
+    public static void postNotification(Context context, File file, List<File> parts,
+            String details) {
         // Files are kept on private storage, so turn into Uris that we can
         // grant temporary permissions for.
         final Uri traceUri = getUriForFile(context, file);
+        List<Uri> uris = new ArrayList<>();
+        if (parts == null) {
+            uris.add(traceUri);
+        } else {
+            for (File part : parts) {
+                uris.add(getUriForFile(context, part));
+            }
+        }
 
         // Intent to send the file
-        Intent sendIntent = buildSendIntent(context, traceUri);
+        Intent sendIntent = buildSendIntent(context, file.getName(), uris);
         sendIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
 
         // This dialog will show to warn the user about sharing traces, then will execute
@@ -55,6 +82,11 @@ public class FileSender {
         final Intent intent = new Intent(context, UserConsentActivityDialog.class);
         intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_RECEIVER_FOREGROUND);
         intent.putExtra(Intent.EXTRA_INTENT, sendIntent);
+        // Lets the dialog offer to share a redacted copy instead.
+        boolean redactable = TraceRedactor.canRedact(file.getName());
+        if (redactable) {
+            intent.putExtra(UserConsentActivityDialog.EXTRA_TRACE, file.getPath());
+        }
 
         final Notification.Builder builder =
             new Notification.Builder(context, Receiver.NOTIFICATION_CHANNEL_OTHER)
@@ -71,6 +103,35 @@ public class FileSender {
                 .setColor(context.getColor(
                         com.android.internal.R.color.system_notification_accent_color));
 
+        if (details != null) {
+            builder.setStyle(new Notification.BigTextStyle().bigText(
+                    context.getString(R.string.tap_to_share) + "\n" + details));
+        }
+
+        // Also reachable when the user chose not to see the dialog again. The redacted copy
+        // gets its own trace saved notification to share it from.
+        if (redactable) {
+            builder.addAction(new Notification.Action.Builder(
+                    R.drawable.bugfood_icon, context.getString(R.string.share_redacted),
+                    PendingIntent.getForegroundService(context, traceUri.hashCode(),
+                            TraceService.getRedactTraceIntent(context, file),
+                            PendingIntent.FLAG_CANCEL_CURRENT
+                                    | PendingIntent.FLAG_IMMUTABLE)).build());
+        }
+
+        // Keeps the end of a long trace, which usually has what the user stopped tracing for.
+        TraceMetadata metadata = TraceMetadata.load(context, file.getName());
+        if (TraceTrimmer.canTrim(file.getName()) && (metadata == null || metadata.durationMs < 0
+                || metadata.durationMs > TraceService.TRIM_WINDOW_SECONDS * 1000L)) {
+            builder.addAction(new Notification.Action.Builder(
+                    R.drawable.bugfood_icon, context.getString(R.string.trim_trace,
+                            TraceService.TRIM_WINDOW_SECONDS),
+                    PendingIntent.getForegroundService(context, traceUri.hashCode(),
+                            TraceService.getTrimTraceIntent(context, file),
+                            PendingIntent.FLAG_CANCEL_CURRENT
+                                    | PendingIntent.FLAG_IMMUTABLE)).build());
+        }
+
         if (context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_LEANBACK)) {
             builder.extend(new Notification.TvExtender());
         }
@@ -83,9 +144,10 @@ public class FileSender {
         // grant temporary permissions for.
         final Uri traceUri = getUriForFile(context, file);
 
-        Intent sendIntent = buildSendIntent(context, traceUri);
+        Intent sendIntent = buildSendIntent(context, file.getName(), List.of(traceUri));
         sendIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
 
+        TraceRetention.onTraceAccessed(file);
         context.startActivity(sendIntent);
     }
 
@@ -94,23 +156,34 @@ public class FileSender {
     }
 
     /**
-     * Build {@link Intent} that can be used to share the given bugreport.
+     * Build {@link Intent} that can be used to share the given bugreport, or the parts it
+     * was split into.
      */
-    private static Intent buildSendIntent(Context context, Uri traceUri) {
+    private static Intent buildSendIntent(Context context, String name, List<Uri> traceUris) {
         final CharSequence description = Build.FINGERPRINT;
+        final boolean multiple = traceUris.size() > 1;
 
-        final Intent intent = new Intent(Intent.ACTION_SEND);
+        final Intent intent = new Intent(
+                multiple ? Intent.ACTION_SEND_MULTIPLE : Intent.ACTION_SEND);
         intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
         intent.addCategory(Intent.CATEGORY_DEFAULT);
         intent.setType(MIME_TYPE);
 
-        intent.putExtra(Intent.EXTRA_SUBJECT, traceUri.getLastPathSegment());
+        intent.putExtra(Intent.EXTRA_SUBJECT, name);
         intent.putExtra(Intent.EXTRA_TEXT, description);
-        intent.putExtra(Intent.EXTRA_STREAM, traceUri);
+        if (multiple) {
+            intent.putParcelableArrayListExtra(Intent.EXTRA_STREAM, new ArrayList<>(traceUris));
+        } else {
+            intent.putExtra(Intent.EXTRA_STREAM, traceUris.get(0));
+        }
 
         // Explicitly set the clip data; see b/119399115
-        intent.setClipData(new ClipData(null, new String[] { MIME_TYPE },
-            new ClipData.Item(description, null, traceUri)));
+        ClipData clipData = new ClipData(null, new String[] { MIME_TYPE },
+            new ClipData.Item(description, null, traceUris.get(0)));
+        for (int i = 1; i < traceUris.size(); i++) {
+            clipData.addItem(new ClipData.Item(traceUris.get(i)));
+        }
+        intent.setClipData(clipData);
 
         final Account sendToAccount = findSendToAccount(context);
         if (sendToAccount != null) {
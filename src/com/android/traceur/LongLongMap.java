@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from longs to longs that doesn't box, for indexes over every entry of a large
+ * trace. Keys are found by linear probing, and the table doubles when half full.
+ */
+class LongLongMap {
+
+    private long[] mKeys;
+    private long[] mValues;
+    private boolean[] mUsed;
+    private int mSize;
+
+    LongLongMap() {
+        this(16);
+    }
+
+    LongLongMap(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 8) - 1) << 1;
+        mKeys = new long[size];
+        mValues = new long[size];
+        mUsed = new boolean[size];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean containsKey(long key) {
+        return mUsed[find(key)];
+    }
+
+    long get(long key, long defaultValue) {
+        int slot = find(key);
+        return mUsed[slot] ? mValues[slot] : defaultValue;
+    }
+
+    void put(long key, long value) {
+        int slot = find(key);
+        if (!mUsed[slot]) {
+            if ((mSize + 1) * 2 > mKeys.length) {
+                grow();
+                slot = find(key);
+            }
+            mUsed[slot] = true;
+            mKeys[slot] = key;
+            mSize++;
+        }
+        mValues[slot] = value;
+    }
+
+    void putAll(LongLongMap other) {
+        for (int i = 0; i < other.mKeys.length; i++) {
+            if (other.mUsed[i]) {
+                put(other.mKeys[i], other.mValues[i]);
+            }
+        }
+    }
+
+    void clear() {
+        if (mSize > 0) {
+            Arrays.fill(mUsed, false);
+            mSize = 0;
+        }
+    }
+
+    // The slot holding key, or the empty slot where it would go.
+    private int find(long key) {
+        int mask = mKeys.length - 1;
+        int slot = (int) mix(key) & mask;
+        while (mUsed[slot] && mKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] keys = mKeys;
+        long[] values = mValues;
+        boolean[] used = mUsed;
+        mKeys = new long[keys.length * 2];
+        mValues = new long[keys.length * 2];
+        mUsed = new boolean[keys.length * 2];
+        mSize = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                put(keys[i], values[i]);
+            }
+        }
+    }
+
+    // Spreads the bits of keys that differ only in their high or low bits, e.g. iids.
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -30,6 +30,10 @@ import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.icu.text.MessageFormat;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.format.Formatter;
+import androidx.preference.EditTextPreference;
 import androidx.preference.MultiSelectListPreference;
 import androidx.preference.ListPreference;
 import androidx.preference.Preference;
@@ -47,11 +51,15 @@ import com.android.settingslib.HelpUtils;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainFragment extends PreferenceFragment {
 
@@ -65,15 +73,26 @@ public class MainFragment extends PreferenceFragment {
     private static final String ROOT_MIME_TYPE = "vnd.android.document/root";
     private static final String STORAGE_URI = "content://com.android.traceur.documents/root";
 
+    // Estimates the automatic buffer size, which reads preferences and past sessions, off the
+    // UI thread.
+    private static final ExecutorService BUFFER_SIZE_EXECUTOR =
+            Executors.newSingleThreadExecutor();
+
     private SwitchPreference mTracingOn;
 
     private AlertDialog mAlertDialog;
+    private AlertDialog mClearingDialog;
+    private TraceDeleter mTraceDeleter;
     private SharedPreferences mPrefs;
 
     private MultiSelectListPreference mTags;
 
     private boolean mRefreshing;
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Counts buffer size estimates, so that only the latest one is shown.
+    private int mBufferSizeRequest;
+
     private BroadcastReceiver mRefreshReceiver;
 
     OnSharedPreferenceChangeListener mSharedPreferenceChangeListener =
@@ -110,7 +129,7 @@ public class MainFragment extends PreferenceFragment {
                     return true;
                 }
                 Set<String> set = (Set<String>) newValue;
-                TreeMap<String, String> available = TraceUtils.listCategories();
+                SortedMap<String, String> available = TraceUtils.listCategories(getContext());
                 ArrayList<String> clean = new ArrayList<>(set.size());
 
                 for (String s : set) {
@@ -156,7 +175,7 @@ public class MainFragment extends PreferenceFragment {
                             .setPositiveButton(R.string.clear,
                                 new DialogInterface.OnClickListener() {
                                     public void onClick(DialogInterface dialog, int which) {
-                                        TraceUtils.clearSavedTraces();
+                                        clearSavedTraces();
                                     }
                                 })
                             .setNegativeButton(android.R.string.no,
@@ -240,6 +259,11 @@ public class MainFragment extends PreferenceFragment {
             mAlertDialog.cancel();
             mAlertDialog = null;
         }
+        // Clearing carries on in the background; only its progress is no longer shown.
+        if (mClearingDialog != null) {
+            mClearingDialog.dismiss();
+            mClearingDialog = null;
+        }
 
         super.onStop();
     }
@@ -255,6 +279,57 @@ public class MainFragment extends PreferenceFragment {
             this.getClass().getName());
     }
 
+    /*
+     * Deletes the saved traces in the background, with a dialog that shows the progress and
+     * can cancel the deletion.
+     */
+    private void clearSavedTraces() {
+        if (mTraceDeleter != null) {
+            return;
+        }
+        final Context context = getContext();
+
+        mClearingDialog = new AlertDialog.Builder(context)
+            .setTitle(R.string.clearing_saved_traces)
+            .setMessage(context.getString(R.string.clearing_saved_traces_progress, 0, 0,
+                    Formatter.formatShortFileSize(context, 0)))
+            .setCancelable(false)
+            .setNegativeButton(android.R.string.cancel,
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (mTraceDeleter != null) {
+                            mTraceDeleter.cancel();
+                        }
+                    }
+                })
+            .create();
+        mClearingDialog.show();
+
+        mTraceDeleter = TraceDeleter.clearSavedTraces(context, new TraceDeleter.Listener() {
+            @Override
+            public void onProgress(int deleted, int total, long reclaimedBytes) {
+                if (mClearingDialog != null) {
+                    mClearingDialog.setMessage(context.getString(
+                            R.string.clearing_saved_traces_progress, deleted, total,
+                            Formatter.formatShortFileSize(context, reclaimedBytes)));
+                }
+            }
+
+            @Override
+            public void onFinished(int deleted, int total, long reclaimedBytes,
+                    boolean cancelled) {
+                mTraceDeleter = null;
+                if (mClearingDialog != null) {
+                    mClearingDialog.dismiss();
+                    mClearingDialog = null;
+                }
+                Toast.makeText(context, context.getString(R.string.saved_traces_cleared,
+                        deleted, Formatter.formatShortFileSize(context, reclaimedBytes)),
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
     private Intent buildTraceFileViewIntent() {
         Intent intent = new Intent(Intent.ACTION_VIEW);
         intent.setDataAndType(Uri.parse(STORAGE_URI), ROOT_MIME_TYPE);
@@ -281,7 +356,8 @@ public class MainFragment extends PreferenceFragment {
         stopOnReport.setChecked(mPrefs.getBoolean(stopOnReport.getKey(), false));
 
         // Update category list to match the categories available on the system.
-        Set<Entry<String, String>> availableTags = TraceUtils.listCategories().entrySet();
+        Set<Entry<String, String>> availableTags =
+                TraceUtils.listCategories(context).entrySet();
         ArrayList<String> entries = new ArrayList<String>(availableTags.size());
         ArrayList<String> values = new ArrayList<String>(availableTags.size());
         for (Entry<String, String> entry : availableTags) {
@@ -313,11 +389,50 @@ public class MainFragment extends PreferenceFragment {
 
         ListPreference bufferSize = (ListPreference)findPreference(
                 context.getString(R.string.pref_key_buffer_size));
+        final int request = ++mBufferSizeRequest;
         bufferSize.setSummary(bufferSize.getEntry());
+        if (Integer.parseInt(bufferSize.getValue()) == Receiver.AUTO_BUFFER_SIZE) {
+            boolean apps = mPrefs.getBoolean(context.getString(R.string.pref_key_apps), true);
+            Set<String> tags = new HashSet<>(categories);
+            BUFFER_SIZE_EXECUTOR.execute(() -> {
+                int sizeKb = Receiver.getBufferSizeKb(context, mPrefs, tags, apps);
+                mHandler.post(() -> {
+                    if (request == mBufferSizeRequest && isAdded()) {
+                        bufferSize.setSummary(
+                                context.getString(R.string.auto_buffer_size_summary, sizeKb));
+                    }
+                });
+            });
+        }
+
+        ListPreference storageQuota = (ListPreference)findPreference(
+                context.getString(R.string.pref_key_trace_storage_quota));
+        storageQuota.setSummary(storageQuota.getEntry());
+
+        ListPreference compactionAge = (ListPreference)findPreference(
+                context.getString(R.string.pref_key_compaction_age));
+        compactionAge.setSummary(compactionAge.getEntry());
+
+        ListPreference splitSize = (ListPreference)findPreference(
+                context.getString(R.string.pref_key_split_size));
+        splitSize.setSummary(splitSize.getEntry());
+
+        // Lists the chosen redactions in the order of the dialog.
+        MultiSelectListPreference redactions = (MultiSelectListPreference)findPreference(
+                context.getString(R.string.pref_key_redactions));
+        List<String> redacted = new ArrayList<>();
+        CharSequence[] redactionValues = redactions.getEntryValues();
+        for (int i = 0; i < redactionValues.length; i++) {
+            if (redactions.getValues().contains(redactionValues[i].toString())) {
+                redacted.add(redactions.getEntries()[i].toString());
+            }
+        }
+        redactions.setSummary(redacted.isEmpty()
+                ? context.getString(R.string.redact_nothing) : String.join(", ", redacted));
 
-        // If we are not using the Perfetto trace backend,
+        // If we are using the atrace backend,
         // hide the unsupported preferences.
-        if (TraceUtils.currentTraceEngine().equals(PerfettoUtils.NAME)) {
+        if (!TraceUtils.currentTraceEngine().equals(AtraceUtils.NAME)) {
             ListPreference maxLongTraceSize = (ListPreference)findPreference(
                     context.getString(R.string.pref_key_max_long_trace_size));
             maxLongTraceSize.setSummary(maxLongTraceSize.getEntry());
@@ -325,11 +440,41 @@ public class MainFragment extends PreferenceFragment {
             ListPreference maxLongTraceDuration = (ListPreference)findPreference(
                     context.getString(R.string.pref_key_max_long_trace_duration));
             maxLongTraceDuration.setSummary(maxLongTraceDuration.getEntry());
+
+            ListPreference rollingSegments = (ListPreference)findPreference(
+                    context.getString(R.string.pref_key_rolling_segments));
+            rollingSegments.setSummary(rollingSegments.getEntry());
+
+            // The other trigger settings only apply when a trigger mode is selected.
+            ListPreference triggerMode = (ListPreference)findPreference(
+                    context.getString(R.string.pref_key_trigger_mode));
+            triggerMode.setSummary(triggerMode.getEntry());
+            boolean triggersEnabled = !PerfettoUtils.TRIGGER_MODE_OFF.equals(
+                    triggerMode.getValue());
+
+            EditTextPreference triggerNames = (EditTextPreference)findPreference(
+                    context.getString(R.string.pref_key_trigger_names));
+            triggerNames.setSummary(triggerNames.getText());
+            triggerNames.setEnabled(triggersEnabled);
+
+            ListPreference triggerTimeout = (ListPreference)findPreference(
+                    context.getString(R.string.pref_key_trigger_timeout));
+            triggerTimeout.setSummary(triggerTimeout.getEntry());
+            triggerTimeout.setEnabled(triggersEnabled);
+
+            ListPreference triggerStopDelay = (ListPreference)findPreference(
+                    context.getString(R.string.pref_key_trigger_stop_delay));
+            triggerStopDelay.setSummary(triggerStopDelay.getEntry());
+            triggerStopDelay.setEnabled(triggersEnabled);
         } else {
             Preference longTraceCategory = findPreference("long_trace_category");
             if (longTraceCategory != null) {
                 getPreferenceScreen().removePreference(longTraceCategory);
             }
+            Preference triggerCategory = findPreference("trigger_category");
+            if (triggerCategory != null) {
+                getPreferenceScreen().removePreference(triggerCategory);
+            }
         }
 
         // Check if BetterBug is installed to see if Traceur should display either the toggle for
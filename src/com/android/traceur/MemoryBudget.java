@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Caps the memory used by trace buffers, so that tracing doesn't push the device into
+ * low-memory kills.
+ *
+ * The per-CPU buffer size is multiplied by the number of CPUs, so large sizes on devices with
+ * many cores can reserve more memory than the device can spare. The budget for all buffers is
+ * derived from /proc/meminfo: at most a fixed share of MemTotal, and at most a fixed share of
+ * what is currently MemAvailable. The auxiliary buffer keeps its size and the ftrace buffer
+ * gets the rest of the budget.
+ */
+public class MemoryBudget {
+
+    static final String TAG = "Traceur";
+
+    private static final String MEMINFO = "/proc/meminfo";
+
+    // Shares of MemTotal and MemAvailable that trace buffers may use.
+    private static final int MEM_TOTAL_DIVISOR = 16;
+    private static final int MEM_AVAILABLE_DIVISOR = 4;
+    // Below this, a trace would cover too little time to be useful.
+    private static final int MIN_BUFFER_SIZE_KB = 1024;
+
+    public static class Allocation {
+        /* The per-CPU size of the ftrace buffer that fits the budget, 0 if none does. */
+        public final int bufferSizeKb;
+        /* The size of all buffers, per the budget. */
+        public final long budgetKb;
+
+        Allocation(int bufferSizeKb, long budgetKb) {
+            this.bufferSizeKb = bufferSizeKb;
+            this.budgetKb = budgetKb;
+        }
+
+        /* Whether a useful trace fits in the budget at all. */
+        public boolean fits() {
+            return bufferSizeKb > 0;
+        }
+    }
+
+    /*
+     * Fits the buffers of a session in the memory budget. requestedBufferSizeKb is the per-CPU
+     * size of the ftrace buffer, auxBufferSizeKb the size of any other buffers. Returns null
+     * if the memory state can't be read, in which case no limit is applied.
+     */
+    public static Allocation allocate(int requestedBufferSizeKb, int auxBufferSizeKb) {
+        long[] meminfo = readMeminfo();
+        if (meminfo == null) {
+            return null;
+        }
+        long budgetKb = Math.min(meminfo[0] / MEM_TOTAL_DIVISOR,
+                meminfo[1] / MEM_AVAILABLE_DIVISOR);
+
+        int numCpus = Runtime.getRuntime().availableProcessors();
+        long perCpuKb = Math.min(requestedBufferSizeKb,
+                (budgetKb - auxBufferSizeKb) / numCpus);
+        // Keep sizes in whole megabytes, like the choices offered in settings.
+        perCpuKb -= perCpuKb % 1024;
+
+        Log.v(TAG, "Memory budget: " + budgetKb + " KB (MemTotal " + meminfo[0]
+                + " KB, MemAvailable " + meminfo[1] + " KB), buffer: " + perCpuKb + " KB x "
+                + numCpus + " CPUs");
+        return new Allocation(perCpuKb < MIN_BUFFER_SIZE_KB ? 0 : (int) perCpuKb, budgetKb);
+    }
+
+    // Returns {MemTotal, MemAvailable} in KB, or null if they can't be read.
+    private static long[] readMeminfo() {
+        long memTotal = -1;
+        long memAvailable = -1;
+        try (BufferedReader reader = new BufferedReader(new FileReader(MEMINFO))) {
+            String line;
+            while ((line = reader.readLine()) != null
+                    && (memTotal < 0 || memAvailable < 0)) {
+                // Lines look like "MemTotal:       11728760 kB".
+                String[] fields = line.split("\\s+");
+                if (fields.length < 2) {
+                    continue;
+                }
+                if (fields[0].equals("MemTotal:")) {
+                    memTotal = Long.parseLong(fields[1]);
+                } else if (fields[0].equals("MemAvailable:")) {
+                    memAvailable = Long.parseLong(fields[1]);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.e(TAG, "Failed to read " + MEMINFO, e);
+            return null;
+        }
+        if (memTotal < 0 || memAvailable < 0) {
+            return null;
+        }
+        return new long[] {memTotal, memAvailable};
+    }
+}
@@ -16,21 +16,33 @@
 
 package com.android.traceur;
 
+import android.os.SystemClock;
+import android.system.ErrnoException;
 import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Collection;
-import java.util.List;
-import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
-import perfetto.protos.DataSourceDescriptorOuterClass.DataSourceDescriptor;
-import perfetto.protos.FtraceDescriptorOuterClass.FtraceDescriptor.AtraceCategory;
+import perfetto.protos.AndroidPowerConfigOuterClass.AndroidPowerConfig;
+import perfetto.protos.ChromeConfigOuterClass.ChromeConfig;
+import perfetto.protos.DataSourceConfigOuterClass.DataSourceConfig;
+import perfetto.protos.FtraceConfigOuterClass.FtraceConfig;
+import perfetto.protos.ProcessStatsConfigOuterClass.ProcessStatsConfig;
+import perfetto.protos.SysStatsConfigOuterClass.SysStatsConfig;
+import perfetto.protos.TraceConfigOuterClass.TraceConfig;
+import perfetto.protos.TraceConfigOuterClass.TraceConfig.TriggerConfig;
 import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState;
-import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState.DataSource;
+import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState.TracingSession;
 
 /**
  * Utility functions for calling Perfetto
@@ -40,15 +52,24 @@ public class PerfettoUtils implements TraceUtils.TraceEngine {
     static final String TAG = "Traceur";
     public static final String NAME = "PERFETTO";
 
-    private static final String OUTPUT_EXTENSION = "perfetto-trace";
+    static final String OUTPUT_EXTENSION = "perfetto-trace";
     private static final String TEMP_DIR= "/data/local/traces/";
-    private static final String TEMP_TRACE_LOCATION = "/data/local/traces/.trace-in-progress.trace";
+    static final String TEMP_TRACE_LOCATION = "/data/local/traces/.trace-in-progress.trace";
+    static final String TEMP_SNAPSHOT_LOCATION = "/data/local/traces/.trace-snapshot.trace";
+    // Exists while a session that only records into its ring buffer is running.
+    private static final String RING_BUFFER_MARKER = "/data/local/traces/.trace-ring-buffer";
 
-    private static final String PERFETTO_TAG = "traceur";
-    private static final String MARKER = "PERFETTO_ARGUMENTS";
+    static final String PERFETTO_TAG = "traceur";
+
+    // Values of the trigger mode preference.
+    static final String TRIGGER_MODE_OFF = "off";
+    static final String TRIGGER_MODE_START = "start";
+    static final String TRIGGER_MODE_STOP = "stop";
     private static final int LIST_TIMEOUT_MS = 10000;
     private static final int STARTUP_TIMEOUT_MS = 10000;
-    private static final int STOP_TIMEOUT_MS = 30000;
+    static final int STOP_TIMEOUT_MS = 30000;
+    // Size of target_buffer: 1, used for data sources other than ftrace.
+    static final int AUX_BUFFER_SIZE_KB = 2048;
     private static final long MEGABYTES_TO_BYTES = 1024L * 1024L;
     private static final long MINUTES_TO_MILLISECONDS = 60L * 1000L;
 
@@ -69,7 +90,7 @@ public class PerfettoUtils implements TraceUtils.TraceEngine {
 
     public boolean traceStart(Collection<String> tags, int bufferSizeKb, boolean apps,
             boolean attachToBugreport, boolean longTrace, int maxLongTraceSizeMb,
-            int maxLongTraceDurationMinutes) {
+            int maxLongTraceDurationMinutes, TriggerConfig triggerConfig) {
         if (isTracingOn()) {
             Log.e(TAG, "Attempting to start perfetto trace but trace is already in progress");
             return false;
@@ -82,66 +103,119 @@ public class PerfettoUtils implements TraceUtils.TraceEngine {
             }
         }
 
+        TraceConfig config = buildTraceConfig(tags, bufferSizeKb, apps, attachToBugreport,
+                longTrace, maxLongTraceSizeMb, maxLongTraceDurationMinutes, triggerConfig);
+
+        // traceStop() must read out the buffers of a session that doesn't write into its file.
+        try {
+            if (config.getWriteIntoFile()) {
+                Files.deleteIfExists(Paths.get(RING_BUFFER_MARKER));
+            } else {
+                new File(RING_BUFFER_MARKER).createNewFile();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        // The config is passed to perfetto as a serialized TraceConfig on stdin, which avoids
+        // both the shell here-doc and perfetto's text config parser.
+        String[] cmd = {"perfetto", "--detach=" + PERFETTO_TAG,
+            "-o", TEMP_TRACE_LOCATION,
+            "-c", "-"};
+
+        Log.v(TAG, "Starting perfetto trace.");
+        try {
+            Process process = TraceUtils.execWithTimeout(cmd, TEMP_DIR, STARTUP_TIMEOUT_MS,
+                    config.toByteArray());
+            if (process == null) {
+                return false;
+            } else if (process.exitValue() != 0) {
+                Log.e(TAG, "perfetto traceStart failed with: " + process.exitValue());
+                return false;
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        Log.v(TAG, "perfetto traceStart succeeded!");
+        return true;
+    }
+
+    /*
+     * Builds the TraceConfig for a Traceur session. This is shared by every engine that hands
+     * a config to traced, so the resulting sessions are identical regardless of how they are
+     * started.
+     *
+     * traced doesn't allow a session that stops on a trigger to write into its file, so such
+     * a session only records into its ring buffer, and the buffer is read out when it is
+     * stopped. The long trace file size limit doesn't apply to it.
+     */
+    static TraceConfig buildTraceConfig(Collection<String> tags, int bufferSizeKb, boolean apps,
+            boolean attachToBugreport, boolean longTrace, int maxLongTraceSizeMb,
+            int maxLongTraceDurationMinutes, TriggerConfig triggerConfig) {
         // The user chooses a per-CPU buffer size due to atrace limitations.
         // So we use this to ensure that we reserve the correctly-sized buffer.
         int numCpus = Runtime.getRuntime().availableProcessors();
 
-        // Build the perfetto config that will be passed on the command line.
-        StringBuilder config = new StringBuilder()
-            .append("write_into_file: true\n")
+        boolean ringBufferOnly = triggerConfig != null
+                && triggerConfig.getTriggerMode() == TriggerConfig.TriggerMode.STOP_TRACING;
+
+        TraceConfig.Builder config = TraceConfig.newBuilder()
+            .setWriteIntoFile(!ringBufferOnly)
             // Ensure that we flush ftrace data every 30s even if cpus are idle.
-            .append("flush_period_ms: 30000\n");
+            .setFlushPeriodMs(30000);
 
-            // If the user has flagged that in-progress trace sessions should be grabbed
-            // during bugreports, and BetterBug is present.
-            if (attachToBugreport) {
-                config.append("bugreport_score: 500\n");
-            }
+        // If the user has flagged that in-progress trace sessions should be grabbed
+        // during bugreports, and BetterBug is present.
+        if (attachToBugreport) {
+            config.setBugreportScore(500);
+        }
 
-            // Indicates that perfetto should notify Traceur if the tracing session's status
-            // changes.
-            config.append("notify_traceur: true\n");
+        // Indicates that perfetto should notify Traceur if the tracing session's status
+        // changes.
+        config.setNotifyTraceur(true);
 
-            if (longTrace) {
-                if (maxLongTraceSizeMb != 0) {
-                    config.append("max_file_size_bytes: "
-                        + (maxLongTraceSizeMb * MEGABYTES_TO_BYTES) + "\n");
-                }
+        // Makes the session identifiable in the service state, whichever engine started it.
+        config.setUniqueSessionName(PERFETTO_TAG);
 
-                if (maxLongTraceDurationMinutes != 0) {
-                    config.append("duration_ms: "
-                        + (maxLongTraceDurationMinutes * MINUTES_TO_MILLISECONDS)
-                        + "\n");
-                }
+        if (triggerConfig != null) {
+            config.setTriggerConfig(triggerConfig);
+        }
 
+        if (longTrace) {
+            if (maxLongTraceSizeMb != 0 && !ringBufferOnly) {
+                config.setMaxFileSizeBytes(maxLongTraceSizeMb * MEGABYTES_TO_BYTES);
+            }
+
+            if (maxLongTraceDurationMinutes != 0) {
+                config.setDurationMs(
+                    (int) (maxLongTraceDurationMinutes * MINUTES_TO_MILLISECONDS));
+            }
+
+            if (!ringBufferOnly) {
                 // Default value for long traces to write to file.
-                config.append("file_write_period_ms: 1000\n");
-            } else {
-                // For short traces, we don't write to the file.
-                // So, always use the maximum value here: 7 days.
-                config.append("file_write_period_ms: 604800000\n");
+                config.setFileWritePeriodMs(1000);
             }
+        } else if (!ringBufferOnly) {
+            // For short traces, we don't write to the file.
+            // So, always use the maximum value here: 7 days.
+            config.setFileWritePeriodMs(604800000);
+        }
 
-        config.append("incremental_state_config {\n")
-            .append("  clear_period_ms: 15000\n")
-            .append("} \n")
+        config.setIncrementalStateConfig(TraceConfig.IncrementalStateConfig.newBuilder()
+                .setClearPeriodMs(15000).build())
             // This is target_buffer: 0, which is used for ftrace and the ftrace-derived
             // android.gpu.memory.
-            .append("buffers {\n")
-            .append("  size_kb: " + bufferSizeKb * numCpus + "\n")
-            .append("  fill_policy: RING_BUFFER\n")
-            .append("} \n")
+            .addBuffers(TraceConfig.BufferConfig.newBuilder()
+                .setSizeKb(bufferSizeKb * numCpus)
+                .setFillPolicy(TraceConfig.BufferConfig.FillPolicy.RING_BUFFER).build())
             // This is target_buffer: 1, which is used for additional data sources.
-            .append("buffers {\n")
-            .append("  size_kb: 2048\n")
-            .append("  fill_policy: RING_BUFFER\n")
-            .append("} \n")
-            .append("data_sources {\n")
-            .append("  config {\n")
-            .append("    name: \"linux.ftrace\"\n")
-            .append("    target_buffer: 0\n")
-            .append("    ftrace_config {\n")
-            .append("      symbolize_ksyms: true\n");
+            .addBuffers(TraceConfig.BufferConfig.newBuilder()
+                .setSizeKb(AUX_BUFFER_SIZE_KB)
+                .setFillPolicy(TraceConfig.BufferConfig.FillPolicy.RING_BUFFER).build());
+
+        FtraceConfig.Builder ftraceConfig = FtraceConfig.newBuilder()
+            .setSymbolizeKsyms(true);
 
         for (String tag : tags) {
             // Tags are expected to be only letters, numbers, and underscores.
@@ -149,154 +223,132 @@ public class PerfettoUtils implements TraceUtils.TraceEngine {
             if (!cleanTag.equals(tag)) {
                 Log.w(TAG, "Attempting to use an invalid tag: " + tag);
             }
-            config.append("      atrace_categories: \"" + cleanTag + "\"\n");
+            ftraceConfig.addAtraceCategories(cleanTag);
         }
 
         if (apps) {
-            config.append("      atrace_apps: \"*\"\n");
+            ftraceConfig.addAtraceApps("*");
         }
 
         // Request a dense encoding of the common sched events (sched_switch, sched_waking).
         if (tags.contains(SCHED_TAG)) {
-            config.append("      compact_sched {\n");
-            config.append("        enabled: true\n");
-            config.append("      }\n");
+            ftraceConfig.setCompactSched(FtraceConfig.CompactSchedConfig.newBuilder()
+                .setEnabled(true).build());
         }
 
         // These parameters affect only the kernel trace buffer size and how
         // frequently it gets moved into the userspace buffer defined above.
-        config.append("      buffer_size_kb: 8192\n")
-            .append("      drain_period_ms: 1000\n")
-            .append("    }\n")
-            .append("  }\n")
-            .append("}\n")
-            .append(" \n");
+        ftraceConfig.setBufferSizeKb(8192)
+            .setDrainPeriodMs(1000);
+
+        config.addDataSources(dataSource(DataSourceConfig.newBuilder()
+            .setName("linux.ftrace")
+            .setTargetBuffer(0)
+            .setFtraceConfig(ftraceConfig.build())));
 
         // Captures initial counter values, updates are captured in ftrace.
         if (tags.contains(MEMORY_TAG) || tags.contains(GFX_TAG)) {
-             config.append("data_sources: {\n")
-                .append("  config { \n")
-                .append("    name: \"android.gpu.memory\"\n")
-                .append("    target_buffer: 0\n")
-                .append("  }\n")
-                .append("}\n");
+            config.addDataSources(dataSource(DataSourceConfig.newBuilder()
+                .setName("android.gpu.memory")
+                .setTargetBuffer(0)));
         }
 
         // For process association. If the memory tag is enabled,
         // poll periodically instead of just once at the beginning.
-        config.append("data_sources {\n")
-            .append("  config {\n")
-            .append("    name: \"linux.process_stats\"\n")
-            .append("    target_buffer: 1\n");
+        DataSourceConfig.Builder processStats = DataSourceConfig.newBuilder()
+            .setName("linux.process_stats")
+            .setTargetBuffer(1);
         if (tags.contains(MEMORY_TAG)) {
-            config.append("    process_stats_config {\n")
-                .append("      proc_stats_poll_ms: 60000\n")
-                .append("    }\n");
+            processStats.setProcessStatsConfig(ProcessStatsConfig.newBuilder()
+                .setProcStatsPollMs(60000).build());
         }
-        config.append("  }\n")
-            .append("} \n");
+        config.addDataSources(dataSource(processStats));
 
         if (tags.contains(POWER_TAG)) {
-            config.append("data_sources: {\n")
-                .append("  config { \n")
-                .append("    name: \"android.power\"\n")
-                .append("    target_buffer: 1\n")
-                .append("    android_power_config {\n");
-            if (longTrace) {
-                config.append("      battery_poll_ms: 5000\n");
-            } else {
-                config.append("      battery_poll_ms: 1000\n");
-            }
-            config.append("      collect_power_rails: true\n")
-                .append("      battery_counters: BATTERY_COUNTER_CAPACITY_PERCENT\n")
-                .append("      battery_counters: BATTERY_COUNTER_CHARGE\n")
-                .append("      battery_counters: BATTERY_COUNTER_CURRENT\n")
-                .append("    }\n")
-                .append("  }\n")
-                .append("}\n");
+            config.addDataSources(dataSource(DataSourceConfig.newBuilder()
+                .setName("android.power")
+                .setTargetBuffer(1)
+                .setAndroidPowerConfig(AndroidPowerConfig.newBuilder()
+                    .setBatteryPollMs(longTrace ? 5000 : 1000)
+                    .setCollectPowerRails(true)
+                    .addBatteryCounters(
+                        AndroidPowerConfig.BatteryCounters.BATTERY_COUNTER_CAPACITY_PERCENT)
+                    .addBatteryCounters(AndroidPowerConfig.BatteryCounters.BATTERY_COUNTER_CHARGE)
+                    .addBatteryCounters(
+                        AndroidPowerConfig.BatteryCounters.BATTERY_COUNTER_CURRENT)
+                    .build())));
         }
 
         if (tags.contains(MEMORY_TAG)) {
-            config.append("data_sources: {\n")
-                .append("  config { \n")
-                .append("    name: \"android.sys_stats\"\n")
-                .append("    target_buffer: 1\n")
-                .append("    sys_stats_config {\n")
-                .append("      vmstat_period_ms: 1000\n")
-                .append("    }\n")
-                .append("  }\n")
-                .append("}\n");
+            config.addDataSources(dataSource(DataSourceConfig.newBuilder()
+                .setName("android.sys_stats")
+                .setTargetBuffer(1)
+                .setSysStatsConfig(SysStatsConfig.newBuilder()
+                    .setVmstatPeriodMs(1000).build())));
         }
 
         if (tags.contains(GFX_TAG)) {
-          config.append("data_sources: {\n")
-              .append("  config { \n")
-              .append("    name: \"android.surfaceflinger.frametimeline\"\n")
-              .append("  }\n")
-              .append("}\n");
+            config.addDataSources(dataSource(DataSourceConfig.newBuilder()
+                .setName("android.surfaceflinger.frametimeline")));
         }
 
         if (tags.contains(CAMERA_TAG)) {
-          config.append("data_sources: {\n")
-              .append("  config { \n")
-              .append("    name: \"android.hardware.camera\"\n")
-              .append("    target_buffer: 1\n")
-              .append("  }\n")
-              .append("}\n");
+            config.addDataSources(dataSource(DataSourceConfig.newBuilder()
+                .setName("android.hardware.camera")
+                .setTargetBuffer(1)));
         }
 
         // Also enable Chrome events when the WebView tag is enabled.
         if (tags.contains(WEBVIEW_TAG)) {
-            String chromeTraceConfig =  "{" +
-                "\\\"record_mode\\\":\\\"record-continuously\\\"," +
-                "\\\"included_categories\\\":[\\\"*\\\"]" +
-                "}";
-            config.append("data_sources: {\n")
-                .append("  config {\n")
-                .append("    name: \"org.chromium.trace_event\"\n")
-                .append("    chrome_config {\n")
-                .append("      trace_config: \"" + chromeTraceConfig + "\"\n")
-                .append("    }\n")
-                .append("  }\n")
-                .append("}\n")
-                .append("data_sources: {\n")
-                .append("  config {\n")
-                .append("    name: \"org.chromium.trace_metadata\"\n")
-                .append("      chrome_config {\n")
-                .append("        trace_config: \"" + chromeTraceConfig + "\"\n")
-                .append("      }\n")
-                .append("  }\n")
-                .append("}\n");
-        }
-
-        String configString = config.toString();
-
-        // If the here-doc ends early, within the config string, exit immediately.
-        // This should never happen.
-        if (configString.contains(MARKER)) {
-            throw new RuntimeException("The arguments to the Perfetto command are malformed.");
-        }
-
-        String cmd = "perfetto --detach=" + PERFETTO_TAG
-            + " -o " + TEMP_TRACE_LOCATION
-            + " -c - --txt"
-            + " <<" + MARKER +"\n" + configString + "\n" + MARKER;
+            ChromeConfig chromeConfig = ChromeConfig.newBuilder()
+                .setTraceConfig("{"
+                    + "\"record_mode\":\"record-continuously\","
+                    + "\"included_categories\":[\"*\"]"
+                    + "}")
+                .build();
+            config.addDataSources(dataSource(DataSourceConfig.newBuilder()
+                .setName("org.chromium.trace_event")
+                .setChromeConfig(chromeConfig)));
+            config.addDataSources(dataSource(DataSourceConfig.newBuilder()
+                .setName("org.chromium.trace_metadata")
+                .setChromeConfig(chromeConfig)));
+        }
 
-        Log.v(TAG, "Starting perfetto trace.");
-        try {
-            Process process = TraceUtils.execWithTimeout(cmd, TEMP_DIR, STARTUP_TIMEOUT_MS);
-            if (process == null) {
-                return false;
-            } else if (process.exitValue() != 0) {
-                Log.e(TAG, "perfetto traceStart failed with: " + process.exitValue());
-                return false;
-            }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        return config.build();
+    }
+
+    /*
+     * Builds the trigger config for a trigger-driven session, or returns null if mode is
+     * TRIGGER_MODE_OFF. In TRIGGER_MODE_START the session is armed but doesn't record until a
+     * trigger fires. In TRIGGER_MODE_STOP it records into the ring buffer until a trigger
+     * fires, and the trace is read out of the buffer when it ends. Either way it ends
+     * stopDelaySeconds after the trigger, or when the timeout expires without one.
+     */
+    static TriggerConfig buildTriggerConfig(String mode, Collection<String> names,
+            int timeoutMinutes, int stopDelaySeconds) {
+        TriggerConfig.TriggerMode triggerMode;
+        if (TRIGGER_MODE_START.equals(mode)) {
+            triggerMode = TriggerConfig.TriggerMode.START_TRACING;
+        } else if (TRIGGER_MODE_STOP.equals(mode)) {
+            triggerMode = TriggerConfig.TriggerMode.STOP_TRACING;
+        } else {
+            return null;
         }
 
-        Log.v(TAG, "perfetto traceStart succeeded!");
-        return true;
+        TriggerConfig.Builder config = TriggerConfig.newBuilder()
+            .setTriggerMode(triggerMode)
+            .setTriggerTimeoutMs((int) (timeoutMinutes * MINUTES_TO_MILLISECONDS));
+        for (String name : names) {
+            config.addTriggers(TriggerConfig.Trigger.newBuilder()
+                .setName(name)
+                .setStopDelayMs(stopDelaySeconds * 1000)
+                .build());
+        }
+        return config.build();
+    }
+
+    private static TraceConfig.DataSource dataSource(DataSourceConfig.Builder config) {
+        return TraceConfig.DataSource.newBuilder().setConfig(config.build()).build();
     }
 
     public void traceStop() {
@@ -306,11 +358,18 @@ public class PerfettoUtils implements TraceUtils.TraceEngine {
             Log.w(TAG, "No trace appears to be in progress. Stopping perfetto trace may not work.");
         }
 
-        String cmd = "perfetto --stop --attach=" + PERFETTO_TAG;
+        // Reattaching with an output file reads out the buffers of a ring buffer session.
+        File marker = new File(RING_BUFFER_MARKER);
+        String[] cmd = marker.exists()
+                ? new String[] {"perfetto", "--stop", "--attach=" + PERFETTO_TAG,
+                    "-o", TEMP_TRACE_LOCATION}
+                : new String[] {"perfetto", "--stop", "--attach=" + PERFETTO_TAG};
         try {
-            Process process = TraceUtils.execWithTimeout(cmd, null, STOP_TIMEOUT_MS);
+            Process process = TraceUtils.execWithTimeout(cmd, TEMP_DIR, STOP_TIMEOUT_MS);
             if (process != null && process.exitValue() != 0) {
                 Log.e(TAG, "perfetto traceStop failed with: " + process.exitValue());
+            } else if (process != null) {
+                marker.delete();
             }
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -326,17 +385,116 @@ public class PerfettoUtils implements TraceUtils.TraceEngine {
             return false;
         }
 
+        return saveInProgressTrace(outFile);
+    }
+
+    /*
+     * Clones the running session into outFile. The original session keeps recording, so unlike
+     * traceDump() this doesn't lose any coverage.
+     */
+    public boolean traceSnapshot(File outFile) {
+        TracingServiceState state = perfettoQueryServiceState();
+        TracingSession session = state == null ? null : findSession(state);
+        if (session == null) {
+            Log.e(TAG, "No trace is in progress, aborting trace snapshot.");
+            return false;
+        }
+
+        String[] cmd = {"perfetto",
+            "--clone", Long.toString(session.getId()),
+            "-o", TEMP_SNAPSHOT_LOCATION};
+
+        Log.v(TAG, "Cloning perfetto session " + session.getId() + ".");
+        try {
+            Process process = TraceUtils.execWithTimeout(cmd, TEMP_DIR, STOP_TIMEOUT_MS);
+            if (process == null) {
+                return false;
+            } else if (process.exitValue() != 0) {
+                Log.e(TAG, "perfetto traceSnapshot failed with: " + process.exitValue());
+                Files.deleteIfExists(Paths.get(TEMP_SNAPSHOT_LOCATION));
+                return false;
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        return saveTrace(TEMP_SNAPSHOT_LOCATION, outFile);
+    }
+
+    /*
+     * Moves the trace of a stopped session from its temporary location to outFile.
+     */
+    static boolean saveInProgressTrace(File outFile) {
+        return saveTrace(TEMP_TRACE_LOCATION, outFile);
+    }
+
+    /* Whether a trace that was being recorded when the device went down was left behind. */
+    static boolean hasInProgressTrace() {
+        return new File(TEMP_TRACE_LOCATION).length() > 0;
+    }
+
+    /*
+     * Saves what was left behind of a trace that was being recorded when the device rebooted or
+     * traced died, to outFile. The trace is cut after its last complete packet, so that it can
+     * be opened. The complete packets are handed to the visitors as they are scanned. Must not
+     * be called while a trace is being recorded.
+     */
+    static boolean salvageInProgressTrace(File outFile,
+            TracePacketReader.PacketVisitor... visitors) {
+        File temp = new File(TEMP_TRACE_LOCATION);
+        long length = temp.length();
+        long completeLength;
+        try {
+            completeLength = TracePacketReader.findCompleteLength(temp, visitors);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to scan the interrupted trace", e);
+            return false;
+        }
+
+        if (completeLength == 0) {
+            Log.w(TAG, "The interrupted trace has no complete packets, deleting it.");
+            temp.delete();
+            return false;
+        }
+        if (completeLength < length) {
+            Log.w(TAG, "Truncating the interrupted trace from " + length + " to "
+                    + completeLength + " bytes.");
+            try {
+                Os.truncate(TEMP_TRACE_LOCATION, completeLength);
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Failed to truncate the interrupted trace", e);
+                return false;
+            }
+        }
+        return saveTrace(TEMP_TRACE_LOCATION, outFile);
+    }
+
+    /*
+     * Moves a finished trace from the given temporary location to outFile.
+     */
+    static boolean saveTrace(String tempLocation, File outFile) {
         // Short-circuit if the file we're trying to dump to doesn't exist.
-        if (!Files.exists(Paths.get(TEMP_TRACE_LOCATION))) {
-            Log.e(TAG, "In-progress trace file doesn't exist, aborting trace dump.");
+        if (!Files.exists(Paths.get(tempLocation))) {
+            Log.e(TAG, "Temporary trace file " + tempLocation + " doesn't exist, aborting trace "
+                    + "dump.");
             return false;
         }
 
         Log.v(TAG, "Saving perfetto trace to " + outFile);
 
         try {
-            Os.rename(TEMP_TRACE_LOCATION, outFile.getCanonicalPath());
-        } catch (Exception e) {
+            Os.rename(tempLocation, outFile.getCanonicalPath());
+        } catch (ErrnoException e) {
+            // The output directory is on another filesystem than the temporary trace.
+            if (e.errno != OsConstants.EXDEV) {
+                throw new RuntimeException(e);
+            }
+            try {
+                moveAcrossFilesystems(new File(tempLocation), outFile);
+            } catch (ErrnoException | IOException copyException) {
+                throw new RuntimeException(copyException);
+            }
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
@@ -345,8 +503,73 @@ public class PerfettoUtils implements TraceUtils.TraceEngine {
         return true;
     }
 
+    /*
+     * Copies a trace to outFile on another filesystem, then deletes the original.
+     *
+     * The copy goes through FileChannel.transferTo(), which the kernel serves with sendfile()
+     * without copying the data through this process. The space is reserved up front, so that a
+     * full volume fails before anything is copied and the trace can be laid out contiguously.
+     * The copy is written under a hidden name and synced before it is renamed into place and
+     * the original is deleted, so a crash can't lose both.
+     */
+    private static void moveAcrossFilesystems(File source, File outFile)
+            throws ErrnoException, IOException {
+        File partial = new File(outFile.getParentFile(), "." + outFile.getName() + ".tmp");
+        long startMs = SystemClock.elapsedRealtime();
+        long size;
+        try (FileInputStream inStream = new FileInputStream(source);
+                FileOutputStream outStream = new FileOutputStream(partial);
+                FileChannel in = inStream.getChannel();
+                FileChannel out = outStream.getChannel()) {
+            size = in.size();
+            preallocate(outStream.getFD(), size);
+            for (long position = 0; position < size; ) {
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) {
+                    throw new IOException("Copy of " + source + " stalled at " + position);
+                }
+                position += transferred;
+            }
+            Os.fsync(outStream.getFD());
+        } catch (ErrnoException | IOException e) {
+            partial.delete();
+            throw e;
+        }
+
+        Os.rename(partial.getPath(), outFile.getPath());
+        fsyncDirectory(outFile.getParentFile());
+        source.delete();
+
+        long durationMs = SystemClock.elapsedRealtime() - startMs;
+        Log.i(TAG, "Copied " + size + " bytes to " + outFile + " in " + durationMs + " ms.");
+    }
+
+    private static void preallocate(FileDescriptor fd, long size) throws ErrnoException {
+        if (size == 0) {
+            return;
+        }
+        try {
+            Os.posix_fallocate(fd, 0, size);
+        } catch (ErrnoException e) {
+            // Not every filesystem supports it, and the copy works without it.
+            if (e.errno != OsConstants.EOPNOTSUPP) {
+                throw e;
+            }
+        }
+    }
+
+    // Makes the rename of a file in dir durable.
+    private static void fsyncDirectory(File dir) throws ErrnoException {
+        FileDescriptor fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+        try {
+            Os.fsync(fd);
+        } finally {
+            Os.close(fd);
+        }
+    }
+
     public boolean isTracingOn() {
-        String cmd = "perfetto --is_detached=" + PERFETTO_TAG;
+        String[] cmd = {"perfetto", "--is_detached=" + PERFETTO_TAG};
 
         try {
             Process process = TraceUtils.exec(cmd);
@@ -367,48 +590,53 @@ public class PerfettoUtils implements TraceUtils.TraceEngine {
         }
     }
 
-    public static TreeMap<String,String> perfettoListCategories() {
-        String cmd = "perfetto --query-raw";
+    /*
+     * Returns the tracing service state from `perfetto --query-raw`, or null if the query
+     * failed or timed out.
+     */
+    public TracingServiceState queryServiceState() {
+        return perfettoQueryServiceState();
+    }
 
-        Log.v(TAG, "Listing tags: " + cmd);
-        try {
+    /*
+     * Returns the Traceur session in the given service state, or null if there is none.
+     */
+    static TracingSession findSession(TracingServiceState state) {
+        for (TracingSession session : state.getTracingSessionsList()) {
+            if (PERFETTO_TAG.equals(session.getUniqueSessionName())) {
+                return session;
+            }
+        }
+        return null;
+    }
 
-            TreeMap<String, String> result = new TreeMap<>();
+    static TracingServiceState perfettoQueryServiceState() {
+        String[] cmd = {"perfetto", "--query-raw"};
 
+        Log.v(TAG, "Querying service state: " + String.join(" ", cmd));
+        try {
             // execWithTimeout() cannot be used because stdout must be consumed before the process
             // is terminated.
             Process perfetto = TraceUtils.exec(cmd, null, false);
+            long startNanos = SystemClock.elapsedRealtimeNanos();
             TracingServiceState serviceState =
-                    TracingServiceState.parseFrom(perfetto.getInputStream());
+                    ServiceStateDecoder.decode(perfetto.getInputStream());
+            Log.v(TAG, "Decoded service state in " + TimeUnit.NANOSECONDS.toMicros(
+                    SystemClock.elapsedRealtimeNanos() - startNanos) + " us.");
 
             // Destroy the perfetto process if it times out.
             if (!perfetto.waitFor(LIST_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
-                Log.e(TAG, "perfettoListCategories timed out after " + LIST_TIMEOUT_MS + " ms.");
+                Log.e(TAG, "queryServiceState timed out after " + LIST_TIMEOUT_MS + " ms.");
                 perfetto.destroyForcibly();
-                return result;
+                return null;
             }
 
             // The perfetto process completed and failed, but does not need to be destroyed.
             if (perfetto.exitValue() != 0) {
-                Log.e(TAG, "perfettoListCategories failed with: " + perfetto.exitValue());
-            }
-
-            List<AtraceCategory> categories = null;
-
-            for (DataSource dataSource : serviceState.getDataSourcesList()) {
-                DataSourceDescriptor dataSrcDescriptor = dataSource.getDsDescriptor();
-                if (dataSrcDescriptor.getName().equals("linux.ftrace")){
-                    categories = dataSrcDescriptor.getFtraceDescriptor().getAtraceCategoriesList();
-                    break;
-                }
-            }
-
-            if (categories != null) {
-                for (AtraceCategory category : categories) {
-                    result.put(category.getName(), category.getDescription());
-                }
+                Log.e(TAG, "queryServiceState failed with: " + perfetto.exitValue());
+                return null;
             }
-            return result;
+            return serviceState;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Launches helper binaries such as perfetto and atrace.
+ *
+ * Commands are passed as argv arrays and exec'd directly, without an intermediate shell. The
+ * output of launched processes is drained on a small shared executor instead of on a pair of
+ * new threads per process. A stream holds its drainer until the process closes it, so the
+ * executor grows as needed rather than queueing streams that nobody would drain.
+ */
+public class ProcessLauncher {
+
+    static final String TAG = "Traceur";
+
+    private static final long DRAIN_THREAD_KEEP_ALIVE_SECONDS = 30;
+    private static final int DRAIN_BUFFER_SIZE = 4 << 10;
+
+    private static final ExecutorService DRAIN_EXECUTOR = createDrainExecutor();
+
+    // Drainer threads are reused across processes, so their buffers are too.
+    private static final ThreadLocal<byte[]> DRAIN_BUFFER =
+            ThreadLocal.withInitial(() -> new byte[DRAIN_BUFFER_SIZE]);
+    private static final ThreadLocal<ByteArrayOutputStream> DRAIN_LINE =
+            ThreadLocal.withInitial(() -> new ByteArrayOutputStream());
+
+    // Spawn latency metrics, i.e. the time spent in fork/exec for each launched process.
+    private static final AtomicInteger sSpawnCount = new AtomicInteger();
+    private static final AtomicLong sSpawnTotalNanos = new AtomicLong();
+    private static final AtomicLong sSpawnMaxNanos = new AtomicLong();
+
+    /**
+     * Starts the given command.
+     *
+     * @param argv the command and its arguments. argv[0] is looked up on the PATH.
+     * @param tmpdir if non-null, exported to the command as TMPDIR.
+     * @param stdout where to send the command's stdout. If null, stdout is drained to logcat,
+     *     if {@link ProcessBuilder.Redirect#PIPE} the caller is responsible for consuming it.
+     */
+    public static Process exec(String[] argv, String tmpdir, ProcessBuilder.Redirect stdout)
+            throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(argv);
+        if (tmpdir != null) {
+            builder.environment().put("TMPDIR", tmpdir);
+        }
+        if (stdout != null) {
+            builder.redirectOutput(stdout);
+        }
+
+        Log.v(TAG, "exec: " + (tmpdir == null ? "" : "TMPDIR=" + tmpdir + " ")
+                + Arrays.toString(argv));
+
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        Process process = builder.start();
+        recordSpawn(argv[0], SystemClock.elapsedRealtimeNanos() - startNanos);
+
+        drain(argv[0] + ":stderr", process.getErrorStream());
+        if (stdout == null) {
+            drain(argv[0] + ":stdout", process.getInputStream());
+        }
+        return process;
+    }
+
+    /**
+     * Starts the given command, writes stdin to it and waits for it to exit.
+     *
+     * Returns the Process if the command terminated on time and null if it timed out or was
+     * cancelled, in which case it has been destroyed. A command that exits without reading all
+     * of stdin is not an error here: its exit code says whether it failed.
+     */
+    public static Process execWithTimeout(String[] argv, String tmpdir, long timeoutMs,
+            byte[] stdin, CancellationSignal signal) throws IOException {
+        Process process = exec(argv, tmpdir, null);
+        OutputStream out = process.getOutputStream();
+        try {
+            if (stdin != null) {
+                out.write(stdin);
+            }
+            out.close();
+        } catch (IOException e) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                // Already reported by the write.
+            }
+            if (!isBrokenPipe(e)) {
+                throw e;
+            }
+            Log.w(TAG, "Command " + argv[0] + " exited before reading all of stdin.");
+        }
+        if (!waitFor(process, timeoutMs, signal)) {
+            Log.e(TAG, "Command " + Arrays.toString(argv) + " did not finish within "
+                    + timeoutMs + " ms.");
+            return null;
+        }
+        return process;
+    }
+
+    /**
+     * Waits for the process to exit. If it does not exit within timeoutMs, or the signal is
+     * cancelled first, the process is destroyed and false is returned.
+     */
+    public static boolean waitFor(Process process, long timeoutMs, CancellationSignal signal) {
+        if (signal != null) {
+            signal.setOnCancelListener(() -> process.destroyForcibly());
+        }
+        try {
+            if (process.waitFor(timeoutMs, TimeUnit.MILLISECONDS)
+                    && (signal == null || !signal.isCanceled())) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (signal != null) {
+                signal.setOnCancelListener(null);
+            }
+        }
+        process.destroyForcibly();
+        return false;
+    }
+
+    // Writes to a pipe whose reader has exited fail with EPIPE, since apps ignore SIGPIPE.
+    private static boolean isBrokenPipe(IOException e) {
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof ErrnoException
+                    && ((ErrnoException) cause).errno == OsConstants.EPIPE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void dump(PrintWriter pw) {
+        int count = sSpawnCount.get();
+        pw.println("Process spawns: " + count);
+        if (count > 0) {
+            pw.println("  avg spawn latency: "
+                    + TimeUnit.NANOSECONDS.toMicros(sSpawnTotalNanos.get() / count) + " us");
+            pw.println("  max spawn latency: "
+                    + TimeUnit.NANOSECONDS.toMicros(sSpawnMaxNanos.get()) + " us");
+        }
+    }
+
+    private static void recordSpawn(String name, long nanos) {
+        int count = sSpawnCount.incrementAndGet();
+        long total = sSpawnTotalNanos.addAndGet(nanos);
+        sSpawnMaxNanos.accumulateAndGet(nanos, Math::max);
+        Log.v(TAG, "Spawned " + name + " in " + TimeUnit.NANOSECONDS.toMicros(nanos) + " us"
+                + " (count=" + count
+                + ", avg=" + TimeUnit.NANOSECONDS.toMicros(total / count) + " us)");
+    }
+
+    /**
+     * Redirects an InputStream to logcat, line by line.
+     */
+    private static void drain(final String tag, final InputStream in) {
+        DRAIN_EXECUTOR.execute(() -> {
+            byte[] buf = DRAIN_BUFFER.get();
+            // Lines are decoded whole, so that multi-byte characters aren't split.
+            ByteArrayOutputStream line = DRAIN_LINE.get();
+            line.reset();
+            int read;
+            try (InputStream stream = in) {
+                while ((read = stream.read(buf)) != -1) {
+                    int start = 0;
+                    for (int i = 0; i < read; i++) {
+                        if (buf[i] == '\n') {
+                            line.write(buf, start, i - start);
+                            Log.e(TAG, tag + ": " + line.toString(StandardCharsets.UTF_8));
+                            line.reset();
+                            start = i + 1;
+                        }
+                    }
+                    line.write(buf, start, read - start);
+                }
+                if (line.size() > 0) {
+                    Log.e(TAG, tag + ": " + line.toString(StandardCharsets.UTF_8));
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error while streaming " + tag);
+            } finally {
+                line.reset();
+            }
+        });
+    }
+
+    private static ExecutorService createDrainExecutor() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, "traceur-drain-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        // Idle drainers are kept for a while, for the next process.
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, DRAIN_THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new SynchronousQueue<>(), factory);
+    }
+}
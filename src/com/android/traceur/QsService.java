@@ -30,6 +30,7 @@ public class QsService extends TileService {
         if (sListeningInstance != null) {
             sListeningInstance.update();
         }
+        SnapshotQsService.updateTile();
     }
 
     @Override
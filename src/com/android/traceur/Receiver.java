@@ -28,6 +28,7 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.database.ContentObserver;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Handler;
 import android.os.RemoteException;
@@ -41,14 +42,24 @@ import android.util.Log;
 
 import com.android.internal.statusbar.IStatusBarService;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
+import perfetto.protos.TraceConfigOuterClass.TraceConfig.TriggerConfig;
+
 public class Receiver extends BroadcastReceiver {
 
     public static final String STOP_ACTION = "com.android.traceur.STOP";
     public static final String OPEN_ACTION = "com.android.traceur.OPEN";
+    public static final String SNAPSHOT_ACTION = "com.android.traceur.SNAPSHOT";
+    public static final String TRIGGER_ACTION = "com.android.traceur.TRIGGER";
+
+    /* Name of the trigger to fire with TRIGGER_ACTION. If missing, the triggers configured in
+     * preferences are fired. */
+    public static final String EXTRA_TRIGGER_NAME = "trigger_name";
     public static final String BUGREPORT_STARTED =
             "com.android.internal.intent.action.BUGREPORT_STARTED";
 
@@ -69,6 +80,9 @@ public class Receiver extends BroadcastReceiver {
 
     private static final String TAG = "Traceur";
 
+    // Value of the buffer size preference that picks the size automatically.
+    static final int AUTO_BUFFER_SIZE = 0;
+
     private static final String BETTERBUG_PACKAGE_NAME =
             "com.google.android.apps.internal.betterbug";
 
@@ -83,6 +97,11 @@ public class Receiver extends BroadcastReceiver {
             Log.i(TAG, "Received BOOT_COMPLETE");
             createNotificationChannels(context);
             updateDeveloperOptionsWatcher(context);
+            // Data sources may have changed since the catalog was last refreshed.
+            CategoryCatalog.refreshAsync(context);
+            // Save what was recorded before the reboot, before a new trace replaces it.
+            TraceService.salvageTrace(context);
+            TraceCompactionJobService.schedule(context);
             // We know that Perfetto won't be tracing already at boot, so pass the
             // tracingIsOff argument to avoid the Perfetto check.
             updateTracing(context, /* assumeTracingIsOff= */ true);
@@ -100,6 +119,25 @@ public class Receiver extends BroadcastReceiver {
             prefs.edit().putBoolean(
                     context.getString(R.string.pref_key_tracing_on), false).commit();
             updateTracing(context);
+        } else if (SNAPSHOT_ACTION.equals(intent.getAction())) {
+            if (prefs.getBoolean(context.getString(R.string.pref_key_tracing_on), false)) {
+                TraceService.snapshotTracing(context);
+            } else {
+                Log.w(TAG, "No trace is being recorded, ignoring snapshot request.");
+            }
+        } else if (TRIGGER_ACTION.equals(intent.getAction())) {
+            String name = intent.getStringExtra(EXTRA_TRIGGER_NAME);
+            final List<String> names = name != null
+                    ? Collections.singletonList(name) : getTriggerNames(context, prefs);
+            // trigger_perfetto is waited for off the main thread.
+            final PendingResult result = goAsync();
+            AsyncTask.execute(() -> {
+                try {
+                    TraceUtils.activateTriggers(names);
+                } finally {
+                    result.finish();
+                }
+            });
         } else if (OPEN_ACTION.equals(intent.getAction())) {
             context.sendBroadcast(new Intent(Intent.ACTION_CLOSE_SYSTEM_DIALOGS));
             context.startActivity(new Intent(context, MainActivity.class)
@@ -130,23 +168,29 @@ public class Receiver extends BroadcastReceiver {
         boolean prefsTracingOn =
                 prefs.getBoolean(context.getString(R.string.pref_key_tracing_on), false);
 
-        boolean traceUtilsTracingOn = assumeTracingIsOff ? false : TraceUtils.isTracingOn();
+        // A single query of the tracing service answers both whether a session is running and
+        // which categories are available.
+        TraceUtils.SystemState state =
+                assumeTracingIsOff ? null : TraceUtils.getSystemState(context);
+        boolean traceUtilsTracingOn = state != null && state.isTracingOn();
 
         if (prefsTracingOn != traceUtilsTracingOn) {
             if (prefsTracingOn) {
+                Set<String> available = state != null
+                        ? state.getCategories().keySet()
+                        : TraceUtils.listCategories(context).keySet();
+
                 // Show notification if the tags in preferences are not all actually available.
-                Set<String> activeAvailableTags = getActiveTags(context, prefs, true);
-                Set<String> activeTags = getActiveTags(context, prefs, false);
+                Set<String> activeAvailableTags = getActiveTags(context, prefs, available, true);
+                Set<String> activeTags = getActiveTags(context, prefs, available, false);
 
                 if (!activeAvailableTags.equals(activeTags)) {
-                    postCategoryNotification(context, prefs);
+                    postCategoryNotification(context, prefs, available);
                 }
 
-                int bufferSize = Integer.parseInt(
-                    prefs.getString(context.getString(R.string.pref_key_buffer_size),
-                        context.getString(R.string.default_buffer_size)));
-
                 boolean appTracing = prefs.getBoolean(context.getString(R.string.pref_key_apps), true);
+
+                int bufferSize = getBufferSizeKb(context, prefs, activeAvailableTags, appTracing);
                 boolean longTrace = prefs.getBoolean(context.getString(R.string.pref_key_long_traces), true);
 
                 int maxLongTraceSize = Integer.parseInt(
@@ -157,8 +201,20 @@ public class Receiver extends BroadcastReceiver {
                     prefs.getString(context.getString(R.string.pref_key_max_long_trace_duration),
                         context.getString(R.string.default_long_trace_duration)));
 
+                TriggerConfig triggerConfig = PerfettoUtils.buildTriggerConfig(
+                    prefs.getString(context.getString(R.string.pref_key_trigger_mode),
+                        PerfettoUtils.TRIGGER_MODE_OFF),
+                    getTriggerNames(context, prefs),
+                    Integer.parseInt(
+                        prefs.getString(context.getString(R.string.pref_key_trigger_timeout),
+                            context.getString(R.string.default_trigger_timeout))),
+                    Integer.parseInt(
+                        prefs.getString(context.getString(R.string.pref_key_trigger_stop_delay),
+                            context.getString(R.string.default_trigger_stop_delay))));
+
                 TraceService.startTracing(context, activeAvailableTags, bufferSize,
-                    appTracing, longTrace, maxLongTraceSize, maxLongTraceDuration);
+                    appTracing, longTrace, maxLongTraceSize, maxLongTraceDuration,
+                    triggerConfig);
             } else {
                 TraceService.stopTracing(context);
             }
@@ -178,26 +234,29 @@ public class Receiver extends BroadcastReceiver {
             PreferenceManager.getDefaultSharedPreferences(context)
               .getBoolean(context.getString(R.string.pref_key_quick_setting), false);
 
-        ComponentName name = new ComponentName(context, QsService.class);
-        context.getPackageManager().setComponentEnabledSetting(name,
-            quickSettingsEnabled
-                ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
-                : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
-            PackageManager.DONT_KILL_APP);
-
         IStatusBarService statusBarService = IStatusBarService.Stub.asInterface(
             ServiceManager.checkService(Context.STATUS_BAR_SERVICE));
 
-        try {
-            if (statusBarService != null) {
-                if (quickSettingsEnabled) {
-                    statusBarService.addTile(name);
-                } else {
-                    statusBarService.remTile(name);
+        // The snapshot tile comes and goes with the record tile.
+        for (Class<?> tile : Arrays.asList(QsService.class, SnapshotQsService.class)) {
+            ComponentName name = new ComponentName(context, tile);
+            context.getPackageManager().setComponentEnabledSetting(name,
+                quickSettingsEnabled
+                    ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                    : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                PackageManager.DONT_KILL_APP);
+
+            try {
+                if (statusBarService != null) {
+                    if (quickSettingsEnabled) {
+                        statusBarService.addTile(name);
+                    } else {
+                        statusBarService.remTile(name);
+                    }
                 }
+            } catch (RemoteException e) {
+                Log.e(TAG, "Failed to modify QS tile for Traceur.", e);
             }
-        } catch (RemoteException e) {
-            Log.e(TAG, "Failed to modify QS tile for Traceur.", e);
         }
 
         QsService.updateTile();
@@ -239,7 +298,7 @@ public class Receiver extends BroadcastReceiver {
                                 .commit();
                             updateQuickSettings(context);
                             // Stop an ongoing trace if one exists.
-                            if (TraceUtils.isTracingOn()) {
+                            if (TraceUtils.getSystemState(context).isTracingOn()) {
                                 TraceService.stopTracingWithoutSaving(context);
                             }
                         }
@@ -263,11 +322,12 @@ public class Receiver extends BroadcastReceiver {
                 PackageManager.DONT_KILL_APP);
     }
 
-    private static void postCategoryNotification(Context context, SharedPreferences prefs) {
+    private static void postCategoryNotification(Context context, SharedPreferences prefs,
+            Set<String> available) {
         Intent sendIntent = new Intent(context, MainActivity.class);
 
         String title = context.getString(R.string.tracing_categories_unavailable);
-        String msg = TextUtils.join(", ", getActiveUnavailableTags(context, prefs));
+        String msg = TextUtils.join(", ", getActiveUnavailableTags(context, prefs, available));
         final Notification.Builder builder =
             new Notification.Builder(context, NOTIFICATION_CHANNEL_OTHER)
                 .setSmallIcon(R.drawable.bugfood_icon)
@@ -315,9 +375,15 @@ public class Receiver extends BroadcastReceiver {
     }
 
     public static Set<String> getActiveTags(Context context, SharedPreferences prefs, boolean onlyAvailable) {
-        Set<String> tags = prefs.getStringSet(context.getString(R.string.pref_key_tags),
-                getDefaultTagList());
-        Set<String> available = TraceUtils.listCategories().keySet();
+        return getActiveTags(context, prefs, TraceUtils.listCategories(context).keySet(),
+                onlyAvailable);
+    }
+
+    static Set<String> getActiveTags(Context context, SharedPreferences prefs,
+            Set<String> available, boolean onlyAvailable) {
+        // Copied, since the set returned by SharedPreferences must not be modified.
+        Set<String> tags = new ArraySet<>(prefs.getStringSet(
+                context.getString(R.string.pref_key_tags), getDefaultTagList()));
 
         if (onlyAvailable) {
             tags.retainAll(available);
@@ -328,9 +394,14 @@ public class Receiver extends BroadcastReceiver {
     }
 
     public static Set<String> getActiveUnavailableTags(Context context, SharedPreferences prefs) {
-        Set<String> tags = prefs.getStringSet(context.getString(R.string.pref_key_tags),
-                getDefaultTagList());
-        Set<String> available = TraceUtils.listCategories().keySet();
+        return getActiveUnavailableTags(context, prefs,
+                TraceUtils.listCategories(context).keySet());
+    }
+
+    static Set<String> getActiveUnavailableTags(Context context, SharedPreferences prefs,
+            Set<String> available) {
+        Set<String> tags = new ArraySet<>(prefs.getStringSet(
+                context.getString(R.string.pref_key_tags), getDefaultTagList()));
 
         tags.removeAll(available);
 
@@ -338,6 +409,53 @@ public class Receiver extends BroadcastReceiver {
         return tags;
     }
 
+    /*
+     * Returns the per-CPU buffer size from preferences. With the automatic setting, the size
+     * is estimated from previous sessions with the same categories.
+     */
+    static int getBufferSizeKb(Context context, SharedPreferences prefs,
+            Set<String> tags, boolean apps) {
+        int defaultBufferSize = Integer.parseInt(context.getString(R.string.default_buffer_size));
+        int bufferSize = Integer.parseInt(
+            prefs.getString(context.getString(R.string.pref_key_buffer_size),
+                context.getString(R.string.default_buffer_size)));
+        if (bufferSize == AUTO_BUFFER_SIZE) {
+            boolean longTrace =
+                    prefs.getBoolean(context.getString(R.string.pref_key_long_traces), true);
+            return BufferSizeEstimator.getBufferSizeKb(context, tags, apps, longTrace,
+                    defaultBufferSize);
+        }
+        return bufferSize;
+    }
+
+    /*
+     * Returns the trigger names from preferences, which are entered as a comma-separated list.
+     */
+    static List<String> getTriggerNames(Context context, SharedPreferences prefs) {
+        String names = prefs.getString(context.getString(R.string.pref_key_trigger_names),
+                context.getString(R.string.default_trigger_names));
+        List<String> result = new ArrayList<>();
+        for (String name : names.split(",")) {
+            if (!name.trim().isEmpty()) {
+                result.add(name.trim());
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Returns how many segments of a rolling long trace to keep, or 0 if long traces don't
+     * roll over when they are full.
+     */
+    static int getRollingSegments(Context context, SharedPreferences prefs) {
+        if (!prefs.getBoolean(context.getString(R.string.pref_key_long_traces), true)) {
+            return 0;
+        }
+        return Integer.parseInt(prefs.getString(
+                context.getString(R.string.pref_key_rolling_segments),
+                context.getString(R.string.default_rolling_segments)));
+    }
+
     public static Set<String> getDefaultTagList() {
         if (mDefaultTagList == null) {
             mDefaultTagList = new ArraySet<String>(Build.TYPE.equals("user")
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import perfetto.protos.DataSourceDescriptorOuterClass.DataSourceDescriptor;
+import perfetto.protos.FtraceDescriptorOuterClass.FtraceDescriptor;
+import perfetto.protos.FtraceDescriptorOuterClass.FtraceDescriptor.AtraceCategory;
+import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState;
+import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState.DataSource;
+import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState.TracingSession;
+
+/**
+ * Decodes the parts of a serialized TracingServiceState that Traceur uses, straight from the
+ * stream.
+ *
+ * A full parse materializes every producer and every data source descriptor, including the
+ * large track_event and GPU counter descriptors. This decoder skips over all of those and
+ * keeps only:
+ *   - the name of each data source,
+ *   - the atrace categories of the linux.ftrace data source,
+ *   - the tracing sessions.
+ * The result is a pruned TracingServiceState, so callers can use it like a fully parsed one.
+ */
+public class ServiceStateDecoder {
+
+    private static final String FTRACE_DATA_SOURCE = "linux.ftrace";
+
+    public static TracingServiceState decode(InputStream in) throws IOException {
+        return decode(CodedInputStream.newInstance(in));
+    }
+
+    public static TracingServiceState decode(byte[] bytes) throws IOException {
+        return decode(CodedInputStream.newInstance(bytes));
+    }
+
+    private static TracingServiceState decode(CodedInputStream in) throws IOException {
+        TracingServiceState.Builder state = TracingServiceState.newBuilder();
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case TracingServiceState.DATA_SOURCES_FIELD_NUMBER:
+                    DataSource dataSource = readDataSource(in);
+                    if (dataSource != null) {
+                        state.addDataSources(dataSource);
+                    }
+                    break;
+                case TracingServiceState.TRACING_SESSIONS_FIELD_NUMBER:
+                    // Sessions are few and small, so they are parsed in full.
+                    state.addTracingSessions(in.readMessage(TracingSession.parser(),
+                            ExtensionRegistryLite.getEmptyRegistry()));
+                    break;
+                default:
+                    // Producers and the session counters.
+                    in.skipField(tag);
+                    break;
+            }
+        }
+        return state.build();
+    }
+
+    private static DataSource readDataSource(CodedInputStream in) throws IOException {
+        DataSourceDescriptor descriptor = null;
+        int oldLimit = in.pushLimit(in.readRawVarint32());
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            if (WireFormat.getTagFieldNumber(tag) == DataSource.DS_DESCRIPTOR_FIELD_NUMBER) {
+                descriptor = readDescriptor(in);
+            } else {
+                in.skipField(tag);
+            }
+        }
+        in.popLimit(oldLimit);
+
+        if (descriptor == null) {
+            return null;
+        }
+        return DataSource.newBuilder().setDsDescriptor(descriptor).build();
+    }
+
+    private static DataSourceDescriptor readDescriptor(CodedInputStream in) throws IOException {
+        String name = "";
+        List<AtraceCategory> categories = null;
+        int oldLimit = in.pushLimit(in.readRawVarint32());
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case DataSourceDescriptor.NAME_FIELD_NUMBER:
+                    name = in.readString();
+                    break;
+                case DataSourceDescriptor.FTRACE_DESCRIPTOR_FIELD_NUMBER:
+                    categories = readAtraceCategories(in);
+                    break;
+                default:
+                    // Notably the track_event and gpu_counter descriptors.
+                    in.skipField(tag);
+                    break;
+            }
+        }
+        in.popLimit(oldLimit);
+
+        DataSourceDescriptor.Builder descriptor = DataSourceDescriptor.newBuilder().setName(name);
+        // The name may come after the ftrace descriptor on the wire.
+        if (categories != null && name.equals(FTRACE_DATA_SOURCE)) {
+            descriptor.setFtraceDescriptor(
+                    FtraceDescriptor.newBuilder().addAllAtraceCategories(categories).build());
+        }
+        return descriptor.build();
+    }
+
+    private static List<AtraceCategory> readAtraceCategories(CodedInputStream in)
+            throws IOException {
+        List<AtraceCategory> categories = new ArrayList<>();
+        int oldLimit = in.pushLimit(in.readRawVarint32());
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            if (WireFormat.getTagFieldNumber(tag)
+                    == FtraceDescriptor.ATRACE_CATEGORIES_FIELD_NUMBER) {
+                categories.add(readAtraceCategory(in));
+            } else {
+                in.skipField(tag);
+            }
+        }
+        in.popLimit(oldLimit);
+        return categories;
+    }
+
+    private static AtraceCategory readAtraceCategory(CodedInputStream in) throws IOException {
+        String name = "";
+        String description = "";
+        int oldLimit = in.pushLimit(in.readRawVarint32());
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case AtraceCategory.NAME_FIELD_NUMBER:
+                    name = in.readString();
+                    break;
+                case AtraceCategory.DESCRIPTION_FIELD_NUMBER:
+                    description = in.readString();
+                    break;
+                default:
+                    in.skipField(tag);
+                    break;
+            }
+        }
+        in.popLimit(oldLimit);
+        return AtraceCategory.newBuilder().setName(name).setDescription(description).build();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.content.SharedPreferences;
+import android.graphics.drawable.Icon;
+import android.preference.PreferenceManager;
+import android.service.quicksettings.Tile;
+import android.service.quicksettings.TileService;
+
+/**
+ * Quick Settings tile that saves a snapshot of the ongoing trace. It is only clickable while a
+ * trace is being recorded, and is shown and hidden together with {@link QsService}.
+ */
+public class SnapshotQsService extends TileService {
+
+    private static SnapshotQsService sListeningInstance;
+
+    public static void updateTile() {
+        if (sListeningInstance != null) {
+            sListeningInstance.update();
+        }
+    }
+
+    @Override
+    public void onStartListening() {
+        sListeningInstance = this;
+        update();
+    }
+
+    @Override
+    public void onStopListening() {
+        if (sListeningInstance == this) {
+            sListeningInstance = null;
+        }
+    }
+
+    private void update() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        boolean tracingOn = prefs.getBoolean(getString(R.string.pref_key_tracing_on), false);
+
+        getQsTile().setIcon(Icon.createWithResource(this, R.drawable.bugfood_icon));
+        getQsTile().setState(tracingOn ? Tile.STATE_INACTIVE : Tile.STATE_UNAVAILABLE);
+        getQsTile().setLabel(getString(R.string.save_snapshot));
+        getQsTile().updateTile();
+    }
+
+    /** When we click the tile, save a snapshot of the ongoing trace. */
+    @Override
+    public void onClick() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        if (prefs.getBoolean(getString(R.string.pref_key_tracing_on), false)) {
+            TraceService.snapshotTracing(this);
+        }
+    }
+}
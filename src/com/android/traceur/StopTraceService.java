@@ -68,9 +68,18 @@ public class StopTraceService extends TraceService {
         boolean prefsTracingOn =
             prefs.getBoolean(context.getString(R.string.pref_key_tracing_on), false);
 
+        // A rolling long trace ends each time its current segment is full. Save the segment and
+        // start the next one, leaving tracing on.
+        if (intentAction.equals(TraceService.INTENT_ACTION_NOTIFY_SESSION_STOPPED)
+                && TraceService.isRolling(context)) {
+            super.onHandleIntent(intent);
+            Receiver.updateTracing(context);
+            return;
+        }
+
         // If the user thinks tracing is off and the trace processor agrees, we have no work to do.
         // We must still start a foreground service, but let's log as an FYI.
-        if (!prefsTracingOn && !TraceUtils.isTracingOn()) {
+        if (!prefsTracingOn && !TraceUtils.getSystemState(context).isTracingOn()) {
             Log.i(TAG, "StopTraceService does not see a trace to stop.");
         }
 
@@ -15,6 +15,7 @@
  */
 package com.android.traceur;
 
+import android.content.Context;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
@@ -27,12 +28,17 @@ import android.provider.DocumentsContract;
 import android.provider.DocumentsContract.Document;
 import android.provider.DocumentsContract.Root;
 import android.provider.Settings;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.util.Log;
 
 import com.android.internal.content.FileSystemProvider;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Adds an entry for traces in the file picker.
@@ -43,9 +49,34 @@ public class StorageProvider extends FileSystemProvider{
     public static final String AUTHORITY = "com.android.traceur.documents";
 
     private static final String DOC_ID_ROOT = "traces";
-    private static final String ROOT_DIR = "/data/local/traces";
     private static final String MIME_TYPE = "application/vnd.android.systrace";
 
+    // Companion documents holding the offset index of a trace, see TraceOffsetIndex.
+    private static final String DOC_ID_OFFSETS = "offsets";
+    private static final String OFFSETS_MIME_TYPE = "application/octet-stream";
+
+    // Extra document columns, from the metadata Traceur keeps for the traces it saved.
+    public static final String COLUMN_DURATION_MS = "duration_ms";
+    public static final String COLUMN_CATEGORIES = "categories";
+    public static final String COLUMN_ENGINE = "engine";
+    public static final String COLUMN_COMPRESSED_SIZE = "compressed_size";
+    public static final String COLUMN_UNCOMPRESSED_SIZE = "uncompressed_size";
+    // The document ID of the trace's offset index, if it has one.
+    public static final String COLUMN_OFFSET_INDEX = "offset_index";
+
+    /*
+     * Trims a trace to a window of time, for tools holding MANAGE_DOCUMENTS that pick the window
+     * themselves. Users trim from the trace saved notification instead. arg is the document ID
+     * of the trace, and the extras hold the window as boot times in ns, the clock of trace
+     * timestamps. Returns a bundle with the document ID the trimmed trace will have: it is
+     * trimmed by TraceService, which takes seconds for multi-gigabyte traces and posts a
+     * notification when it is done.
+     */
+    public static final String METHOD_TRIM = "com.android.traceur.TRIM";
+    public static final String EXTRA_START_NS = "start_ns";
+    public static final String EXTRA_END_NS = "end_ns";
+    public static final String EXTRA_DOCUMENT_ID = "document_id";
+
     private static final String[] DEFAULT_ROOT_PROJECTION = new String[] {
             Root.COLUMN_ROOT_ID,
             Root.COLUMN_ICON,
@@ -61,11 +92,26 @@ public class StorageProvider extends FileSystemProvider{
             Document.COLUMN_FLAGS,
             Document.COLUMN_SIZE,
             Document.COLUMN_LAST_MODIFIED,
+            Document.COLUMN_SUMMARY,
+            COLUMN_DURATION_MS,
+            COLUMN_CATEGORIES,
+            COLUMN_ENGINE,
+            COLUMN_COMPRESSED_SIZE,
+            COLUMN_UNCOMPRESSED_SIZE,
+            COLUMN_OFFSET_INDEX,
     };
 
+    private File mRootDir;
+    private TraceDocumentIndex mIndex;
+
     @Override
     public boolean onCreate() {
         super.onCreate(DEFAULT_DOCUMENT_PROJECTION);
+        mRootDir = TraceUtils.getOutputDirectory(getContext());
+        mIndex = new TraceDocumentIndex(getContext(), mRootDir,
+                () -> getContext().getContentResolver().notifyChange(
+                        buildNotificationUri(DOC_ID_ROOT), null));
+        mIndex.startWatching();
         return true;
     }
 
@@ -89,7 +135,7 @@ public class StorageProvider extends FileSystemProvider{
 
         final MatrixCursor.RowBuilder row = result.newRow();
         row.add(Root.COLUMN_ROOT_ID, DOC_ID_ROOT);
-        row.add(Root.COLUMN_FLAGS, Root.FLAG_LOCAL_ONLY);
+        row.add(Root.COLUMN_FLAGS, Root.FLAG_LOCAL_ONLY | Root.FLAG_SUPPORTS_SEARCH);
         row.add(Root.COLUMN_MIME_TYPES, MIME_TYPE);
         row.add(Root.COLUMN_ICON, R.drawable.bugfood_icon_green);
         row.add(Root.COLUMN_TITLE,
@@ -102,24 +148,39 @@ public class StorageProvider extends FileSystemProvider{
     public Cursor queryDocument(String documentId, String[] projection)
             throws FileNotFoundException {
         final MatrixCursor result = new MatrixCursor(resolveDocumentProjection(projection));
-        final MatrixCursor.RowBuilder row = result.newRow();
-        File file;
-        String mimeType;
 
         if (DOC_ID_ROOT.equals(documentId)) {
-            file = new File(ROOT_DIR);
-            mimeType = Document.MIME_TYPE_DIR;
-        } else {
-            file = getFileForDocId(documentId);
-            mimeType = MIME_TYPE;
+            File root = mRootDir;
+            final MatrixCursor.RowBuilder row = result.newRow();
+            row.add(Document.COLUMN_DOCUMENT_ID, documentId);
+            row.add(Document.COLUMN_MIME_TYPE, Document.MIME_TYPE_DIR);
+            row.add(Document.COLUMN_DISPLAY_NAME, root.getName());
+            row.add(Document.COLUMN_LAST_MODIFIED, root.lastModified());
+            row.add(Document.COLUMN_SIZE, root.length());
+            row.add(Document.COLUMN_FLAGS, Document.FLAG_DIR_PREFERS_LAST_MODIFIED | Document.FLAG_SUPPORTS_DELETE);
+            return result;
+        }
+
+        File file = getFileForDocId(documentId);
+        if (isOffsetIndex(documentId)) {
+            final MatrixCursor.RowBuilder row = result.newRow();
+            row.add(Document.COLUMN_DOCUMENT_ID, documentId);
+            row.add(Document.COLUMN_MIME_TYPE, OFFSETS_MIME_TYPE);
+            row.add(Document.COLUMN_DISPLAY_NAME, file.getName());
+            row.add(Document.COLUMN_LAST_MODIFIED, file.lastModified());
+            row.add(Document.COLUMN_SIZE, file.length());
+            row.add(Document.COLUMN_FLAGS, 0);
+            return result;
         }
 
-        row.add(Document.COLUMN_DOCUMENT_ID, documentId);
-        row.add(Document.COLUMN_MIME_TYPE, mimeType);
-        row.add(Document.COLUMN_DISPLAY_NAME, file.getName());
-        row.add(Document.COLUMN_LAST_MODIFIED, file.lastModified());
-        row.add(Document.COLUMN_SIZE, file.length());
-        row.add(Document.COLUMN_FLAGS, Document.FLAG_DIR_PREFERS_LAST_MODIFIED | Document.FLAG_SUPPORTS_DELETE);
+        TraceDocumentIndex.Document document = mIndex.getDocument(file.getName());
+        if (document == null) {
+            // Not indexed yet, e.g. the observer hasn't caught up with a new trace.
+            document = new TraceDocumentIndex.Document(file.getName(), file.length(),
+                    file.lastModified(), TraceMetadata.load(getContext(), file.getName()));
+            document.hasOffsetIndex = TraceOffsetIndex.exists(getContext(), file.getName());
+        }
+        includeDocument(result, document);
         return result;
     }
 
@@ -127,7 +188,17 @@ public class StorageProvider extends FileSystemProvider{
     public Cursor queryChildDocuments(
             String parentDocumentId, String[] projection, String sortOrder)
             throws FileNotFoundException {
-        Cursor result = super.queryChildDocuments(parentDocumentId, projection, sortOrder);
+        if (!DOC_ID_ROOT.equals(parentDocumentId)) {
+            throw new FileNotFoundException("Not a directory: " + parentDocumentId);
+        }
+
+        // Served from the index, so that listing hundreds of traces doesn't stat each one.
+        final MatrixCursor result = new MatrixCursor(resolveDocumentProjection(projection));
+        for (TraceDocumentIndex.Document document : mIndex.getDocuments()) {
+            includeDocument(result, document);
+        }
+        result.setNotificationUri(getContext().getContentResolver(),
+                buildNotificationUri(parentDocumentId));
 
         Bundle bundle = new Bundle();
         bundle.putString(DocumentsContract.EXTRA_INFO,
@@ -138,6 +209,36 @@ public class StorageProvider extends FileSystemProvider{
     }
 
 
+    /*
+     * Finds traces by board, build ID, date, engine, category or duration. The search is
+     * answered from the document index, never by listing the directory.
+     */
+    @Override
+    public Cursor querySearchDocuments(String rootId, String query, String[] projection)
+            throws FileNotFoundException {
+        if (!DOC_ID_ROOT.equals(rootId)) {
+            throw new FileNotFoundException("Unknown root: " + rootId);
+        }
+
+        final MatrixCursor result = new MatrixCursor(resolveDocumentProjection(projection));
+        for (TraceDocumentIndex.Document document : mIndex.search(query)) {
+            includeDocument(result, document);
+        }
+        return result;
+    }
+
+    /*
+     * Compressed traces are listed with the same type as uncompressed ones, since the apps that
+     * open traces read both.
+     */
+    @Override
+    public String getDocumentType(String documentId) throws FileNotFoundException {
+        if (DOC_ID_ROOT.equals(documentId)) {
+            return Document.MIME_TYPE_DIR;
+        }
+        return isOffsetIndex(documentId) ? OFFSETS_MIME_TYPE : MIME_TYPE;
+    }
+
     @Override
     public ParcelFileDescriptor openDocument(
             String documentId, String mode, CancellationSignal signal)
@@ -146,8 +247,97 @@ public class StorageProvider extends FileSystemProvider{
             throw new UnsupportedOperationException(
                 "Attempt to open read-only file " + documentId + " in mode " + mode);
         }
-        return ParcelFileDescriptor.open(getFileForDocId(documentId),
-                ParcelFileDescriptor.MODE_READ_ONLY);
+        File file = getFileForDocId(documentId);
+        if (!isOffsetIndex(documentId)) {
+            TraceRetention.onTraceAccessed(file);
+        }
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    @Override
+    public void deleteDocument(String documentId) throws FileNotFoundException {
+        if (isOffsetIndex(documentId)) {
+            throw new UnsupportedOperationException(
+                "Offset indexes are deleted with their trace: " + documentId);
+        }
+        File file = getFileForDocId(documentId);
+        super.deleteDocument(documentId);
+        TraceRetention.onTraceDeleted(file);
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!METHOD_TRIM.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        // Unlike queries, calls aren't checked against the permission of the provider.
+        getContext().enforceCallingOrSelfPermission(
+                android.Manifest.permission.MANAGE_DOCUMENTS, "Not allowed to trim traces");
+
+        long startNs = extras == null ? -1 : extras.getLong(EXTRA_START_NS, -1);
+        long endNs = extras == null ? -1 : extras.getLong(EXTRA_END_NS, -1);
+        if (arg == null || isOffsetIndex(arg) || startNs < 0 || endNs < startNs) {
+            throw new IllegalArgumentException("Can't trim " + arg + " to [" + startNs + ", "
+                    + endNs + "]");
+        }
+
+        File trace;
+        try {
+            trace = getFileForDocId(arg);
+        } catch (FileNotFoundException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        if (!TraceTrimmer.canTrim(trace.getName())) {
+            throw new IllegalArgumentException("Can't trim " + arg);
+        }
+        File trimmed = new File(mRootDir, TraceTrimmer.getTrimmedFilename(trace.getName()));
+        // Not on this binder thread, which would be blocked for as long as the trace is read.
+        TraceService.trimTrace(getContext(), trace, startNs, endNs);
+
+        Bundle result = new Bundle();
+        result.putString(EXTRA_DOCUMENT_ID, getDocIdForFile(trimmed));
+        return result;
+    }
+
+    private void includeDocument(MatrixCursor result, TraceDocumentIndex.Document document) {
+        final MatrixCursor.RowBuilder row = result.newRow();
+        row.add(Document.COLUMN_DOCUMENT_ID, getDocIdForFile(new File(mRootDir, document.name)));
+        row.add(Document.COLUMN_MIME_TYPE, MIME_TYPE);
+        row.add(Document.COLUMN_DISPLAY_NAME, document.name);
+        row.add(Document.COLUMN_LAST_MODIFIED, document.lastModifiedMs);
+        row.add(Document.COLUMN_SIZE, document.sizeBytes);
+        row.add(Document.COLUMN_FLAGS,
+                Document.FLAG_DIR_PREFERS_LAST_MODIFIED | Document.FLAG_SUPPORTS_DELETE);
+        if (document.hasOffsetIndex) {
+            row.add(COLUMN_OFFSET_INDEX, DOC_ID_OFFSETS + ":" + document.name);
+        }
+
+        TraceMetadata metadata = document.metadata;
+        if (metadata == null) {
+            return;
+        }
+        boolean compressed = metadata.uncompressedBytes >= 0;
+        row.add(Document.COLUMN_SUMMARY, getSummary(getContext(), metadata));
+        row.add(COLUMN_DURATION_MS, metadata.durationMs >= 0 ? metadata.durationMs : null);
+        row.add(COLUMN_CATEGORIES, metadata.categories);
+        row.add(COLUMN_ENGINE, metadata.engine);
+        row.add(COLUMN_COMPRESSED_SIZE, compressed ? document.sizeBytes : null);
+        row.add(COLUMN_UNCOMPRESSED_SIZE,
+                compressed ? metadata.uncompressedBytes : document.sizeBytes);
+    }
+
+    // E.g. "perfetto, 02:13, compressed from 1.2 GB".
+    private static String getSummary(Context context, TraceMetadata metadata) {
+        List<String> parts = new ArrayList<>();
+        parts.add(metadata.engine);
+        if (metadata.durationMs >= 0) {
+            parts.add(DateUtils.formatElapsedTime(metadata.durationMs / 1000));
+        }
+        if (metadata.uncompressedBytes >= 0) {
+            parts.add(context.getString(R.string.compressed_from,
+                    Formatter.formatShortFileSize(context, metadata.uncompressedBytes)));
+        }
+        return TextUtils.join(", ", parts);
     }
 
     private static String[] resolveRootProjection(String[] projection) {
@@ -163,6 +353,10 @@ public class StorageProvider extends FileSystemProvider{
         return DocumentsContract.buildChildDocumentsUri(AUTHORITY, docId);
     }
 
+    private static boolean isOffsetIndex(String documentId) {
+        return documentId.startsWith(DOC_ID_OFFSETS + ":");
+    }
+
     @Override
     protected String getDocIdForFile(File file) {
         return DOC_ID_ROOT + ":" + file.getName();
@@ -172,15 +366,22 @@ public class StorageProvider extends FileSystemProvider{
     protected File getFileForDocId(String documentId, boolean visible)
             throws FileNotFoundException {
         if (DOC_ID_ROOT.equals(documentId)) {
-            return new File(ROOT_DIR);
+            return mRootDir;
         } else {
             final int splitIndex = documentId.indexOf(':', 1);
             final String name = documentId.substring(splitIndex + 1);
-            if (splitIndex == -1 || !DOC_ID_ROOT.equals(documentId.substring(0, splitIndex)) ||
-                    !FileUtils.isValidExtFilename(name)) {
+            if (splitIndex == -1 || !FileUtils.isValidExtFilename(name)) {
+                throw new FileNotFoundException("Invalid document ID: " + documentId);
+            }
+            final String prefix = documentId.substring(0, splitIndex);
+            final File file;
+            if (DOC_ID_ROOT.equals(prefix)) {
+                file = new File(mRootDir, name);
+            } else if (DOC_ID_OFFSETS.equals(prefix)) {
+                file = TraceOffsetIndex.getFile(getContext(), name);
+            } else {
                 throw new FileNotFoundException("Invalid document ID: " + documentId);
             }
-            final File file = new File(ROOT_DIR, name);
             if (!file.exists()) {
                 throw new FileNotFoundException("File not found: " + documentId);
             }
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+
+import perfetto.protos.TracePacketOuterClass.TracePacket;
+
+/**
+ * Finds the first and last packet timestamps of a trace, to tell how long it covers.
+ *
+ * Ftrace event bundles carry their timestamps per event rather than per packet, but the
+ * packets around them (clock snapshots, process stats and the final trace stats) bound them
+ * closely enough for a duration.
+ */
+public class TimestampRangeVisitor implements TracePacketReader.PacketVisitor {
+
+    private long mFirstNs = Long.MAX_VALUE;
+    private long mLastNs = Long.MIN_VALUE;
+
+    @Override
+    public void visitPacket(long offset, int size, byte[] packet, int length)
+            throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(packet, 0, length);
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            if (WireFormat.getTagFieldNumber(tag) == TracePacket.TIMESTAMP_FIELD_NUMBER) {
+                long timestampNs = in.readUInt64();
+                if (timestampNs > 0) {
+                    mFirstNs = Math.min(mFirstNs, timestampNs);
+                    mLastNs = Math.max(mLastNs, timestampNs);
+                }
+                return;
+            }
+            in.skipField(tag);
+        }
+    }
+
+    public boolean hasTimestamps() {
+        return mFirstNs <= mLastNs;
+    }
+
+    public long getFirstNs() {
+        return mFirstNs;
+    }
+
+    public long getLastNs() {
+        return mLastNs;
+    }
+
+    /* How long the trace covers, or -1 if it has no timestamps. */
+    public long getDurationMs() {
+        return hasTimestamps() ? (mLastNs - mFirstNs) / 1000000 : -1;
+    }
+}
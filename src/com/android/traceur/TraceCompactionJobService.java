@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.app.AlarmManager;
+import android.app.NotificationManager;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.CancellationSignal;
+import android.os.Process;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compresses saved traces once they are older than a configurable age, while the device is
+ * idle and charging.
+ *
+ * Recent traces stay uncompressed so they open quickly. Each trace is compressed to a hidden
+ * file that is synced and renamed into place before the original is deleted, and reading is
+ * throttled so that the job doesn't disturb foreground work, e.g. benchmarks left running
+ * overnight. If the device stops being idle, the job gives up on the current trace and is
+ * rescheduled.
+ */
+public class TraceCompactionJobService extends JobService {
+
+    static final String TAG = "Traceur";
+
+    private static final int JOB_ID = 1;
+
+    private static final long MAX_BYTES_PER_SECOND = 8 * 1024 * 1024;
+
+    private static final String PREFS_NAME = "trace_compaction";
+    private static final String KEY_TRACES_COMPACTED = "traces_compacted";
+    private static final String KEY_BYTES_SAVED = "bytes_saved";
+    private static final String KEY_TIME_SPENT_MS = "time_spent_ms";
+    private static final String KEY_LAST_RUN_MS = "last_run_ms";
+
+    private CancellationSignal mSignal;
+
+    // The thread of the latest job. Static, since a cancelled job can still be finishing its
+    // trace when the service is recreated for the next one. Only used on the main thread.
+    private static Thread sThread;
+
+    public static void schedule(Context context) {
+        JobInfo job = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, TraceCompactionJobService.class))
+            .setRequiresDeviceIdle(true)
+            .setRequiresCharging(true)
+            .setPeriodic(AlarmManager.INTERVAL_DAY)
+            .build();
+        context.getSystemService(JobScheduler.class).schedule(job);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        final int ageDays = getCompactionAgeDays(this);
+        if (ageDays == 0) {
+            return false;
+        }
+
+        final CancellationSignal signal = new CancellationSignal();
+        mSignal = signal;
+        // A stopped job gives up on its trace at its next read, but two jobs must never
+        // compress the same trace to the same temporary file at once.
+        final Thread previous = sThread;
+        sThread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            if (previous != null) {
+                try {
+                    previous.join();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            compact(TimeUnit.DAYS.toMillis(ageDays), signal);
+            if (!signal.isCanceled()) {
+                jobFinished(params, false);
+            }
+        }, "TraceCompaction");
+        sThread.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        if (mSignal != null) {
+            mSignal.cancel();
+        }
+        return true;
+    }
+
+    private void compact(long minAgeMs, CancellationSignal signal) {
+        long cutoffMs = System.currentTimeMillis() - minAgeMs;
+        File[] files = TraceUtils.getOutputDirectory(this).listFiles(
+                file -> isCompressible(file.getName()) && file.isFile()
+                        && file.lastModified() < cutoffMs);
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (signal.isCanceled()) {
+                break;
+            }
+            compact(file, signal);
+        }
+        getPrefs(this).edit().putLong(KEY_LAST_RUN_MS, System.currentTimeMillis()).apply();
+    }
+
+    private void compact(File file, CancellationSignal signal) {
+        String name = file.getName();
+        long lastModifiedMs = file.lastModified();
+
+        // The sidecars are moved before the original is deleted, since the document index
+        // deletes those of a deleted trace as soon as it notices.
+        TraceCompressor.Result result = TraceCompressor.compress(file, MAX_BYTES_PER_SECOND,
+                signal, compressed -> {
+                    String newName = compressed.file.getName();
+                    // Age-based decisions, and the order traces are listed in, shouldn't
+                    // change.
+                    compressed.file.setLastModified(lastModifiedMs);
+                    TraceMetadata metadata = TraceMetadata.load(this, name);
+                    if (metadata == null) {
+                        metadata = new TraceMetadata();
+                    }
+                    metadata.uncompressedBytes = compressed.originalBytes;
+                    TraceOffsetIndex.rename(this, name, newName);
+                    CpuUsageVisitor.rename(this, name, newName);
+                    // Last, since it tells StorageProvider to look for the other sidecars.
+                    metadata.save(this, newName);
+                });
+        if (result == null) {
+            return;
+        }
+        TraceMetadata.delete(this, name);
+        // The trace saved notification points at the original, which is gone.
+        NotificationManager.from(this).cancel(name, 0);
+        TraceRetention.onTraceDeleted(file);
+        TraceRetention.onTraceSaved(this, result.file);
+
+        SharedPreferences prefs = getPrefs(this);
+        prefs.edit()
+            .putInt(KEY_TRACES_COMPACTED, prefs.getInt(KEY_TRACES_COMPACTED, 0) + 1)
+            .putLong(KEY_BYTES_SAVED, prefs.getLong(KEY_BYTES_SAVED, 0)
+                    + result.originalBytes - result.compressedBytes)
+            .putLong(KEY_TIME_SPENT_MS, prefs.getLong(KEY_TIME_SPENT_MS, 0) + result.durationMs)
+            .apply();
+    }
+
+    // Only perfetto traces: atrace compresses its own output.
+    private static boolean isCompressible(String name) {
+        return TraceUtils.isSavedTrace(name) && name.endsWith("." + PerfettoUtils.OUTPUT_EXTENSION);
+    }
+
+    private static int getCompactionAgeDays(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return Integer.parseInt(prefs.getString(
+                context.getString(R.string.pref_key_compaction_age),
+                context.getString(R.string.default_compaction_age)));
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    static void dump(Context context, PrintWriter pw) {
+        SharedPreferences prefs = getPrefs(context);
+        pw.println("Trace compaction:");
+        pw.println("  compact after: " + getCompactionAgeDays(context) + " days");
+        pw.println("  traces compacted: " + prefs.getInt(KEY_TRACES_COMPACTED, 0));
+        pw.println("  bytes saved: " + prefs.getLong(KEY_BYTES_SAVED, 0));
+        pw.println("  time spent: " + prefs.getLong(KEY_TIME_SPENT_MS, 0) + " ms");
+        pw.println("  last run: " + prefs.getLong(KEY_LAST_RUN_MS, 0));
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        dump(this, pw);
+        ProcessLauncher.dump(pw);
+    }
+}
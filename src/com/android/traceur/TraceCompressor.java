@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses saved traces at rest.
+ *
+ * Traces are streamed through a gzip stream in a single pass with large reused buffers, so
+ * even multi-gigabyte long traces are never held in memory. Trace processor and the Perfetto
+ * UI open gzipped traces directly, so the compressed file replaces the original.
+ */
+public class TraceCompressor {
+
+    static final String TAG = "Traceur";
+
+    public static final String EXTENSION = ".gz";
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    public static class Result {
+        public final File file;
+        public final long originalBytes;
+        public final long compressedBytes;
+        public final long durationMs;
+
+        Result(File file, long originalBytes, long compressedBytes, long durationMs) {
+            this.file = file;
+            this.originalBytes = originalBytes;
+            this.compressedBytes = compressedBytes;
+            this.durationMs = durationMs;
+        }
+
+        /* The compressed size as a percentage of the original size. */
+        public int getPercentage() {
+            return originalBytes == 0 ? 100 : (int) (compressedBytes * 100 / originalBytes);
+        }
+    }
+
+    public static boolean isCompressed(File file) {
+        return file.getName().endsWith(EXTENSION);
+    }
+
+    /*
+     * Compresses trace into trace.gz and deletes the original. Returns null if compression
+     * failed, in which case the original is left untouched.
+     */
+    public static Result compress(File trace) {
+        return compress(trace, 0, null);
+    }
+
+    /*
+     * Same as above, reading at most maxBytesPerSecond from the trace if it is positive, so
+     * that background compression doesn't compete with foreground I/O. Gives up if signal is
+     * cancelled.
+     */
+    public static Result compress(File trace, long maxBytesPerSecond, CancellationSignal signal) {
+        return compress(trace, maxBytesPerSecond, signal, null);
+    }
+
+    /*
+     * Same as above, calling beforeDelete once the compressed trace is in place but before the
+     * original is deleted, e.g. to move what is kept about the trace under its new name before
+     * the deletion is noticed.
+     */
+    public static Result compress(File trace, long maxBytesPerSecond, CancellationSignal signal,
+            Consumer<Result> beforeDelete) {
+        File compressed = new File(trace.getPath() + EXTENSION);
+        // Written under a hidden name first, so that a partial file is never listed as a trace.
+        File temp = new File(trace.getParentFile(), "." + compressed.getName() + ".tmp");
+
+        long startMs = SystemClock.elapsedRealtime();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(trace);
+                FileOutputStream fileOut = new FileOutputStream(temp);
+                GZIPOutputStream out = new FastGzipOutputStream(fileOut)) {
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                if (signal != null && signal.isCanceled()) {
+                    throw new IOException("Cancelled");
+                }
+                out.write(buffer, 0, read);
+                total += read;
+                if (maxBytesPerSecond > 0) {
+                    throttle(startMs, total, maxBytesPerSecond);
+                }
+            }
+            out.finish();
+            // The original is deleted once the rename is done, so the copy must be durable.
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to compress " + trace, e);
+            temp.delete();
+            return null;
+        }
+
+        try {
+            Os.rename(temp.getPath(), compressed.getPath());
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Failed to rename " + temp + " to " + compressed, e);
+            temp.delete();
+            return null;
+        }
+        compressed.setReadable(true, false); // (readable, ownerOnly)
+        compressed.setWritable(true, false); // (writable, ownerOnly)
+
+        Result result = new Result(compressed, trace.length(), compressed.length(),
+                SystemClock.elapsedRealtime() - startMs);
+        if (beforeDelete != null) {
+            beforeDelete.accept(result);
+        }
+        trace.delete();
+        Log.v(TAG, "Compressed " + trace + " from " + result.originalBytes + " to "
+                + result.compressedBytes + " bytes in " + result.durationMs + " ms.");
+        return result;
+    }
+
+    // Sleeps for as long as reading total bytes is ahead of the maximum rate.
+    private static void throttle(long startMs, long total, long maxBytesPerSecond)
+            throws IOException {
+        long aheadMs = total * 1000 / maxBytesPerSecond
+                - (SystemClock.elapsedRealtime() - startMs);
+        if (aheadMs <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(aheadMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+    }
+
+    /*
+     * Trace packets compress well even at the fastest level, and long traces are large
+     * enough that the speed matters more than the last few percent.
+     */
+    private static class FastGzipOutputStream extends GZIPOutputStream {
+        FastGzipOutputStream(OutputStream out) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(Deflater.BEST_SPEED);
+        }
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import perfetto.protos.TraceOuterClass.Trace;
+import perfetto.protos.TracePacketOuterClass.TracePacket;
+
+/**
+ * Rewrites a saved trace without the interned data and track descriptors that its writers
+ * emitted again after clearing their incremental state, which PerfettoUtils asks them to do
+ * every 15 seconds.
+ *
+ * Interned data is scoped to a packet sequence and an incremental state generation, so iids
+ * can't be merged across sequences without rewriting every event. Instead, a clear is dropped
+ * when everything the new generation interns agrees with what the sequence already interned,
+ * which turns the sequence's state into one table for the whole trace. The entries the new
+ * generation repeats are then dropped, keeping the trace semantically identical. Clears are
+ * kept at the start of a sequence and after it lost packets, where readers need them.
+ * Track descriptors, which are global, are dropped when identical to an earlier one.
+ *
+ * A first pass decides which clears to drop, and a second writes the trace. Interned entries
+ * are keyed by their type and iid, and compared by a 64-bit hash of their bytes, in maps of
+ * primitive longs, so memory grows with the number of distinct entries and not with the
+ * size of the trace.
+ */
+public class TraceDeduplicator {
+
+    static final String TAG = "Traceur";
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final int PACKET_TAG = (Trace.PACKET_FIELD_NUMBER << 3)
+            | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+    private static final int CLEARED =
+            TracePacket.SequenceFlags.SEQ_INCREMENTAL_STATE_CLEARED_VALUE;
+
+    // Interned entries are keyed by their field number above the low IID_BITS of their iid.
+    private static final int IID_BITS = 48;
+
+    public static class Result {
+        public final long originalBytes;
+        public final long compactedBytes;
+        public final long durationMs;
+
+        Result(long originalBytes, long compactedBytes, long durationMs) {
+            this.originalBytes = originalBytes;
+            this.compactedBytes = compactedBytes;
+            this.durationMs = durationMs;
+        }
+
+        public long getSavedBytes() {
+            return originalBytes - compactedBytes;
+        }
+    }
+
+    // The incremental state of a packet sequence.
+    private static class Sequence {
+        // What the sequence has interned, from key to the hash of the entry.
+        final LongLongMap interned = new LongLongMap();
+        // For the first pass: what the current generation interned, and whether it disagrees.
+        final LongLongMap generation = new LongLongMap();
+        long generationStart = -1;
+        boolean conflict;
+        // Whether the next clear must be kept, e.g. after lost packets.
+        boolean invalid = true;
+    }
+
+    /*
+     * Rewrites trace in place. Returns the sizes before and after, which are the same if
+     * nothing could be removed, or null if the trace couldn't be read or written.
+     */
+    public static Result compact(File trace) {
+        long startMs = SystemClock.elapsedRealtime();
+        long originalBytes = trace.length();
+
+        Planner planner = new Planner();
+        try {
+            TracePacketReader.read(trace, planner);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + trace, e);
+            return null;
+        }
+        planner.finish();
+        if (planner.mDroppedClears.size() == 0 && planner.mDuplicateDescriptors == 0) {
+            return new Result(originalBytes, originalBytes,
+                    SystemClock.elapsedRealtime() - startMs);
+        }
+
+        // Written under a hidden name first, so that a partial file is never listed as a trace.
+        File temp = new File(trace.getParentFile(), "." + trace.getName() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(temp);
+                OutputStream out = new BufferedOutputStream(fileOut, BUFFER_SIZE)) {
+            TracePacketReader.read(trace, new Rewriter(out, planner.mDroppedClears));
+            out.flush();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to rewrite " + trace, e);
+            temp.delete();
+            return null;
+        }
+        try {
+            Os.rename(temp.getPath(), trace.getPath());
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Failed to rename " + temp + " to " + trace, e);
+            temp.delete();
+            return null;
+        }
+        trace.setReadable(true, false);
+
+        Result result = new Result(originalBytes, trace.length(),
+                SystemClock.elapsedRealtime() - startMs);
+        Log.i(TAG, "Removed " + result.getSavedBytes() + " of " + originalBytes + " bytes of "
+                + trace + " (" + planner.mDroppedClears.size() + " clears, "
+                + planner.mDuplicateDescriptors + " descriptors) in " + result.durationMs
+                + " ms.");
+        return result;
+    }
+
+    /*
+     * The fields of a packet that matter here. Spans are offsets in the packet, -1 if absent.
+     * Packets with more than one interned_data field are left alone.
+     */
+    private static class Packet {
+        int sequenceId;
+        int flags = -1;
+        boolean packetsLost;
+        int internedStart = -1;
+        int internedEnd = -1;
+        boolean multipleInterned;
+        long descriptorHash;
+        // Whether the packet holds a track descriptor and nothing that depends on its place.
+        boolean onlyDescriptor;
+
+        void parse(byte[] packet, int length) throws IOException {
+            sequenceId = 0;
+            flags = -1;
+            packetsLost = false;
+            internedStart = -1;
+            internedEnd = -1;
+            multipleInterned = false;
+            descriptorHash = 0;
+            onlyDescriptor = true;
+            boolean descriptor = false;
+
+            CodedInputStream in = CodedInputStream.newInstance(packet, 0, length);
+            for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                    case TracePacket.TIMESTAMP_FIELD_NUMBER:
+                    case TracePacket.TRUSTED_UID_FIELD_NUMBER:
+                    case TracePacket.TRUSTED_PID_FIELD_NUMBER:
+                        in.skipField(tag);
+                        break;
+                    case TracePacket.TRUSTED_PACKET_SEQUENCE_ID_FIELD_NUMBER:
+                        sequenceId = in.readUInt32();
+                        break;
+                    case TracePacket.SEQUENCE_FLAGS_FIELD_NUMBER:
+                        flags = in.readUInt32();
+                        onlyDescriptor &= (flags & CLEARED) == 0;
+                        break;
+                    case TracePacket.PREVIOUS_PACKET_DROPPED_FIELD_NUMBER:
+                        packetsLost = in.readBool();
+                        onlyDescriptor = false;
+                        break;
+                    case TracePacket.INTERNED_DATA_FIELD_NUMBER: {
+                        multipleInterned = internedStart >= 0;
+                        int size = in.readRawVarint32();
+                        internedStart = in.getTotalBytesRead();
+                        internedEnd = internedStart + size;
+                        in.skipRawBytes(size);
+                        onlyDescriptor = false;
+                        break;
+                    }
+                    case TracePacket.TRACK_DESCRIPTOR_FIELD_NUMBER: {
+                        int size = in.readRawVarint32();
+                        int start = in.getTotalBytesRead();
+                        descriptorHash = hash(packet, start, start + size);
+                        in.skipRawBytes(size);
+                        descriptor = true;
+                        break;
+                    }
+                    default:
+                        in.skipField(tag);
+                        onlyDescriptor = false;
+                        break;
+                }
+            }
+            onlyDescriptor &= descriptor;
+        }
+    }
+
+    private interface EntryVisitor {
+        void visitEntry(long key, long hash, int fieldStart, int fieldEnd) throws IOException;
+    }
+
+    /*
+     * Calls visitor for each entry of the interned_data in packet[start, end), with its key,
+     * the hash of the entry and the span of its field. The key is -1 if the entry has no iid.
+     */
+    private static void readEntries(byte[] packet, int start, int end, EntryVisitor visitor)
+            throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(packet, start, end - start);
+        while (true) {
+            int fieldStart = start + in.getTotalBytesRead();
+            int tag = in.readTag();
+            if (tag == 0) {
+                return;
+            }
+            int field = WireFormat.getTagFieldNumber(tag);
+            if (WireFormat.getTagWireType(tag) != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                in.skipField(tag);
+                visitor.visitEntry(-1, 0, fieldStart, start + in.getTotalBytesRead());
+                continue;
+            }
+            int size = in.readRawVarint32();
+            int entryStart = start + in.getTotalBytesRead();
+            in.skipRawBytes(size);
+            int fieldEnd = start + in.getTotalBytesRead();
+            long iid = readIid(packet, entryStart, fieldEnd);
+            long key = iid > 0 && iid < (1L << IID_BITS) ? ((long) field << IID_BITS) | iid : -1;
+            visitor.visitEntry(key, hash(packet, entryStart, fieldEnd), fieldStart, fieldEnd);
+        }
+    }
+
+    // Interned messages all hold their iid in field 1. Returns -1 if there is none.
+    private static long readIid(byte[] packet, int start, int end) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(packet, start, end - start);
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            if (tag == ((1 << 3) | WireFormat.WIRETYPE_VARINT)) {
+                return in.readUInt64();
+            }
+            in.skipField(tag);
+        }
+        return -1;
+    }
+
+    // FNV-1a, with its bits spread further by the map's mixer.
+    private static long hash(byte[] bytes, int start, int end) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++) {
+            hash ^= bytes[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return LongLongMap.mix(hash);
+    }
+
+    /*
+     * The first pass. Follows the interned state of each sequence, and finds the clears that
+     * start a generation agreeing with the state before it.
+     */
+    private static class Planner implements TracePacketReader.PacketVisitor {
+        private final Map<Integer, Sequence> mSequences = new HashMap<>();
+        private final Packet mPacket = new Packet();
+        private final LongLongMap mDescriptors = new LongLongMap();
+        // The offsets of the packets whose clear can be dropped, as keys.
+        final LongLongMap mDroppedClears = new LongLongMap();
+        int mDuplicateDescriptors;
+
+        @Override
+        public void visitPacket(long offset, int size, byte[] packet, int length)
+                throws IOException {
+            Packet p = mPacket;
+            p.parse(packet, length);
+
+            if (p.onlyDescriptor) {
+                if (mDescriptors.containsKey(p.descriptorHash)) {
+                    mDuplicateDescriptors++;
+                }
+                mDescriptors.put(p.descriptorHash, 0);
+            }
+            if (p.sequenceId == 0) {
+                return;
+            }
+
+            Sequence sequence = getSequence(mSequences, p.sequenceId);
+            if (p.packetsLost) {
+                sequence.invalid = true;
+            }
+            if (p.flags >= 0 && (p.flags & CLEARED) != 0) {
+                finishGeneration(sequence);
+                sequence.generationStart = offset;
+                sequence.conflict = sequence.invalid || p.multipleInterned;
+                sequence.invalid = false;
+            }
+            if (p.internedStart < 0 || sequence.generationStart < 0) {
+                return;
+            }
+            if (p.multipleInterned) {
+                sequence.conflict = true;
+            }
+            readEntries(packet, p.internedStart, p.internedEnd, (key, hash, start, end) -> {
+                if (key < 0) {
+                    return;
+                }
+                if (sequence.interned.get(key, hash) != hash) {
+                    sequence.conflict = true;
+                }
+                sequence.generation.put(key, hash);
+            });
+        }
+
+        void finish() {
+            for (Sequence sequence : mSequences.values()) {
+                finishGeneration(sequence);
+            }
+        }
+
+        private void finishGeneration(Sequence sequence) {
+            if (sequence.generationStart < 0) {
+                return;
+            }
+            if (!sequence.conflict) {
+                mDroppedClears.put(sequence.generationStart, 0);
+            } else {
+                sequence.interned.clear();
+            }
+            sequence.interned.putAll(sequence.generation);
+            sequence.generation.clear();
+        }
+    }
+
+    /*
+     * The second pass. Follows the interned state of each sequence as the first pass left it,
+     * and writes each packet without its repeated entries, or not at all if it is a repeated
+     * descriptor.
+     */
+    private static class Rewriter implements TracePacketReader.PacketVisitor {
+        private final OutputStream mOut;
+        private final LongLongMap mDroppedClears;
+        private final Map<Integer, Sequence> mSequences = new HashMap<>();
+        private final Packet mPacket = new Packet();
+        private final LongLongMap mDescriptors = new LongLongMap();
+        private final ByteArrayOutputStream mInterned = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream mRewritten = new ByteArrayOutputStream();
+
+        Rewriter(OutputStream out, LongLongMap droppedClears) {
+            mOut = out;
+            mDroppedClears = droppedClears;
+        }
+
+        @Override
+        public void visitPacket(long offset, int size, byte[] packet, int length)
+                throws IOException {
+            Packet p = mPacket;
+            p.parse(packet, length);
+
+            if (p.onlyDescriptor) {
+                if (mDescriptors.containsKey(p.descriptorHash)) {
+                    return;
+                }
+                mDescriptors.put(p.descriptorHash, 0);
+            }
+
+            Sequence sequence = p.sequenceId == 0 ? null : getSequence(mSequences, p.sequenceId);
+            boolean dropClear = false;
+            if (sequence != null && p.flags >= 0 && (p.flags & CLEARED) != 0) {
+                dropClear = mDroppedClears.containsKey(offset);
+                if (!dropClear) {
+                    sequence.interned.clear();
+                }
+                sequence.generationStart = offset;
+            }
+
+            boolean dropEntries = false;
+            mInterned.reset();
+            if (sequence != null && sequence.generationStart >= 0 && p.internedStart >= 0
+                    && !p.multipleInterned) {
+                readEntries(packet, p.internedStart, p.internedEnd,
+                        (key, hash, start, end) -> {
+                            if (key >= 0 && sequence.interned.get(key, ~hash) == hash) {
+                                return;
+                            }
+                            if (key >= 0) {
+                                sequence.interned.put(key, hash);
+                            }
+                            mInterned.write(packet, start, end - start);
+                        });
+                dropEntries = mInterned.size() < p.internedEnd - p.internedStart;
+            }
+
+            if (!dropClear && !dropEntries) {
+                writePacket(packet, 0, length);
+                return;
+            }
+            rewrite(packet, length, dropClear ? p.flags & ~CLEARED : p.flags, dropEntries);
+        }
+
+        // Copies the fields of packet, with new sequence flags and the kept interned entries.
+        private void rewrite(byte[] packet, int length, int flags, boolean dropEntries)
+                throws IOException {
+            mRewritten.reset();
+            CodedInputStream in = CodedInputStream.newInstance(packet, 0, length);
+            while (true) {
+                int fieldStart = in.getTotalBytesRead();
+                int tag = in.readTag();
+                if (tag == 0) {
+                    break;
+                }
+                int field = WireFormat.getTagFieldNumber(tag);
+                in.skipField(tag);
+                if (field == TracePacket.SEQUENCE_FLAGS_FIELD_NUMBER) {
+                    if (flags != 0) {
+                        writeVarint(mRewritten, tag);
+                        writeVarint(mRewritten, flags);
+                    }
+                } else if (field == TracePacket.INTERNED_DATA_FIELD_NUMBER && dropEntries) {
+                    if (mInterned.size() > 0) {
+                        writeVarint(mRewritten, tag);
+                        writeVarint(mRewritten, mInterned.size());
+                        mInterned.writeTo(mRewritten);
+                    }
+                } else {
+                    mRewritten.write(packet, fieldStart, in.getTotalBytesRead() - fieldStart);
+                }
+            }
+            mOut.write(PACKET_TAG);
+            writeVarint(mOut, mRewritten.size());
+            mRewritten.writeTo(mOut);
+        }
+
+        private void writePacket(byte[] packet, int start, int length) throws IOException {
+            mOut.write(PACKET_TAG);
+            writeVarint(mOut, length);
+            mOut.write(packet, start, length);
+        }
+    }
+
+    private static Sequence getSequence(Map<Integer, Sequence> sequences, int id) {
+        Sequence sequence = sequences.get(id);
+        if (sequence == null) {
+            sequence = new Sequence();
+            sequences.put(id, sequence);
+        }
+        return sequence;
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
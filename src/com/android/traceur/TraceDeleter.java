@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes all saved traces in the background.
+ *
+ * Files are unlinked in-process by a few worker threads. Unlinking a large trace mostly means
+ * freeing its extents, which the filesystem does in parallel for different files, so long
+ * traces are reclaimed faster than one at a time. Only finished traces are deleted: the hidden
+ * files of a trace being recorded or written are left alone.
+ */
+public class TraceDeleter {
+
+    static final String TAG = "Traceur";
+
+    private static final int MAX_THREADS = 4;
+
+    /* Called on the main thread. */
+    public interface Listener {
+        void onProgress(int deleted, int total, long reclaimedBytes);
+        void onFinished(int deleted, int total, long reclaimedBytes, boolean cancelled);
+    }
+
+    private final File mDirectory;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean mCancelled = new AtomicBoolean();
+    private final AtomicInteger mDeleted = new AtomicInteger();
+    private final AtomicLong mReclaimedBytes = new AtomicLong();
+
+    private TraceDeleter(File directory, Listener listener) {
+        mDirectory = directory;
+        mListener = listener;
+    }
+
+    public static TraceDeleter clearSavedTraces(Context context, Listener listener) {
+        TraceDeleter deleter = new TraceDeleter(TraceUtils.getOutputDirectory(context), listener);
+        new Thread(deleter::run, "TraceDeleter").start();
+        return deleter;
+    }
+
+    /* Stops deleting. Traces that are already being deleted still go. */
+    public void cancel() {
+        mCancelled.set(true);
+    }
+
+    private void run() {
+        File[] files = mDirectory.listFiles(
+                file -> TraceUtils.isSavedTrace(file.getName()) && file.isFile());
+        final int total = files == null ? 0 : files.length;
+        Log.v(TAG, "Clearing " + total + " saved traces.");
+        mHandler.post(() -> mListener.onProgress(0, total, 0));
+
+        if (total > 0) {
+            ExecutorService executor = Executors.newFixedThreadPool(
+                    Math.min(MAX_THREADS, total));
+            for (File file : files) {
+                executor.execute(() -> delete(file, total));
+            }
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while clearing saved traces", e);
+            }
+        }
+
+        // Traces were removed behind the retention manager's back.
+        TraceRetention.invalidate();
+
+        final int deleted = mDeleted.get();
+        final long reclaimedBytes = mReclaimedBytes.get();
+        final boolean cancelled = mCancelled.get();
+        Log.v(TAG, "Cleared " + deleted + " of " + total + " saved traces, reclaiming "
+                + reclaimedBytes + " bytes" + (cancelled ? " before being cancelled." : "."));
+        mHandler.post(() -> mListener.onFinished(deleted, total, reclaimedBytes, cancelled));
+    }
+
+    private void delete(File file, int total) {
+        if (mCancelled.get()) {
+            return;
+        }
+        long sizeBytes = file.length();
+        if (!file.delete()) {
+            Log.w(TAG, "Failed to delete " + file);
+            return;
+        }
+        final int deleted = mDeleted.incrementAndGet();
+        final long reclaimedBytes = mReclaimedBytes.addAndGet(sizeBytes);
+        mHandler.post(() -> mListener.onProgress(deleted, total, reclaimedBytes));
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.content.Context;
+import android.os.FileObserver;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An in-memory index of the saved traces and their metadata, for StorageProvider.
+ *
+ * The trace directory is listed once, on the first query. After that, file observers on the
+ * trace directory and on the metadata directory update single entries as traces and their
+ * sidecars come and go, so queries neither list the directory nor stat every trace.
+ *
+ * Searches are answered from an inverted index from every prefix of every word of a trace's
+ * name and metadata to the traces that contain it. A search looks up each of its words and
+ * intersects the results, so it costs the same however many traces are saved.
+ */
+class TraceDocumentIndex {
+
+    static final String TAG = "Traceur";
+
+    private static final int TRACE_EVENTS = FileObserver.CREATE | FileObserver.CLOSE_WRITE
+            | FileObserver.MOVED_TO | FileObserver.DELETE | FileObserver.MOVED_FROM;
+    private static final int METADATA_EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+            | FileObserver.DELETE;
+    private static final int SELF_EVENTS = FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    static class Document {
+        final String name;
+        final long sizeBytes;
+        final long lastModifiedMs;
+        TraceMetadata metadata;
+        // Whether the trace has an offset index, which is saved before its metadata.
+        boolean hasOffsetIndex;
+        // The search words of this document, so it can be removed from the search index.
+        Set<String> words = Collections.emptySet();
+
+        Document(String name, long sizeBytes, long lastModifiedMs, TraceMetadata metadata) {
+            this.name = name;
+            this.sizeBytes = sizeBytes;
+            this.lastModifiedMs = lastModifiedMs;
+            this.metadata = metadata;
+        }
+    }
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final Runnable mOnChanged;
+    private final FileObserver mTraceObserver;
+    private final FileObserver mMetadataObserver;
+
+    private final Object mLock = new Object();
+    // Null until the directory has been listed.
+    private Map<String, Document> mDocuments;
+    // Whether the directory went away, which also removed the watch on it.
+    private boolean mWatchLost;
+    // From a word, or a prefix of one, to the names of the documents that contain it.
+    private final Map<String, Set<String>> mSearchIndex = new HashMap<>();
+
+    /*
+     * onChanged is called on the observer thread whenever the index changes.
+     */
+    TraceDocumentIndex(Context context, File directory, Runnable onChanged) {
+        mContext = context;
+        mDirectory = directory;
+        mOnChanged = onChanged;
+        mTraceObserver = new FileObserver(directory, TRACE_EVENTS | SELF_EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                onTraceEvent(event, path);
+            }
+        };
+        mMetadataObserver = new FileObserver(TraceMetadata.getDirectory(context),
+                METADATA_EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                onMetadataEvent(path);
+            }
+        };
+    }
+
+    void startWatching() {
+        mTraceObserver.startWatching();
+        mMetadataObserver.startWatching();
+    }
+
+    List<Document> getDocuments() {
+        synchronized (mLock) {
+            return new ArrayList<>(getIndexLocked().values());
+        }
+    }
+
+    /* Returns the document for a trace, or null if there is no such trace. */
+    Document getDocument(String name) {
+        synchronized (mLock) {
+            return getIndexLocked().get(name);
+        }
+    }
+
+    /*
+     * Returns the documents that contain every word of query, either whole or as a prefix of
+     * one of their words.
+     */
+    List<Document> search(String query) {
+        synchronized (mLock) {
+            Map<String, Document> documents = getIndexLocked();
+            Set<String> names = null;
+            for (String word : getWords(query)) {
+                Set<String> matches = mSearchIndex.get(word);
+                if (matches == null) {
+                    return Collections.emptyList();
+                }
+                if (names == null) {
+                    names = new HashSet<>(matches);
+                } else {
+                    names.retainAll(matches);
+                }
+            }
+
+            List<Document> results = new ArrayList<>();
+            if (names != null) {
+                for (String name : names) {
+                    results.add(documents.get(name));
+                }
+            }
+            return results;
+        }
+    }
+
+    private void onTraceEvent(int event, String path) {
+        if ((event & SELF_EVENTS) != 0) {
+            Log.w(TAG, "The trace directory went away, dropping the document index.");
+            synchronized (mLock) {
+                mDocuments = null;
+                mSearchIndex.clear();
+                mWatchLost = true;
+            }
+            mOnChanged.run();
+            return;
+        }
+        if (path == null || isHidden(path)) {
+            return;
+        }
+
+        synchronized (mLock) {
+            if (mDocuments == null) {
+                // Nothing to update until the first query lists the directory.
+                return;
+            }
+            if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+                removeLocked(path);
+                TraceMetadata.delete(mContext, path);
+            } else {
+                Document document = stat(new File(mDirectory, path));
+                if (document != null) {
+                    putLocked(document);
+                }
+            }
+        }
+        mOnChanged.run();
+    }
+
+    private void onMetadataEvent(String path) {
+        String traceName = TraceMetadata.getTraceName(path);
+        if (traceName == null) {
+            return;
+        }
+
+        synchronized (mLock) {
+            Document document = mDocuments == null ? null : mDocuments.get(traceName);
+            if (document == null) {
+                return;
+            }
+            // The metadata adds search words, so the document is indexed again.
+            removeLocked(traceName);
+            document.metadata = TraceMetadata.load(mContext, traceName);
+            document.hasOffsetIndex = TraceOffsetIndex.exists(mContext, traceName);
+            putLocked(document);
+        }
+        mOnChanged.run();
+    }
+
+    private Map<String, Document> getIndexLocked() {
+        if (mDocuments == null) {
+            if (mWatchLost) {
+                if (!mDirectory.isDirectory()) {
+                    // Nothing to list or watch until the directory is back.
+                    return Collections.emptyMap();
+                }
+                // Watched again before listing, so that no change is missed in between.
+                mTraceObserver.stopWatching();
+                mTraceObserver.startWatching();
+                mWatchLost = false;
+            }
+            mDocuments = new TreeMap<>();
+            File[] files = mDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    Document document = isHidden(file.getName()) ? null : stat(file);
+                    if (document != null) {
+                        putLocked(document);
+                    }
+                }
+            }
+            deleteOrphanedMetadata();
+            Log.v(TAG, "Indexed " + mDocuments.size() + " trace documents.");
+        }
+        return mDocuments;
+    }
+
+    private void putLocked(Document document) {
+        removeLocked(document.name);
+        document.words = getSearchWords(document);
+        for (String word : document.words) {
+            mSearchIndex.computeIfAbsent(word, k -> new HashSet<>()).add(document.name);
+        }
+        mDocuments.put(document.name, document);
+    }
+
+    private void removeLocked(String name) {
+        Document document = mDocuments.remove(name);
+        if (document == null) {
+            return;
+        }
+        for (String word : document.words) {
+            Set<String> names = mSearchIndex.get(word);
+            names.remove(name);
+            if (names.isEmpty()) {
+                mSearchIndex.remove(word);
+            }
+        }
+    }
+
+    /*
+     * Returns the words a document can be found by, and all their prefixes. The name gives the
+     * board, the build ID and the date and time the trace was saved (see
+     * TraceUtils.getOutputFilename()), and the metadata gives the engine, the categories and
+     * the duration, in whole minutes ("5m") or, for short traces, seconds ("30s").
+     */
+    private static Set<String> getSearchWords(Document document) {
+        List<String> words = getWords(document.name);
+        TraceMetadata metadata = document.metadata;
+        if (metadata != null) {
+            words.addAll(getWords(metadata.engine));
+            words.addAll(getWords(metadata.categories));
+            if (metadata.durationMs >= 0) {
+                long seconds = metadata.durationMs / 1000;
+                words.add(seconds < 60 ? seconds + "s" : seconds / 60 + "m");
+            }
+        }
+
+        Set<String> prefixes = new HashSet<>();
+        for (String word : words) {
+            for (int i = 1; i <= word.length(); i++) {
+                prefixes.add(word.substring(0, i));
+            }
+        }
+        return prefixes;
+    }
+
+    // Splits text into lower case words of letters and digits. Queries are split the same way,
+    // so that e.g. a build ID with dots in it matches as a whole.
+    private static List<String> getWords(String text) {
+        List<String> words = new ArrayList<>();
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{Alnum}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    // Sidecars of traces that were deleted while nothing was watching.
+    private void deleteOrphanedMetadata() {
+        String[] names = TraceMetadata.getDirectory(mContext).list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            String traceName = TraceMetadata.getTraceName(name);
+            if (traceName == null) {
+                traceName = TraceOffsetIndex.getTraceName(name);
+            }
+            if (traceName == null) {
+                traceName = CpuUsageVisitor.getTraceName(name);
+            }
+            if (traceName != null && !mDocuments.containsKey(traceName)) {
+                TraceMetadata.delete(mContext, traceName);
+            }
+        }
+    }
+
+    private Document stat(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        Document document = new Document(file.getName(), file.length(), file.lastModified(),
+                TraceMetadata.load(mContext, file.getName()));
+        document.hasOffsetIndex = TraceOffsetIndex.exists(mContext, file.getName());
+        return document;
+    }
+
+    // Hidden files are traces still being recorded or written.
+    private static boolean isHidden(String name) {
+        return name.startsWith(".");
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Facts about a saved trace that are expensive to derive from the trace itself, kept in a
+ * small sidecar file next to Traceur's private data. StorageProvider serves them as extra
+ * document columns without parsing the trace on every query.
+ */
+public class TraceMetadata {
+
+    static final String TAG = "Traceur";
+
+    static final String DIRECTORY = "trace_metadata";
+    private static final String SUFFIX = ".meta";
+    private static final int VERSION = 1;
+
+    public String engine = "";
+    public String categories = "";
+    /* How long the trace covers, or -1 if unknown. */
+    public long durationMs = -1;
+    /* The size of the trace before compression, or -1 if it isn't compressed. */
+    public long uncompressedBytes = -1;
+
+    public TraceMetadata() {
+    }
+
+    public TraceMetadata(String engine, String categories) {
+        this.engine = engine;
+        this.categories = categories;
+    }
+
+    /* The directory holding the sidecars, which StorageProvider watches. */
+    public static File getDirectory(Context context) {
+        return context.getDir(DIRECTORY, Context.MODE_PRIVATE);
+    }
+
+    /* The name of the trace a sidecar belongs to, or null if name isn't a sidecar. */
+    public static String getTraceName(String name) {
+        return name != null && name.endsWith(SUFFIX)
+                ? name.substring(0, name.length() - SUFFIX.length()) : null;
+    }
+
+    public void save(Context context, String traceName) {
+        AtomicFile file = getFile(context, traceName);
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(VERSION);
+            data.writeUTF(engine);
+            data.writeUTF(categories);
+            data.writeLong(durationMs);
+            data.writeLong(uncompressedBytes);
+            data.flush();
+            file.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write the metadata of " + traceName, e);
+            file.failWrite(out);
+        }
+    }
+
+    /* Returns the metadata of a trace, or null if there is none. */
+    public static TraceMetadata load(Context context, String traceName) {
+        AtomicFile file = getFile(context, traceName);
+        try (DataInputStream in = new DataInputStream(file.openRead())) {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            TraceMetadata metadata = new TraceMetadata();
+            metadata.engine = in.readUTF();
+            metadata.categories = in.readUTF();
+            metadata.durationMs = in.readLong();
+            metadata.uncompressedBytes = in.readLong();
+            return metadata;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the metadata of " + traceName, e);
+            return null;
+        }
+    }
+
+    /* Deletes the sidecars of a trace, including its offset index and CPU usage. */
+    public static void delete(Context context, String traceName) {
+        getFile(context, traceName).delete();
+        TraceOffsetIndex.delete(context, traceName);
+        CpuUsageVisitor.delete(context, traceName);
+    }
+
+    private static AtomicFile getFile(Context context, String traceName) {
+        return new AtomicFile(new File(getDirectory(context), traceName + SUFFIX));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import perfetto.protos.TracePacketOuterClass.TracePacket;
+
+/**
+ * A sparse index from timestamps to file offsets in a saved trace, so that tools can seek to
+ * e.g. the last 10 seconds of a multi-gigabyte trace instead of reading all of it.
+ *
+ * It is built as a visitor in the same pass that processes the saved trace, and kept as a
+ * sidecar next to the trace's metadata, which StorageProvider serves as a companion document.
+ * The sidecar is a big-endian VERSION int, an entry count int, then for each entry the boot
+ * time in ns of a packet and the offset in the trace of the field holding that packet.
+ *
+ * There is an entry at least every INTERVAL_BYTES of trace or INTERVAL_NS of trace time,
+ * whichever comes first, at the next packet with a timestamp. Entries are in increasing time
+ * order, but packets of different writers interleave in the file, so packets shortly before
+ * an entry may be newer than it. Readers should start one entry before the time they want.
+ * Offsets are into the uncompressed trace.
+ */
+public class TraceOffsetIndex implements TracePacketReader.PacketVisitor {
+
+    static final String TAG = "Traceur";
+
+    private static final String SUFFIX = ".index";
+    private static final int VERSION = 1;
+
+    private static final long INTERVAL_BYTES = 1 << 20;
+    static final long INTERVAL_NS = 1000000000L;
+
+    private long[] mTimestampsNs = new long[64];
+    private long[] mOffsets = new long[64];
+    private int mCount;
+
+    @Override
+    public void visitPacket(long offset, int size, byte[] packet, int length)
+            throws IOException {
+        long timestampNs = readTimestamp(packet, length);
+        if (timestampNs <= 0) {
+            return;
+        }
+        if (mCount > 0) {
+            long lastNs = mTimestampsNs[mCount - 1];
+            // Keep entries in time order, for binary searches.
+            if (timestampNs <= lastNs) {
+                return;
+            }
+            if (offset - mOffsets[mCount - 1] < INTERVAL_BYTES
+                    && timestampNs - lastNs < INTERVAL_NS) {
+                return;
+            }
+        }
+        add(timestampNs, offset);
+    }
+
+    private static long readTimestamp(byte[] packet, int length) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(packet, 0, length);
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            if (WireFormat.getTagFieldNumber(tag) == TracePacket.TIMESTAMP_FIELD_NUMBER) {
+                return in.readUInt64();
+            }
+            in.skipField(tag);
+        }
+        return 0;
+    }
+
+    private void add(long timestampNs, long offset) {
+        if (mCount == mOffsets.length) {
+            mTimestampsNs = Arrays.copyOf(mTimestampsNs, mCount * 2);
+            mOffsets = Arrays.copyOf(mOffsets, mCount * 2);
+        }
+        mTimestampsNs[mCount] = timestampNs;
+        mOffsets[mCount] = offset;
+        mCount++;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public void save(Context context, String traceName) {
+        if (mCount == 0) {
+            return;
+        }
+        AtomicFile file = new AtomicFile(getFile(context, traceName));
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            data.writeInt(VERSION);
+            data.writeInt(mCount);
+            for (int i = 0; i < mCount; i++) {
+                data.writeLong(mTimestampsNs[i]);
+                data.writeLong(mOffsets[i]);
+            }
+            data.flush();
+            file.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write the offset index of " + traceName, e);
+            file.failWrite(out);
+        }
+    }
+
+    /*
+     * The time of the last entry in the sidecar of a trace, or -1 if it has none. The trace
+     * ends at most INTERVAL_NS after it.
+     */
+    public static long readLastTimestampNs(Context context, String traceName) {
+        File file = getFile(context, traceName);
+        if (!file.isFile()) {
+            return -1;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.readInt() != VERSION) {
+                return -1;
+            }
+            int count = in.readInt();
+            if (count <= 0) {
+                return -1;
+            }
+            // After the two ints, each entry is two longs.
+            in.seek(8 + (count - 1) * 16L);
+            return in.readLong();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the offset index of " + traceName, e);
+            return -1;
+        }
+    }
+
+    /* The sidecar of a trace, which may not exist. */
+    public static File getFile(Context context, String traceName) {
+        return new File(TraceMetadata.getDirectory(context), traceName + SUFFIX);
+    }
+
+    public static boolean exists(Context context, String traceName) {
+        return getFile(context, traceName).isFile();
+    }
+
+    /* The name of the trace a sidecar belongs to, or null if name isn't a sidecar. */
+    public static String getTraceName(String name) {
+        return name != null && name.endsWith(SUFFIX)
+                ? name.substring(0, name.length() - SUFFIX.length()) : null;
+    }
+
+    /* Moves the sidecar along with a trace that was renamed, e.g. when it was compressed. */
+    public static void rename(Context context, String traceName, String newTraceName) {
+        File file = getFile(context, traceName);
+        if (file.exists() && !file.renameTo(getFile(context, newTraceName))) {
+            Log.w(TAG, "Failed to move the offset index of " + traceName);
+        }
+    }
+
+    public static void delete(Context context, String traceName) {
+        new AtomicFile(getFile(context, traceName)).delete();
+    }
+}
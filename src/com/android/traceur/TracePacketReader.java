@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import com.google.protobuf.WireFormat;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import perfetto.protos.TraceOuterClass.Trace;
+
+/**
+ * Reads the packets of a perfetto trace in a single streaming pass.
+ *
+ * A trace file is a serialized Trace message, i.e. a sequence of length-delimited TracePacket
+ * fields. Each packet is read into a reused buffer and handed to every visitor in turn, so
+ * several visitors can share one pass over the file without allocating per packet.
+ */
+public class TracePacketReader {
+
+    public interface PacketVisitor {
+        /**
+         * Called for each packet. The buffer is reused for the next packet, so it must not be
+         * retained after the call returns.
+         *
+         * @param offset the offset in the stream of the field that holds the packet.
+         * @param size the size of that field, i.e. of the packet and its framing.
+         */
+        void visitPacket(long offset, int size, byte[] packet, int length) throws IOException;
+    }
+
+    private static final int PACKET_TAG = (Trace.PACKET_FIELD_NUMBER << 3)
+            | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+    private static final int READ_BUFFER_SIZE = 64 << 10;
+    private static final int INITIAL_PACKET_SIZE = 16 << 10;
+    private static final int MAX_PACKET_SIZE = 256 << 20;
+
+    private final InputStream mIn;
+    private long mOffset;
+    private byte[] mPacket = new byte[INITIAL_PACKET_SIZE];
+
+    private TracePacketReader(InputStream in) {
+        mIn = in instanceof BufferedInputStream
+                ? in : new BufferedInputStream(in, READ_BUFFER_SIZE);
+    }
+
+    /**
+     * Reads the trace in file, handing each packet to the visitors. Returns the number of
+     * packets read.
+     */
+    public static long read(File file, PacketVisitor... visitors) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return read(in, visitors);
+        }
+    }
+
+    /**
+     * Same as above, for a trace read from a stream. The stream is not closed.
+     */
+    public static long read(InputStream in, PacketVisitor... visitors) throws IOException {
+        return new TracePacketReader(in).readAll(visitors);
+    }
+
+    /**
+     * Returns the length of the longest prefix of the trace in file that holds only complete
+     * packets, e.g. to recover a trace whose writer died mid-packet, in a single sequential
+     * pass. The packets of that prefix are handed to the visitors, so that whatever is learned
+     * from the trace doesn't take a second pass. Without visitors, packets are skipped rather
+     * than read, so this is cheap even for multi-gigabyte traces.
+     */
+    public static long findCompleteLength(File file, PacketVisitor... visitors)
+            throws IOException {
+        long fileLength = file.length();
+        try (InputStream in = new FileInputStream(file)) {
+            return new TracePacketReader(in).scanComplete(fileLength, visitors);
+        }
+    }
+
+    private long scanComplete(long fileLength, PacketVisitor[] visitors) {
+        long complete = 0;
+        try {
+            while (true) {
+                long offset = mOffset;
+                long tag = readVarint(true);
+                // Field number 0 is invalid, e.g. zeroes the writer never got to overwrite.
+                if (tag < 0 || WireFormat.getTagFieldNumber((int) tag) == 0) {
+                    return complete;
+                }
+                if (tag == PACKET_TAG && visitors.length > 0) {
+                    long length = readVarint(false);
+                    // Checked before reading, since a corrupt length can be anything.
+                    if (length > MAX_PACKET_SIZE || length > fileLength - mOffset) {
+                        return complete;
+                    }
+                    if (length > mPacket.length) {
+                        mPacket = new byte[Math.max((int) length, mPacket.length * 2)];
+                    }
+                    readFully(mPacket, (int) length);
+                    // Only complete packets are visited, so nothing past the prefix is.
+                    int size = (int) (mOffset - offset);
+                    for (PacketVisitor visitor : visitors) {
+                        visitor.visitPacket(offset, size, mPacket, (int) length);
+                    }
+                } else {
+                    skipField((int) tag);
+                }
+                // Skipping can seek past the end of the file without failing.
+                if (mOffset > fileLength) {
+                    return complete;
+                }
+                complete = mOffset;
+            }
+        } catch (IOException e) {
+            // A truncated or corrupt field ends the complete part.
+            return complete;
+        }
+    }
+
+    private long readAll(PacketVisitor[] visitors) throws IOException {
+        long packets = 0;
+        while (true) {
+            long offset = mOffset;
+            long tag = readVarint(true);
+            if (tag < 0) {
+                return packets;
+            }
+
+            if (tag != PACKET_TAG) {
+                skipField((int) tag);
+                continue;
+            }
+
+            long length = readVarint(false);
+            if (length > MAX_PACKET_SIZE) {
+                throw new IOException("Trace packet at " + offset + " is too large: " + length);
+            }
+            if (length > mPacket.length) {
+                mPacket = new byte[Math.max((int) length, mPacket.length * 2)];
+            }
+            readFully(mPacket, (int) length);
+
+            int size = (int) (mOffset - offset);
+            for (PacketVisitor visitor : visitors) {
+                visitor.visitPacket(offset, size, mPacket, (int) length);
+            }
+            packets++;
+        }
+    }
+
+    // Skips a top-level field that isn't a packet. Traces shouldn't contain any.
+    private void skipField(int tag) throws IOException {
+        switch (WireFormat.getTagWireType(tag)) {
+            case WireFormat.WIRETYPE_VARINT:
+                readVarint(false);
+                break;
+            case WireFormat.WIRETYPE_FIXED64:
+                skip(8);
+                break;
+            case WireFormat.WIRETYPE_FIXED32:
+                skip(4);
+                break;
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+                skip(readVarint(false));
+                break;
+            default:
+                throw new IOException("Malformed trace at offset " + mOffset);
+        }
+    }
+
+    /*
+     * Reads a varint. If atFieldStart and the stream ends before its first byte, returns -1
+     * instead of throwing.
+     */
+    private long readVarint(boolean atFieldStart) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = mIn.read();
+            if (b < 0) {
+                if (atFieldStart && shift == 0) {
+                    return -1;
+                }
+                throw new EOFException("Truncated trace at offset " + mOffset);
+            }
+            mOffset++;
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint at offset " + mOffset);
+    }
+
+    private void readFully(byte[] buf, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = mIn.read(buf, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Truncated trace at offset " + mOffset);
+            }
+            read += n;
+            mOffset += n;
+        }
+    }
+
+    private void skip(long length) throws IOException {
+        while (length > 0) {
+            long n = mIn.skip(length);
+            if (n <= 0) {
+                if (mIn.read() < 0) {
+                    throw new EOFException("Truncated trace at offset " + mOffset);
+                }
+                n = 1;
+            }
+            length -= n;
+            mOffset += n;
+        }
+    }
+}
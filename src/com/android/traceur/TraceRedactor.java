@@ -0,0 +1,538 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import perfetto.protos.Ftrace.PrintFtraceEvent;
+import perfetto.protos.FtraceEventBundleOuterClass.FtraceEventBundle;
+import perfetto.protos.FtraceEventOuterClass.FtraceEvent;
+import perfetto.protos.ProcessTreeOuterClass.ProcessTree;
+import perfetto.protos.TraceOuterClass.Trace;
+import perfetto.protos.TracePacketOuterClass.TracePacket;
+
+/**
+ * Writes a copy of a saved trace without the data the user chose not to share:
+ *   - REDACT_COMMAND_LINES keeps only the process name of each command line,
+ *   - REDACT_SLICE_NAMES replaces the names of atrace slices and counters of processes that
+ *     aren't allowlisted, see R.array.redaction_allowed_processes,
+ *   - REDACT_LOGCAT drops logcat packets.
+ *
+ * The trace is read with large sequential reads. When slice names are redacted, a first pass
+ * learns which processes are allowlisted from the process trees, which perfetto records in
+ * another buffer than ftrace and so can come after the slices of their processes. A second
+ * pass writes the copy. Only the packets, bundles and events that change are rewritten, in
+ * reused buffers, and what is kept about processes is bounded, so memory use doesn't depend
+ * on the size of the trace.
+ */
+public class TraceRedactor {
+
+    static final String TAG = "Traceur";
+
+    // The values of the redactions preference.
+    public static final String REDACT_COMMAND_LINES = "command_lines";
+    public static final String REDACT_SLICE_NAMES = "slice_names";
+    public static final String REDACT_LOGCAT = "logcat";
+
+    private static final String SUFFIX = "-redacted";
+    private static final String REDACTED = "redacted";
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int MAX_PROCESSES = 1 << 16;
+
+    private static final int PACKET_TAG = (Trace.PACKET_FIELD_NUMBER << 3)
+            | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+    private final OutputStream mOut;
+    private final boolean mCommandLines;
+    private final boolean mSliceNames;
+    private final boolean mLogcat;
+    private final Set<String> mAllowedProcesses;
+
+    // Whether each process seen in a process tree is allowlisted.
+    private final SparseBooleanArray mAllowedPids = new SparseBooleanArray();
+
+    // One buffer per level of nesting that can be rewritten.
+    private final ByteArrayOutputStream mPacket = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream mMessage = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream mItem = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream mLeaf = new ByteArrayOutputStream();
+
+    private long mPacketsDropped;
+    private long mFieldsScrubbed;
+
+    private TraceRedactor(OutputStream out, Set<String> redactions,
+            Set<String> allowedProcesses) {
+        mOut = out;
+        mCommandLines = redactions.contains(REDACT_COMMAND_LINES);
+        mSliceNames = redactions.contains(REDACT_SLICE_NAMES);
+        mLogcat = redactions.contains(REDACT_LOGCAT);
+        mAllowedProcesses = allowedProcesses;
+    }
+
+    /* Whether name is one getRedactedFilename() gives. */
+    public static boolean isRedacted(String name) {
+        return name.contains(SUFFIX + ".");
+    }
+
+    /* Whether the saved trace named name can be redacted, i.e. is a perfetto trace. */
+    public static boolean canRedact(String name) {
+        String extension = "." + PerfettoUtils.OUTPUT_EXTENSION;
+        return TraceUtils.isSavedTrace(name) && !isRedacted(name) && (name.endsWith(extension)
+                || name.endsWith(extension + TraceCompressor.EXTENSION));
+    }
+
+    /* The name of the redacted copy of the trace named name. It is never compressed. */
+    public static String getRedactedFilename(String name) {
+        if (name.endsWith(TraceCompressor.EXTENSION)) {
+            name = name.substring(0, name.length() - TraceCompressor.EXTENSION.length());
+        }
+        int extension = name.lastIndexOf('.');
+        return name.substring(0, extension) + SUFFIX + name.substring(extension);
+    }
+
+    /*
+     * Writes a redacted copy of trace next to it, with the redactions chosen in the settings.
+     * trace may be compressed. Returns the copy, or null if it couldn't be written.
+     */
+    public static File redact(Context context, File trace) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Set<String> redactions = prefs.getStringSet(
+                context.getString(R.string.pref_key_redactions),
+                new HashSet<>(Arrays.asList(
+                        context.getResources().getStringArray(R.array.redaction_values))));
+        Set<String> allowed = new HashSet<>(Arrays.asList(context.getResources()
+                .getStringArray(R.array.redaction_allowed_processes)));
+        return redact(trace, redactions, allowed);
+    }
+
+    /*
+     * Same as above, with the given redactions, and the names of the processes whose slices
+     * are kept.
+     */
+    static File redact(File trace, Set<String> redactions, Set<String> allowedProcesses) {
+        File output = new File(trace.getParentFile(), getRedactedFilename(trace.getName()));
+        // Written under a hidden name first, so that a partial file is never listed as a trace.
+        File temp = new File(output.getParentFile(), "." + output.getName() + ".tmp");
+        long startMs = SystemClock.elapsedRealtime();
+        TraceRedactor redactor;
+        try (FileOutputStream fileOut = new FileOutputStream(temp);
+                OutputStream out = new BufferedOutputStream(fileOut, BUFFER_SIZE)) {
+            redactor = new TraceRedactor(out, redactions, allowedProcesses);
+            if (redactor.mSliceNames) {
+                try (InputStream in = openTrace(trace)) {
+                    TracePacketReader.read(in, redactor::learnProcesses);
+                }
+            }
+            try (InputStream in = openTrace(trace)) {
+                TracePacketReader.read(in, redactor::visitPacket);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to redact " + trace, e);
+            temp.delete();
+            return null;
+        }
+        if (!temp.renameTo(output)) {
+            Log.e(TAG, "Failed to rename " + temp + " to " + output);
+            temp.delete();
+            return null;
+        }
+        output.setReadable(true, false);
+
+        Log.i(TAG, "Redacted " + trace + " to " + output + " in "
+                + (SystemClock.elapsedRealtime() - startMs) + " ms: dropped "
+                + redactor.mPacketsDropped + " packets, scrubbed " + redactor.mFieldsScrubbed
+                + " fields.");
+        return output;
+    }
+
+    private static InputStream openTrace(File trace) throws IOException {
+        InputStream in = new FileInputStream(trace);
+        try {
+            if (TraceCompressor.isCompressed(trace)) {
+                in = new GZIPInputStream(in, BUFFER_SIZE);
+            }
+            return new BufferedInputStream(in, BUFFER_SIZE);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    // The first pass: learns which processes are allowlisted.
+    private void learnProcesses(long offset, int size, byte[] packet, int length)
+            throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(packet, 0, length);
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            if (WireFormat.getTagFieldNumber(tag) != TracePacket.PROCESS_TREE_FIELD_NUMBER) {
+                in.skipField(tag);
+                continue;
+            }
+            int treeLimit = in.pushLimit(in.readRawVarint32());
+            for (int treeTag = in.readTag(); treeTag != 0; treeTag = in.readTag()) {
+                if (WireFormat.getTagFieldNumber(treeTag) == ProcessTree.PROCESSES_FIELD_NUMBER) {
+                    int limit = in.pushLimit(in.readRawVarint32());
+                    learnProcess(in);
+                    in.popLimit(limit);
+                } else {
+                    in.skipField(treeTag);
+                }
+            }
+            in.popLimit(treeLimit);
+        }
+    }
+
+    // Reads up to the end of the process, which is the current limit.
+    private void learnProcess(CodedInputStream in) throws IOException {
+        int pid = 0;
+        String name = null;
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            int field = WireFormat.getTagFieldNumber(tag);
+            if (field == ProcessTree.Process.PID_FIELD_NUMBER) {
+                pid = in.readInt32();
+            } else if (field == ProcessTree.Process.CMDLINE_FIELD_NUMBER && name == null) {
+                name = in.readString();
+            } else {
+                in.skipField(tag);
+            }
+        }
+
+        if (pid > 0 && name != null
+                && (mAllowedPids.size() < MAX_PROCESSES || mAllowedPids.indexOfKey(pid) >= 0)) {
+            // App processes other than the main one are named "package:process".
+            int colon = name.indexOf(':');
+            String processName = colon > 0 ? name.substring(0, colon) : name;
+            mAllowedPids.put(pid, mAllowedProcesses.contains(processName));
+        }
+    }
+
+    // The second pass: writes the packet, redacted.
+    private void visitPacket(long offset, int size, byte[] packet, int length)
+            throws IOException {
+        boolean rewrite = false;
+        CodedInputStream in = CodedInputStream.newInstance(packet, 0, length);
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case TracePacket.ANDROID_LOG_FIELD_NUMBER:
+                    if (mLogcat) {
+                        mPacketsDropped++;
+                        return;
+                    }
+                    in.skipField(tag);
+                    break;
+                case TracePacket.PROCESS_TREE_FIELD_NUMBER:
+                    rewrite |= mCommandLines;
+                    in.skipField(tag);
+                    break;
+                case TracePacket.FTRACE_EVENTS_FIELD_NUMBER:
+                    rewrite |= mSliceNames;
+                    in.skipField(tag);
+                    break;
+                default:
+                    in.skipField(tag);
+                    break;
+            }
+        }
+
+        if (!rewrite) {
+            writeField(mOut, PACKET_TAG, packet, 0, length);
+            return;
+        }
+
+        mPacket.reset();
+        in = CodedInputStream.newInstance(packet, 0, length);
+        while (true) {
+            int fieldStart = in.getTotalBytesRead();
+            int tag = in.readTag();
+            if (tag == 0) {
+                break;
+            }
+            int field = WireFormat.getTagFieldNumber(tag);
+            if (field == TracePacket.PROCESS_TREE_FIELD_NUMBER && mCommandLines) {
+                int end = readLength(in);
+                rewriteProcessTree(packet, in.getTotalBytesRead(), end);
+                in.skipRawBytes(end - in.getTotalBytesRead());
+                writeField(mPacket, tag, mMessage);
+            } else if (field == TracePacket.FTRACE_EVENTS_FIELD_NUMBER && mSliceNames) {
+                int end = readLength(in);
+                rewriteBundle(packet, in.getTotalBytesRead(), end);
+                in.skipRawBytes(end - in.getTotalBytesRead());
+                writeField(mPacket, tag, mMessage);
+            } else {
+                in.skipField(tag);
+                mPacket.write(packet, fieldStart, in.getTotalBytesRead() - fieldStart);
+            }
+        }
+        writeField(mOut, PACKET_TAG, mPacket);
+    }
+
+    // Scrubs the command lines of the processes.
+    private void rewriteProcessTree(byte[] buf, int start, int end) throws IOException {
+        mMessage.reset();
+        CodedInputStream in = CodedInputStream.newInstance(buf, start, end - start);
+        while (true) {
+            int fieldStart = start + in.getTotalBytesRead();
+            int tag = in.readTag();
+            if (tag == 0) {
+                return;
+            }
+            in.skipField(tag);
+            int fieldEnd = start + in.getTotalBytesRead();
+            if (WireFormat.getTagFieldNumber(tag) == ProcessTree.PROCESSES_FIELD_NUMBER) {
+                int itemStart = fieldStart + tagAndLengthSize(buf, fieldStart);
+                rewriteProcess(buf, itemStart, fieldEnd);
+                writeField(mMessage, tag, mItem);
+            } else {
+                mMessage.write(buf, fieldStart, fieldEnd - fieldStart);
+            }
+        }
+    }
+
+    private void rewriteProcess(byte[] buf, int start, int end) throws IOException {
+        mItem.reset();
+        boolean named = false;
+        CodedInputStream in = CodedInputStream.newInstance(buf, start, end - start);
+        while (true) {
+            int fieldStart = start + in.getTotalBytesRead();
+            int tag = in.readTag();
+            if (tag == 0) {
+                break;
+            }
+            in.skipField(tag);
+            if (WireFormat.getTagFieldNumber(tag) == ProcessTree.Process.CMDLINE_FIELD_NUMBER) {
+                if (named) {
+                    // Only the first argument, the process name, is kept.
+                    mFieldsScrubbed++;
+                    continue;
+                }
+                named = true;
+            }
+            mItem.write(buf, fieldStart, start + in.getTotalBytesRead() - fieldStart);
+        }
+    }
+
+    private void rewriteBundle(byte[] buf, int start, int end) throws IOException {
+        mMessage.reset();
+        CodedInputStream in = CodedInputStream.newInstance(buf, start, end - start);
+        while (true) {
+            int fieldStart = start + in.getTotalBytesRead();
+            int tag = in.readTag();
+            if (tag == 0) {
+                return;
+            }
+            in.skipField(tag);
+            int fieldEnd = start + in.getTotalBytesRead();
+            if (WireFormat.getTagFieldNumber(tag) == FtraceEventBundle.EVENT_FIELD_NUMBER
+                    && rewriteEvent(buf, fieldStart + tagAndLengthSize(buf, fieldStart),
+                            fieldEnd)) {
+                writeField(mMessage, tag, mItem);
+            } else {
+                mMessage.write(buf, fieldStart, fieldEnd - fieldStart);
+            }
+        }
+    }
+
+    // Returns whether the event changed, in which case mItem holds the new one.
+    private boolean rewriteEvent(byte[] buf, int start, int end) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(buf, start, end - start);
+        int printStart = -1;
+        int printEnd = -1;
+        int printTag = 0;
+        while (true) {
+            int fieldStart = start + in.getTotalBytesRead();
+            int tag = in.readTag();
+            if (tag == 0) {
+                break;
+            }
+            in.skipField(tag);
+            if (WireFormat.getTagFieldNumber(tag) == FtraceEvent.PRINT_FIELD_NUMBER) {
+                printTag = tag;
+                printStart = fieldStart;
+                printEnd = start + in.getTotalBytesRead();
+            }
+        }
+        if (printStart < 0 || !rewritePrint(buf,
+                printStart + tagAndLengthSize(buf, printStart), printEnd)) {
+            return false;
+        }
+
+        mItem.reset();
+        mItem.write(buf, start, printStart - start);
+        writeField(mItem, printTag, mLeaf);
+        mItem.write(buf, printEnd, end - printEnd);
+        return true;
+    }
+
+    /*
+     * Returns whether the print event changed, in which case mLeaf holds the new one. atrace
+     * writes, with the trailing fields that are kept after the names:
+     *   - slices as "B|pid|name" and "E|pid",
+     *   - counters as "C|pid|name|value",
+     *   - async slices as "S|pid|name|cookie" and "F|pid|name|cookie",
+     *   - async slices on a named track as "G|pid|track|name|cookie" and "H|pid|track|cookie",
+     *   - instants as "I|pid|name" and "N|pid|track|name".
+     */
+    private boolean rewritePrint(byte[] buf, int start, int end) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(buf, start, end - start);
+        mLeaf.reset();
+        boolean changed = false;
+        while (true) {
+            int fieldStart = start + in.getTotalBytesRead();
+            int tag = in.readTag();
+            if (tag == 0) {
+                return changed;
+            }
+            if (WireFormat.getTagFieldNumber(tag) != PrintFtraceEvent.BUF_FIELD_NUMBER) {
+                in.skipField(tag);
+                mLeaf.write(buf, fieldStart, start + in.getTotalBytesRead() - fieldStart);
+                continue;
+            }
+            String message = in.readString();
+            String redacted = redactPrint(message);
+            if (redacted == null) {
+                mLeaf.write(buf, fieldStart, start + in.getTotalBytesRead() - fieldStart);
+            } else {
+                writeField(mLeaf, tag, redacted.getBytes(StandardCharsets.UTF_8));
+                changed = true;
+                mFieldsScrubbed++;
+            }
+        }
+    }
+
+    /*
+     * Returns the message with its names redacted, or null if it is kept as is. Only the ends
+     * of slices, which have no name, and the messages of allowlisted processes are kept.
+     * Anything else after the pid is redacted whole, as is a message without one.
+     */
+    private String redactPrint(String message) {
+        boolean newline = message.endsWith("\n");
+        String trailer = newline ? "\n" : "";
+        String body = newline ? message.substring(0, message.length() - 1) : message;
+        if (body.equals("E") || body.startsWith("E|")) {
+            return null;
+        }
+        int pidEnd = body.length() > 2 && body.charAt(1) == '|' ? body.indexOf('|', 2) : -1;
+        if (pidEnd < 0) {
+            return REDACTED + trailer;
+        }
+        try {
+            if (mAllowedPids.get(Integer.parseInt(body.substring(2, pidEnd)), false)) {
+                return null;
+            }
+        } catch (NumberFormatException e) {
+            return REDACTED + trailer;
+        }
+
+        String names;
+        boolean keepLast;
+        switch (body.charAt(0)) {
+            case 'C':
+            case 'S':
+            case 'F':
+            case 'H':
+                names = REDACTED;
+                keepLast = true;
+                break;
+            case 'G':
+                names = REDACTED + "|" + REDACTED;
+                keepLast = true;
+                break;
+            case 'N':
+                names = REDACTED + "|" + REDACTED;
+                keepLast = false;
+                break;
+            default:
+                // 'B', 'I' and unknown types.
+                names = REDACTED;
+                keepLast = false;
+                break;
+        }
+        // Names can hold '|', so the value or cookie is found from the end.
+        int lastStart = keepLast ? body.lastIndexOf('|') : -1;
+        String last = lastStart > pidEnd ? body.substring(lastStart) : "";
+        return body.substring(0, pidEnd + 1) + names + last + trailer;
+    }
+
+    // Reads the length of a length-delimited field, and returns where the field ends.
+    private static int readLength(CodedInputStream in) throws IOException {
+        int length = in.readRawVarint32();
+        return in.getTotalBytesRead() + length;
+    }
+
+    // The size of the tag and length of the length-delimited field at buf[offset].
+    private static int tagAndLengthSize(byte[] buf, int offset) {
+        int i = offset;
+        // Tag, then length, both varints.
+        for (int varints = 0; varints < 2; varints++) {
+            while ((buf[i++] & 0x80) != 0) {
+            }
+        }
+        return i - offset;
+    }
+
+    private static void writeField(OutputStream out, int tag, ByteArrayOutputStream value)
+            throws IOException {
+        writeVarint(out, tag);
+        writeVarint(out, value.size());
+        value.writeTo(out);
+    }
+
+    private static void writeField(OutputStream out, int tag, byte[] value, int start,
+            int length) throws IOException {
+        writeVarint(out, tag);
+        writeVarint(out, length);
+        out.write(value, start, length);
+    }
+
+    private static void writeField(OutputStream out, int tag, byte[] value)
+            throws IOException {
+        writeField(out, tag, value, 0, value.length);
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.StatFs;
+import android.preference.PreferenceManager;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decides which saved traces to keep.
+ *
+ * Traces are evicted least recently used first, until:
+ *   - the saved traces fit in the storage quota chosen by the user,
+ *   - the trace partition has at least FREE_SPACE_FLOOR_BYTES free,
+ *   - only MIN_KEEP_COUNT traces remain that are older than MAX_AGE.
+ * The most recently used trace is never evicted, so a new trace can always be shared even if
+ * it is larger than the quota on its own. Before that, segments of a rolling long trace beyond
+ * the newest few are evicted, oldest first.
+ *
+ * The directory is listed once per process. After that, the index is kept up to date from the
+ * saves, reads and deletions Traceur makes, so enforcing the policy doesn't stat every trace.
+ * All work, including access to the index, runs on a single background thread.
+ */
+public class TraceRetention {
+
+    static final String TAG = "Traceur";
+
+    private static final int MIN_KEEP_COUNT = 3;
+    private static final long MAX_AGE = 4 * DateUtils.WEEK_IN_MILLIS;
+
+    private static final long MB_IN_BYTES = 1024 * 1024;
+    private static final long FREE_SPACE_FLOOR_BYTES = 2048 * MB_IN_BYTES;
+    // On small partitions, the floor is a share of the partition instead.
+    private static final int FREE_SPACE_FLOOR_DIVISOR = 20;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    // Only accessed on sExecutor. Null until the directory has been listed.
+    private static Map<String, Entry> sIndex;
+    private static File sIndexDirectory;
+
+    private static class Entry {
+        final File file;
+        final long sizeBytes;
+        long lastUsedMs;
+
+        Entry(File file, long sizeBytes, long lastUsedMs) {
+            this.file = file;
+            this.sizeBytes = sizeBytes;
+            this.lastUsedMs = lastUsedMs;
+        }
+    }
+
+    /*
+     * Adds a newly saved trace to the index, then evicts traces as needed.
+     */
+    public static void onTraceSaved(Context context, File file) {
+        final Context appContext = context.getApplicationContext();
+        sExecutor.execute(() -> {
+            Map<String, Entry> index = getIndex(TraceUtils.getOutputDirectory(appContext));
+            Entry entry = stat(file);
+            if (entry != null) {
+                index.put(file.getName(), entry);
+            }
+            int keepSegments = Receiver.getRollingSegments(appContext,
+                    PreferenceManager.getDefaultSharedPreferences(appContext));
+            if (keepSegments > 0) {
+                evictSegments(appContext, index, keepSegments);
+            }
+            enforce(appContext, index);
+        });
+    }
+
+    /*
+     * Marks a trace as used, so that it is evicted after traces that weren't used since.
+     */
+    public static void onTraceAccessed(File file) {
+        final long nowMs = System.currentTimeMillis();
+        sExecutor.execute(() -> {
+            Entry entry = sIndex == null ? null : sIndex.get(file.getName());
+            if (entry != null) {
+                entry.lastUsedMs = Math.max(entry.lastUsedMs, nowMs);
+            }
+        });
+    }
+
+    public static void onTraceDeleted(File file) {
+        sExecutor.execute(() -> {
+            if (sIndex != null) {
+                sIndex.remove(file.getName());
+            }
+        });
+    }
+
+    /*
+     * Drops the index, for when traces were removed without going through this class.
+     */
+    public static void invalidate() {
+        sExecutor.execute(() -> sIndex = null);
+    }
+
+    private static void enforce(Context context, Map<String, Entry> index) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        long quotaBytes = Integer.parseInt(prefs.getString(
+                context.getString(R.string.pref_key_trace_storage_quota),
+                context.getString(R.string.default_trace_storage_quota))) * MB_IN_BYTES;
+
+        StatFs statFs = new StatFs(TraceUtils.getOutputDirectory(context).getPath());
+        long freeBytes = statFs.getAvailableBytes();
+        long floorBytes = Math.min(FREE_SPACE_FLOOR_BYTES,
+                statFs.getTotalBytes() / FREE_SPACE_FLOOR_DIVISOR);
+
+        List<Entry> entries = new ArrayList<>(index.values());
+        entries.sort((a, b) -> Long.compare(a.lastUsedMs, b.lastUsedMs));
+        long totalBytes = 0;
+        for (Entry entry : entries) {
+            totalBytes += entry.sizeBytes;
+        }
+
+        long nowMs = System.currentTimeMillis();
+        int remaining = entries.size();
+        // Leave the most recently used trace alone.
+        for (int i = 0; i < entries.size() - 1; i++) {
+            Entry entry = entries.get(i);
+            boolean expired = remaining > MIN_KEEP_COUNT && nowMs - entry.lastUsedMs > MAX_AGE;
+            if (!expired && totalBytes <= quotaBytes && freeBytes >= floorBytes) {
+                break;
+            }
+
+            Log.v(TAG, "Evicting " + entry.file + " (" + entry.sizeBytes + " bytes, " + totalBytes
+                    + " bytes saved, " + freeBytes + " bytes free)");
+            if (evict(context, index, entry)) {
+                totalBytes -= entry.sizeBytes;
+                freeBytes += entry.sizeBytes;
+                remaining--;
+            }
+        }
+    }
+
+    /*
+     * Keeps only the newest keepCount segments of rolling long traces, so that a rolling trace
+     * has a fixed footprint however long it runs.
+     */
+    private static void evictSegments(Context context, Map<String, Entry> index, int keepCount) {
+        List<Entry> segments = new ArrayList<>();
+        for (Entry entry : index.values()) {
+            if (TraceUtils.isSegment(entry.file.getName())) {
+                segments.add(entry);
+            }
+        }
+        // Newest first, by when they were saved.
+        segments.sort((a, b) -> Long.compare(b.file.lastModified(), a.file.lastModified()));
+        for (int i = keepCount; i < segments.size(); i++) {
+            Log.v(TAG, "Evicting rolling segment " + segments.get(i).file);
+            evict(context, index, segments.get(i));
+        }
+    }
+
+    private static boolean evict(Context context, Map<String, Entry> index, Entry entry) {
+        if (!entry.file.delete() && entry.file.exists()) {
+            Log.e(TAG, "Failed to delete " + entry.file);
+            return false;
+        }
+        String name = entry.file.getName();
+        index.remove(name);
+        TraceMetadata.delete(context, name);
+        // The trace saved notification of a deleted trace can't be shared anymore.
+        NotificationManager.from(context).cancel(name, 0);
+        return true;
+    }
+
+    private static Map<String, Entry> getIndex(File dir) {
+        if (sIndex == null || !dir.equals(sIndexDirectory)) {
+            sIndex = new HashMap<>();
+            sIndexDirectory = dir;
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    Entry entry = stat(file);
+                    if (entry != null) {
+                        sIndex.put(file.getName(), entry);
+                    }
+                }
+            }
+            Log.v(TAG, "Indexed " + sIndex.size() + " saved traces.");
+        }
+        return sIndex;
+    }
+
+    /*
+     * Returns the index entry for a saved trace, or null if the file isn't one. Only the traces
+     * Traceur saved are indexed: the directory can hold files other tools wrote, e.g. with
+     * perfetto -o, and the hidden traces being recorded or written.
+     */
+    private static Entry stat(File file) {
+        if (!TraceUtils.isSavedTrace(file.getName())) {
+            return null;
+        }
+        try {
+            StructStat stat = Os.stat(file.getPath());
+            if (!OsConstants.S_ISREG(stat.st_mode)) {
+                return null;
+            }
+            // The trace partition may not update access times, so fall back to the mtime.
+            long lastUsedMs = Math.max(stat.st_atime, stat.st_mtime) * 1000;
+            return new Entry(file, stat.st_size, lastUsedMs);
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Failed to stat " + file, e);
+            return null;
+        }
+    }
+}
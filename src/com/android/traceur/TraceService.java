@@ -26,18 +26,33 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.os.SystemClock;
 import android.os.UserManager;
 import android.preference.PreferenceManager;
 import android.provider.Settings;
-import android.text.format.DateUtils;
+import android.text.TextUtils;
+import android.text.format.DateFormat;
+import android.text.format.Formatter;
 import android.util.EventLog;
 import android.util.Log;
 
+import com.google.protobuf.InvalidProtocolBufferException;
+
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeSet;
+
+import perfetto.protos.TraceConfigOuterClass.TraceConfig.TriggerConfig;
 
 public class TraceService extends IntentService {
+    private static final String TAG = "Traceur";
+
     /* Indicates Perfetto has stopped tracing due to either the supplied long trace limitations
      * or limited storage capacity. */
     static String INTENT_ACTION_NOTIFY_SESSION_STOPPED =
@@ -47,6 +62,10 @@ public class TraceService extends IntentService {
             "com.android.traceur.NOTIFY_SESSION_STOLEN";
     private static String INTENT_ACTION_STOP_TRACING = "com.android.traceur.STOP_TRACING";
     private static String INTENT_ACTION_START_TRACING = "com.android.traceur.START_TRACING";
+    private static String INTENT_ACTION_SNAPSHOT_TRACING = "com.android.traceur.SNAPSHOT_TRACING";
+    private static String INTENT_ACTION_SALVAGE_TRACE = "com.android.traceur.SALVAGE_TRACE";
+    private static String INTENT_ACTION_REDACT_TRACE = "com.android.traceur.REDACT_TRACE";
+    private static String INTENT_ACTION_TRIM_TRACE = "com.android.traceur.TRIM_TRACE";
 
     private static String INTENT_EXTRA_TAGS= "tags";
     private static String INTENT_EXTRA_BUFFER = "buffer";
@@ -54,18 +73,29 @@ public class TraceService extends IntentService {
     private static String INTENT_EXTRA_LONG_TRACE = "long_trace";
     private static String INTENT_EXTRA_LONG_TRACE_SIZE = "long_trace_size";
     private static String INTENT_EXTRA_LONG_TRACE_DURATION = "long_trace_duration";
+    private static String INTENT_EXTRA_TRIGGER_CONFIG = "trigger_config";
+    private static String INTENT_EXTRA_TRACE_PATH = "trace_path";
+    private static String INTENT_EXTRA_START_NS = "start_ns";
+    private static String INTENT_EXTRA_END_NS = "end_ns";
 
     private static String BETTERBUG_PACKAGE_NAME = "com.google.android.apps.internal.betterbug";
 
     private static int TRACE_NOTIFICATION = 1;
     private static int SAVING_TRACE_NOTIFICATION = 2;
+    private static int BUDGET_REFUSED_NOTIFICATION = 3;
+    private static int REDACTION_FAILED_NOTIFICATION = 4;
+    private static int TRIM_FAILED_NOTIFICATION = 5;
 
-    private static final int MIN_KEEP_COUNT = 3;
-    private static final long MIN_KEEP_AGE = 4 * DateUtils.WEEK_IN_MILLIS;
+    // How much of the end of a trace the trim action of the trace saved notification keeps.
+    static final int TRIM_WINDOW_SECONDS = 30;
+
+    // How many processes and threads the trace saved notification names.
+    private static final int NOTIFICATION_TOP_COUNT = 3;
 
     public static void startTracing(final Context context,
             Collection<String> tags, int bufferSizeKb, boolean apps,
-            boolean longTrace, int maxLongTraceSizeMb, int maxLongTraceDurationMinutes) {
+            boolean longTrace, int maxLongTraceSizeMb, int maxLongTraceDurationMinutes,
+            TriggerConfig triggerConfig) {
         Intent intent = new Intent(context, TraceService.class);
         intent.setAction(INTENT_ACTION_START_TRACING);
         intent.putExtra(INTENT_EXTRA_TAGS, new ArrayList(tags));
@@ -74,6 +104,9 @@ public class TraceService extends IntentService {
         intent.putExtra(INTENT_EXTRA_LONG_TRACE, longTrace);
         intent.putExtra(INTENT_EXTRA_LONG_TRACE_SIZE, maxLongTraceSizeMb);
         intent.putExtra(INTENT_EXTRA_LONG_TRACE_DURATION, maxLongTraceDurationMinutes);
+        if (triggerConfig != null) {
+            intent.putExtra(INTENT_EXTRA_TRIGGER_CONFIG, triggerConfig.toByteArray());
+        }
         context.startForegroundService(intent);
     }
 
@@ -83,6 +116,58 @@ public class TraceService extends IntentService {
         context.startForegroundService(intent);
     }
 
+    // Saves a snapshot of the ongoing trace to a new file. Tracing continues.
+    public static void snapshotTracing(final Context context) {
+        Intent intent = new Intent(context, TraceService.class);
+        intent.setAction(INTENT_ACTION_SNAPSHOT_TRACING);
+        context.startForegroundService(intent);
+    }
+
+    /*
+     * Saves the trace that was being recorded when the device went down, if any. Intents are
+     * handled in order, so this must be called before tracing is started again, which would
+     * delete it.
+     */
+    public static void salvageTrace(final Context context) {
+        if (!PerfettoUtils.hasInProgressTrace()) {
+            return;
+        }
+        Intent intent = new Intent(context, TraceService.class);
+        intent.setAction(INTENT_ACTION_SALVAGE_TRACE);
+        context.startForegroundService(intent);
+    }
+
+    // Writes a redacted copy of a saved trace next to it, and posts a notification to share it.
+    public static void redactTrace(final Context context, File file) {
+        context.startForegroundService(getRedactTraceIntent(context, file));
+    }
+
+    // The intent redactTrace() starts the service with, e.g. for a notification action.
+    static Intent getRedactTraceIntent(final Context context, File file) {
+        Intent intent = new Intent(context, TraceService.class);
+        intent.setAction(INTENT_ACTION_REDACT_TRACE);
+        intent.putExtra(INTENT_EXTRA_TRACE_PATH, file.getPath());
+        return intent;
+    }
+
+    // Writes the part of a saved trace between the boot times startNs and endNs next to it, and
+    // posts a notification to share it.
+    public static void trimTrace(final Context context, File file, long startNs, long endNs) {
+        Intent intent = getTrimTraceIntent(context, file);
+        intent.putExtra(INTENT_EXTRA_START_NS, startNs);
+        intent.putExtra(INTENT_EXTRA_END_NS, endNs);
+        context.startForegroundService(intent);
+    }
+
+    // The intent to trim a saved trace to its last TRIM_WINDOW_SECONDS, e.g. for a notification
+    // action.
+    static Intent getTrimTraceIntent(final Context context, File file) {
+        Intent intent = new Intent(context, TraceService.class);
+        intent.setAction(INTENT_ACTION_TRIM_TRACE);
+        intent.putExtra(INTENT_EXTRA_TRACE_PATH, file.getPath());
+        return intent;
+    }
+
     // Silently stops a trace without saving it. This is intended to be called when tracing is no
     // longer allowed, i.e. if developer options are turned off while tracing. The usual method of
     // stopping a trace via intent, stopTracing(), will not work because intents cannot be received
@@ -135,30 +220,88 @@ public class TraceService extends IntentService {
                 intent.getIntExtra(INTENT_EXTRA_LONG_TRACE_SIZE,
                     Integer.parseInt(context.getString(R.string.default_long_trace_size))),
                 intent.getIntExtra(INTENT_EXTRA_LONG_TRACE_DURATION,
-                    Integer.parseInt(context.getString(R.string.default_long_trace_duration))));
+                    Integer.parseInt(context.getString(R.string.default_long_trace_duration))),
+                getTriggerConfig(intent));
         } else if (intent.getAction().equals(INTENT_ACTION_STOP_TRACING)) {
             stopTracingInternal(TraceUtils.getOutputFilename(), false, false);
+        } else if (intent.getAction().equals(INTENT_ACTION_SNAPSHOT_TRACING)) {
+            snapshotTracingInternal(TraceUtils.getOutputFilename());
+        } else if (intent.getAction().equals(INTENT_ACTION_SALVAGE_TRACE)) {
+            salvageTraceInternal(TraceUtils.getOutputFilename());
+        } else if (intent.getAction().equals(INTENT_ACTION_REDACT_TRACE)) {
+            redactTraceInternal(new File(intent.getStringExtra(INTENT_EXTRA_TRACE_PATH)));
+        } else if (intent.getAction().equals(INTENT_ACTION_TRIM_TRACE)) {
+            trimTraceInternal(new File(intent.getStringExtra(INTENT_EXTRA_TRACE_PATH)),
+                intent.getLongExtra(INTENT_EXTRA_START_NS, -1),
+                intent.getLongExtra(INTENT_EXTRA_END_NS, Long.MAX_VALUE));
         } else if (intent.getAction().equals(INTENT_ACTION_NOTIFY_SESSION_STOPPED)) {
-            stopTracingInternal(TraceUtils.getOutputFilename(), true, false);
+            // A rolling long trace that filled up is saved as a segment, and StopTraceService
+            // starts the next one.
+            stopTracingInternal(isRolling(context)
+                    ? TraceUtils.getSegmentFilename() : TraceUtils.getOutputFilename(),
+                    true, false);
         } else if (intent.getAction().equals(INTENT_ACTION_NOTIFY_SESSION_STOLEN)) {
             stopTracingInternal("", false, true);
         }
     }
 
+    /*
+     * Whether a long trace that stops on its own should roll over to a new segment, rather than
+     * end tracing. Stopping tracing from the UI turns the tracing preference off first.
+     */
+    static boolean isRolling(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getBoolean(context.getString(R.string.pref_key_tracing_on), false)
+                && Receiver.getRollingSegments(context, prefs) > 0;
+    }
+
+    private static TriggerConfig getTriggerConfig(Intent intent) {
+        byte[] triggerConfig = intent.getByteArrayExtra(INTENT_EXTRA_TRIGGER_CONFIG);
+        if (triggerConfig == null) {
+            return null;
+        }
+        try {
+            return TriggerConfig.parseFrom(triggerConfig);
+        } catch (InvalidProtocolBufferException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private void startTracingInternal(Collection<String> tags, int bufferSizeKb, boolean appTracing,
-            boolean longTrace, int maxLongTraceSizeMb, int maxLongTraceDurationMinutes) {
+            boolean longTrace, int maxLongTraceSizeMb, int maxLongTraceDurationMinutes,
+            TriggerConfig triggerConfig) {
         Context context = getApplicationContext();
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         Intent stopIntent = new Intent(Receiver.STOP_ACTION,
             null, context, Receiver.class);
         stopIntent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
 
-        String title = context.getString(R.string.trace_is_being_recorded);
+        // A trigger-driven session may not be recording yet, or may only be kept around until
+        // a trigger fires.
+        String title = context.getString(triggerConfig == null
+                ? R.string.trace_is_being_recorded : R.string.trace_is_armed);
         String msg = context.getString(R.string.tap_to_stop_tracing);
 
         boolean attachToBugreport =
                 prefs.getBoolean(context.getString(R.string.pref_key_attach_to_bugreport), true);
 
+        // Shrink the buffers, or don't trace at all, if they would take too much memory.
+        MemoryBudget.Allocation allocation = null;
+        if (prefs.getBoolean(context.getString(R.string.pref_key_memory_budget), true)) {
+            int auxBufferSizeKb = TraceUtils.currentTraceEngine().equals(AtraceUtils.NAME)
+                    ? 0 : PerfettoUtils.AUX_BUFFER_SIZE_KB;
+            allocation = MemoryBudget.allocate(bufferSizeKb, auxBufferSizeKb);
+        }
+        boolean fitsBudget = allocation == null || allocation.fits();
+        String budgetMsg = null;
+        if (fitsBudget && allocation != null && allocation.bufferSizeKb < bufferSizeKb) {
+            Log.w(TAG, "Reducing the buffer size from " + bufferSizeKb + " KB to "
+                    + allocation.bufferSizeKb + " KB to fit the memory budget.");
+            bufferSizeKb = allocation.bufferSizeKb;
+            budgetMsg = context.getString(R.string.buffer_size_reduced,
+                    bufferSizeKb * Runtime.getRuntime().availableProcessors() / 1024);
+        }
+
         Notification.Builder notification =
             new Notification.Builder(context, Receiver.NOTIFICATION_CHANNEL_TRACING)
                 .setSmallIcon(R.drawable.bugfood_icon)
@@ -173,19 +316,48 @@ public class TraceService extends IntentService {
                 .setColor(getColor(
                     com.android.internal.R.color.system_notification_accent_color));
 
+        if (budgetMsg != null) {
+            notification.setStyle(new Notification.BigTextStyle().bigText(
+                    msg + "\n" + budgetMsg));
+        }
+
+        // Saves the ring buffer to a file without ending the session.
+        Intent snapshotIntent = new Intent(Receiver.SNAPSHOT_ACTION,
+            null, context, Receiver.class);
+        snapshotIntent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
+        notification.addAction(new Notification.Action.Builder(
+                R.drawable.bugfood_icon, context.getString(R.string.save_snapshot),
+                PendingIntent.getBroadcast(context, 0, snapshotIntent,
+                        PendingIntent.FLAG_IMMUTABLE)).build());
+
         if (context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_LEANBACK)) {
             notification.extend(new Notification.TvExtender());
         }
 
         startForeground(TRACE_NOTIFICATION, notification.build());
 
-        if (TraceUtils.traceStart(tags, bufferSizeKb, appTracing,
-                longTrace, attachToBugreport, maxLongTraceSizeMb, maxLongTraceDurationMinutes)) {
+        if (fitsBudget && TraceUtils.traceStart(tags, bufferSizeKb, appTracing,
+                longTrace, attachToBugreport, maxLongTraceSizeMb, maxLongTraceDurationMinutes,
+                triggerConfig)) {
+            BufferSizeEstimator.onSessionStarted(context, tags, appTracing);
             stopForeground(Service.STOP_FOREGROUND_DETACH);
         } else {
-            // Starting the trace was unsuccessful, so ensure that tracing
-            // is stopped and the preference is reset.
-            TraceUtils.traceStop();
+            if (fitsBudget) {
+                // Starting the trace was unsuccessful, so ensure that tracing
+                // is stopped.
+                TraceUtils.traceStop();
+            } else {
+                Log.e(TAG, "Not enough memory for a trace, memory budget is "
+                        + allocation.budgetKb + " KB.");
+                Notification.Builder refused = getBaseTraceurNotification()
+                    .setContentTitle(getString(R.string.not_enough_memory))
+                    .setTicker(getString(R.string.not_enough_memory))
+                    .setContentText(getString(R.string.not_enough_memory_summary))
+                    .setAutoCancel(true);
+                NotificationManager.from(context).notify(TAG, BUDGET_REFUSED_NOTIFICATION,
+                        refused.build());
+            }
+            // Reset the preference, since no trace is being recorded.
             prefs.edit().putBoolean(context.getString(R.string.pref_key_tracing_on),
                         false).commit();
             QsService.updateTile();
@@ -248,16 +420,368 @@ public class TraceService extends IntentService {
 
             NotificationManager.from(context).notify(0, notificationAttached.build());
         } else {
-            File file = TraceUtils.getOutputFile(outputFilename);
+            File file = TraceUtils.getOutputFile(context, outputFilename);
 
             if (TraceUtils.traceDump(file)) {
-                FileSender.postNotification(getApplicationContext(), file);
+                // Before anything reads the trace, since it changes the offsets of packets.
+                String dedup = deduplicateSavedTrace(file);
+                TraceMetadata metadata = newTraceMetadata();
+                TraceOffsetIndex offsets = new TraceOffsetIndex();
+                CpuUsageVisitor cpu = new CpuUsageVisitor();
+                String details = processSavedTrace(file, metadata, offsets, cpu);
+                if (dedup != null) {
+                    details = details == null ? dedup : dedup + "\n" + details;
+                }
+                postSavedTrace(file, details, metadata, offsets, cpu);
             }
         }
 
         stopForeground(Service.STOP_FOREGROUND_REMOVE);
+    }
+
+    private void snapshotTracingInternal(String outputFilename) {
+        Context context = getApplicationContext();
+
+        Notification.Builder notification = getBaseTraceurNotification()
+            .setContentTitle(getString(R.string.saving_snapshot))
+            .setTicker(getString(R.string.saving_snapshot))
+            .setProgress(1, 0, true);
+
+        startForeground(SAVING_TRACE_NOTIFICATION, notification.build());
+
+        // Unlike stopTracingInternal(), the trace notification stays up since tracing continues.
+        File file = TraceUtils.getOutputFile(context, outputFilename);
+        long startMs = SystemClock.elapsedRealtime();
+        if (TraceUtils.traceSnapshot(file)) {
+            long latencyMs = SystemClock.elapsedRealtime() - startMs;
+            Log.v(TAG, "Saved snapshot " + file + " in " + latencyMs + " ms.");
+            TraceMetadata metadata = newTraceMetadata();
+            TraceOffsetIndex offsets = new TraceOffsetIndex();
+            readDuration(file, metadata, offsets);
+            postSavedTrace(file, getString(R.string.snapshot_latency, latencyMs), metadata,
+                    offsets, null);
+        } else {
+            Log.e(TAG, "Failed to save a trace snapshot.");
+        }
+
+        stopForeground(Service.STOP_FOREGROUND_REMOVE);
+    }
+
+    private void salvageTraceInternal(String outputFilename) {
+        Context context = getApplicationContext();
+
+        Notification.Builder notification = getBaseTraceurNotification()
+            .setContentTitle(getString(R.string.recovering_trace))
+            .setTicker(getString(R.string.recovering_trace))
+            .setProgress(1, 0, true);
+
+        startForeground(SAVING_TRACE_NOTIFICATION, notification.build());
+
+        File file = TraceUtils.getOutputFile(context, outputFilename);
+        // Indexed while the trace is scanned for where it was cut off, not in a second read.
+        TimestampRangeVisitor range = new TimestampRangeVisitor();
+        TraceOffsetIndex offsets = new TraceOffsetIndex();
+        if (PerfettoUtils.salvageInProgressTrace(file, range, offsets)) {
+            Log.i(TAG, "Recovered an interrupted trace to " + file);
+            TraceMetadata metadata = newTraceMetadata();
+            metadata.durationMs = range.getDurationMs();
+            postSavedTrace(file, getString(R.string.trace_recovered), metadata, offsets, null);
+        }
+
+        stopForeground(Service.STOP_FOREGROUND_REMOVE);
+    }
+
+    private void redactTraceInternal(File file) {
+        Context context = getApplicationContext();
+
+        Notification.Builder notification = getBaseTraceurNotification()
+            .setContentTitle(getString(R.string.redacting_trace))
+            .setTicker(getString(R.string.redacting_trace))
+            .setProgress(1, 0, true);
 
-        TraceUtils.cleanupOlderFiles(MIN_KEEP_COUNT, MIN_KEEP_AGE);
+        startForeground(SAVING_TRACE_NOTIFICATION, notification.build());
+
+        // Only saved traces are redacted, and only where they were saved.
+        File redacted = null;
+        if (file.getParentFile().equals(TraceUtils.getOutputDirectory(context))
+                && TraceRedactor.canRedact(file.getName())) {
+            redacted = TraceRedactor.redact(context, file);
+        } else {
+            Log.e(TAG, "Not redacting " + file + ", it isn't a saved trace.");
+        }
+
+        if (redacted != null) {
+            // The copy covers the same time as the original and is never compressed.
+            TraceMetadata metadata = TraceMetadata.load(context, file.getName());
+            if (metadata == null) {
+                metadata = new TraceMetadata();
+            }
+            metadata.uncompressedBytes = -1;
+            metadata.save(context, redacted.getName());
+            FileSender.postNotification(context, redacted, getString(R.string.trace_redacted));
+            TraceRetention.onTraceSaved(context, redacted);
+        } else {
+            Notification.Builder failed = getBaseTraceurNotification()
+                .setContentTitle(getString(R.string.redaction_failed))
+                .setTicker(getString(R.string.redaction_failed))
+                .setAutoCancel(true);
+            NotificationManager.from(context).notify(TAG, REDACTION_FAILED_NOTIFICATION,
+                    failed.build());
+        }
+
+        stopForeground(Service.STOP_FOREGROUND_REMOVE);
+    }
+
+    // startNs is -1 to keep the last TRIM_WINDOW_SECONDS of the trace.
+    private void trimTraceInternal(File file, long startNs, long endNs) {
+        Context context = getApplicationContext();
+
+        Notification.Builder notification = getBaseTraceurNotification()
+            .setContentTitle(getString(R.string.trimming_trace))
+            .setTicker(getString(R.string.trimming_trace))
+            .setProgress(1, 0, true);
+
+        startForeground(SAVING_TRACE_NOTIFICATION, notification.build());
+
+        // Only saved traces are trimmed, and only where they were saved.
+        File trimmed = null;
+        if (file.getParentFile().equals(TraceUtils.getOutputDirectory(context))
+                && TraceTrimmer.canTrim(file.getName())) {
+            File output = new File(file.getParentFile(),
+                    TraceTrimmer.getTrimmedFilename(file.getName()));
+            try {
+                if (startNs < 0) {
+                    long traceEndNs = TraceTrimmer.findEndNs(context, file);
+                    startNs = traceEndNs < 0 ? 0 : Math.max(0,
+                            traceEndNs - TRIM_WINDOW_SECONDS * 1000000000L);
+                }
+                TraceMetadata metadata = TraceMetadata.load(context, file.getName());
+                if (metadata == null) {
+                    metadata = new TraceMetadata();
+                }
+                metadata.durationMs = TraceTrimmer.trim(file, output, startNs, endNs);
+                metadata.uncompressedBytes = -1;
+                metadata.save(context, output.getName());
+                trimmed = output;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to trim " + file, e);
+            }
+        } else {
+            Log.e(TAG, "Not trimming " + file + ", it isn't a saved trace.");
+        }
+
+        if (trimmed != null) {
+            FileSender.postNotification(context, trimmed, getString(R.string.trace_trimmed));
+            TraceRetention.onTraceSaved(context, trimmed);
+        } else {
+            Notification.Builder failed = getBaseTraceurNotification()
+                .setContentTitle(getString(R.string.trim_failed))
+                .setTicker(getString(R.string.trim_failed))
+                .setAutoCancel(true);
+            NotificationManager.from(context).notify(TAG, TRIM_FAILED_NOTIFICATION,
+                    failed.build());
+        }
+
+        stopForeground(Service.STOP_FOREGROUND_REMOVE);
+    }
+
+    /*
+     * Compresses a saved trace if the user asked for it, posts the notification for sharing it
+     * and evicts older traces as needed. The trace must already have been processed, since
+     * processing needs the uncompressed file. cpu is null if the CPU usage wasn't analyzed.
+     */
+    private void postSavedTrace(File file, String details, TraceMetadata metadata,
+            TraceOffsetIndex offsets, CpuUsageVisitor cpu) {
+        Context context = getApplicationContext();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean compress = prefs.getBoolean(
+                context.getString(R.string.pref_key_compress_traces), false);
+        long splitBytes = Integer.parseInt(prefs.getString(
+                context.getString(R.string.pref_key_split_size),
+                context.getString(R.string.default_split_size))) * 1024L * 1024L;
+        boolean perfetto = !TraceUtils.currentTraceEngine().equals(AtraceUtils.NAME);
+
+        // Split before compressing, since splitting reads the packets of the trace.
+        List<File> parts = null;
+        if (splitBytes > 0 && perfetto) {
+            parts = TraceSplitter.split(context, file, splitBytes);
+            if (parts != null) {
+                String split = getString(R.string.split_result, parts.size());
+                details = details == null ? split : details + "\n" + split;
+            }
+        }
+
+        // atrace compresses its own output.
+        if (compress && perfetto) {
+            if (parts != null) {
+                parts = compressParts(parts);
+            }
+            TraceCompressor.Result result = TraceCompressor.compress(file);
+            if (result != null) {
+                file = result.file;
+                metadata.uncompressedBytes = result.originalBytes;
+                String compression = getString(R.string.compression_result,
+                        result.getPercentage(), result.durationMs);
+                details = details == null ? compression : details + "\n" + compression;
+            }
+        }
+        // Before the metadata, whose sidecar tells StorageProvider to look for the index.
+        offsets.save(context, file.getName());
+        if (cpu != null) {
+            cpu.save(context, file.getName());
+        }
+        metadata.save(context, file.getName());
+        FileSender.postNotification(context, file, parts, details);
+        TraceRetention.onTraceSaved(context, file);
+    }
+
+    // Parts that fail to compress are shared uncompressed.
+    private static List<File> compressParts(List<File> parts) {
+        List<File> compressed = new ArrayList<>();
+        for (File part : parts) {
+            TraceCompressor.Result result = TraceCompressor.compress(part);
+            compressed.add(result != null ? result.file : part);
+        }
+        return compressed;
+    }
+
+    /*
+     * Returns the metadata of a trace being saved now, before anything was learned from the
+     * trace itself.
+     */
+    private TraceMetadata newTraceMetadata() {
+        Context context = getApplicationContext();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return new TraceMetadata(TraceUtils.currentTraceEngine(),
+                TextUtils.join(",", new TreeSet<>(Receiver.getActiveTags(context, prefs, false))));
+    }
+
+    /*
+     * Removes the interned data and descriptors the trace repeats, if the user asked for it.
+     * Returns the details to show in the saved trace notification, or null if there are none.
+     */
+    private String deduplicateSavedTrace(File file) {
+        Context context = getApplicationContext();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        // atrace output isn't a perfetto trace.
+        if (!prefs.getBoolean(context.getString(R.string.pref_key_dedup_traces), false)
+                || TraceUtils.currentTraceEngine().equals(AtraceUtils.NAME)) {
+            return null;
+        }
+        TraceDeduplicator.Result result = TraceDeduplicator.compact(file);
+        if (result == null || result.getSavedBytes() <= 0) {
+            return null;
+        }
+        return getString(R.string.dedup_result,
+                Formatter.formatShortFileSize(context, result.getSavedBytes()),
+                result.durationMs);
+    }
+
+    /*
+     * Reads how long a snapshot covers, and indexes its offsets. It isn't the normal end of a
+     * session, so unlike processSavedTrace() there are no stats or triggers to act on.
+     */
+    private void readDuration(File file, TraceMetadata metadata, TraceOffsetIndex offsets) {
+        // atrace output isn't a perfetto trace.
+        if (TraceUtils.currentTraceEngine().equals(AtraceUtils.NAME)) {
+            return;
+        }
+        TimestampRangeVisitor range = new TimestampRangeVisitor();
+        try {
+            TracePacketReader.read(file, range, offsets);
+            metadata.durationMs = range.getDurationMs();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read the saved trace " + file, e);
+        }
+    }
+
+    /*
+     * Reads the trace of a session that just ended in a single pass, to update the buffer size
+     * estimate, to describe the triggers that fired, to fill in the trace's metadata, to index
+     * its offsets and to summarize its CPU usage. Returns the details to show in the saved
+     * trace notification, or null if there are none.
+     */
+    private String processSavedTrace(File file, TraceMetadata metadata,
+            TraceOffsetIndex offsets, CpuUsageVisitor cpu) {
+        // atrace output isn't a perfetto trace.
+        if (TraceUtils.currentTraceEngine().equals(AtraceUtils.NAME)) {
+            return null;
+        }
+
+        Context context = getApplicationContext();
+        TraceStatsVisitor stats = new TraceStatsVisitor();
+        TriggerVisitor triggers = new TriggerVisitor();
+        TimestampRangeVisitor range = new TimestampRangeVisitor();
+        try {
+            TracePacketReader.read(file, stats, triggers, range, offsets, cpu);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read the saved trace " + file, e);
+            return null;
+        }
+        metadata.durationMs = range.getDurationMs();
+
+        String cpuUsage = describeCpuUsage(cpu);
+        // The length of a trigger-driven session says little about how long it recorded. The
+        // trace's own config says whether it was one, since the setting may have changed since.
+        if (triggers.getTriggerConfig() == null) {
+            BufferSizeEstimator.onSessionSaved(context, stats);
+            return cpuUsage;
+        }
+        String fired = describeTriggers(triggers);
+        return cpuUsage == null ? fired : fired + "\n" + cpuUsage;
+    }
+
+    /*
+     * Names the processes that used the most CPU and the threads that waited longest to run.
+     * Returns null if the trace has no scheduler events.
+     */
+    private String describeCpuUsage(CpuUsageVisitor cpu) {
+        if (!cpu.hasUsage()) {
+            return null;
+        }
+        List<String> lines = new ArrayList<>();
+        List<String> processes = new ArrayList<>();
+        for (CpuUsageVisitor.Usage usage : cpu.getTopProcesses(NOTIFICATION_TOP_COUNT)) {
+            processes.add(getString(R.string.cpu_usage_item, usage.name,
+                    usage.cpuNs / 1000000));
+        }
+        if (!processes.isEmpty()) {
+            lines.add(getString(R.string.top_cpu_processes, TextUtils.join(", ", processes)));
+        }
+        List<String> waits = new ArrayList<>();
+        for (CpuUsageVisitor.Usage usage : cpu.getTopWaits(NOTIFICATION_TOP_COUNT)) {
+            waits.add(getString(R.string.cpu_usage_item, usage.name, usage.waitNs / 1000000));
+        }
+        if (!waits.isEmpty()) {
+            lines.add(getString(R.string.top_runnable_waits, TextUtils.join(", ", waits)));
+        }
+        return lines.isEmpty() ? null : TextUtils.join("\n", lines);
+    }
+
+    /*
+     * Returns which triggers fired and when, for the saved trace notification.
+     */
+    private String describeTriggers(TriggerVisitor triggers) {
+        Context context = getApplicationContext();
+        if (triggers.getTriggers().isEmpty()) {
+            return getString(R.string.no_trigger_fired);
+        }
+
+        // Trace timestamps are in boot time, and the trace was recorded during this boot.
+        long bootTimeOffsetMs = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        List<String> lines = new ArrayList<>();
+        for (TriggerVisitor.FiredTrigger trigger : triggers.getTriggers()) {
+            long wallTimeMs = bootTimeOffsetMs + trigger.timestampNs / 1000000;
+            lines.add(getString(R.string.trigger_fired, trigger.name,
+                    DateFormat.getTimeFormat(context).format(new Date(wallTimeMs))));
+        }
+        return TextUtils.join("\n", lines);
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        TraceCompactionJobService.dump(this, pw);
+        ProcessLauncher.dump(pw);
     }
 
     private Notification.Builder getBaseTraceurNotification() {
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.content.Context;
+import android.os.FileUtils;
+import android.util.Log;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import perfetto.protos.TracePacketOuterClass.TracePacket;
+
+/**
+ * Splits a trace into parts below a size limit, for share targets that reject large
+ * attachments. Each part is a trace that loads on its own.
+ *
+ * A first pass plans the parts without copying anything. Every part starts with the packets
+ * that set up the trace, e.g. its config and first clock snapshot, followed by the latest
+ * clock snapshot and process tree before the part, then a contiguous run of packets. Parts
+ * are cut between packets, preferably at one that depends on no earlier packet of its
+ * sequence, i.e. an ftrace bundle or a packet that clears its sequence's incremental state.
+ * Interned data from before such a cut can still be missing from a part until its writer
+ * next clears its state. A second pass copies the planned ranges with channel transfers,
+ * which avoid copying the data through the app.
+ *
+ * Parts go to the app's cache, and are deleted once their trace is.
+ */
+public class TraceSplitter implements TracePacketReader.PacketVisitor {
+
+    static final String TAG = "Traceur";
+
+    private static final String PARTS_DIRECTORY = "trace_parts";
+
+    // Past this share of the limit, a part is cut at the next self-contained packet.
+    private static final int BOUNDARY_PERCENT = 90;
+    // The setup packets copied into every part may only take this share of the limit.
+    private static final int MAX_HEADER_DIVISOR = 4;
+
+    private final long mMaxBytes;
+    private final List<List<long[]>> mParts = new ArrayList<>();
+
+    // The setup packets at the start of the trace, as the range [0, mHeaderEnd).
+    private long mHeaderEnd;
+    private boolean mInHeader = true;
+
+    // The latest clock snapshot and process tree, as { offset, size }.
+    private long[] mClockSnapshot;
+    private long[] mProcessTree;
+
+    // The part being planned: its ranges before the body, and where the body starts.
+    private List<long[]> mPart;
+    private long mPartBytes;
+    private long mBodyStart;
+
+    private TraceSplitter(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /*
+     * Splits trace into parts of at most maxBytes, except where a single packet is larger.
+     * Returns the parts in order, or null if the trace fits in one part or couldn't be split.
+     */
+    public static List<File> split(Context context, File trace, long maxBytes) {
+        deleteOrphanedParts(context);
+        long length = trace.length();
+        if (length <= maxBytes) {
+            return null;
+        }
+
+        TraceSplitter splitter = new TraceSplitter(maxBytes);
+        File dir = getPartsDirectory(context, trace.getName());
+        try {
+            TracePacketReader.read(trace, splitter);
+            splitter.finishPart(length);
+            if (splitter.mParts.size() < 2) {
+                return null;
+            }
+            return splitter.writeParts(trace, dir);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to split " + trace, e);
+            FileUtils.deleteContentsAndDir(dir);
+            return null;
+        }
+    }
+
+    @Override
+    public void visitPacket(long offset, int size, byte[] packet, int length)
+            throws IOException {
+        boolean timestamped = false;
+        boolean clockSnapshot = false;
+        boolean processTree = false;
+        boolean selfContained = false;
+
+        CodedInputStream in = CodedInputStream.newInstance(packet, 0, length);
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case TracePacket.TIMESTAMP_FIELD_NUMBER:
+                    timestamped = true;
+                    in.skipField(tag);
+                    break;
+                case TracePacket.CLOCK_SNAPSHOT_FIELD_NUMBER:
+                    clockSnapshot = true;
+                    in.skipField(tag);
+                    break;
+                case TracePacket.PROCESS_TREE_FIELD_NUMBER:
+                    processTree = true;
+                    in.skipField(tag);
+                    break;
+                case TracePacket.FTRACE_EVENTS_FIELD_NUMBER:
+                    selfContained = true;
+                    in.skipField(tag);
+                    break;
+                case TracePacket.SEQUENCE_FLAGS_FIELD_NUMBER:
+                    selfContained |= (in.readUInt32()
+                            & TracePacket.SequenceFlags.SEQ_INCREMENTAL_STATE_CLEARED_VALUE) != 0;
+                    break;
+                default:
+                    in.skipField(tag);
+                    break;
+            }
+        }
+
+        long end = offset + size;
+        if (mInHeader) {
+            boolean setup = !timestamped || clockSnapshot || processTree;
+            if (setup && end <= mMaxBytes / MAX_HEADER_DIVISOR) {
+                mHeaderEnd = end;
+                return;
+            }
+            mInHeader = false;
+            startPart(offset);
+        }
+
+        long partBytes = mPartBytes + end - mBodyStart;
+        boolean hasBody = offset > mBodyStart;
+        if (hasBody && (partBytes > mMaxBytes || (selfContained
+                && partBytes > mMaxBytes / 100 * BOUNDARY_PERCENT))) {
+            finishPart(offset);
+            startPart(offset);
+        }
+
+        // After any cut, since the packet is part of the new part.
+        if (clockSnapshot) {
+            mClockSnapshot = new long[] { offset, size };
+        }
+        if (processTree) {
+            mProcessTree = new long[] { offset, size };
+        }
+    }
+
+    private void startPart(long offset) {
+        mPart = new ArrayList<>();
+        mPartBytes = 0;
+        if (mHeaderEnd > 0) {
+            addRange(0, mHeaderEnd);
+        }
+        // Those in the header are already there.
+        if (mClockSnapshot != null && mClockSnapshot[0] >= mHeaderEnd) {
+            addRange(mClockSnapshot[0], mClockSnapshot[1]);
+        }
+        if (mProcessTree != null && mProcessTree[0] >= mHeaderEnd) {
+            addRange(mProcessTree[0], mProcessTree[1]);
+        }
+        mBodyStart = offset;
+    }
+
+    private void finishPart(long end) {
+        if (mPart == null) {
+            // The whole trace is setup packets.
+            return;
+        }
+        if (end > mBodyStart) {
+            addRange(mBodyStart, end - mBodyStart);
+            mParts.add(mPart);
+        }
+        mPart = null;
+    }
+
+    private void addRange(long offset, long length) {
+        mPart.add(new long[] { offset, length });
+        mPartBytes += length;
+    }
+
+    private List<File> writeParts(File trace, File dir) throws IOException {
+        FileUtils.deleteContentsAndDir(dir);
+        if (!dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+
+        List<File> files = new ArrayList<>();
+        try (FileChannel in = FileChannel.open(trace.toPath(), StandardOpenOption.READ)) {
+            for (int i = 0; i < mParts.size(); i++) {
+                File file = new File(dir, getPartFilename(trace.getName(), i, mParts.size()));
+                try (FileChannel out = FileChannel.open(file.toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    for (long[] range : mParts.get(i)) {
+                        transfer(in, range[0], range[1], out);
+                    }
+                }
+                file.setReadable(true, false);
+                files.add(file);
+            }
+        }
+        Log.v(TAG, "Split " + trace + " into " + files.size() + " parts.");
+        return files;
+    }
+
+    // transferTo() may transfer less than asked, e.g. across filesystems.
+    private static void transfer(FileChannel in, long offset, long length, FileChannel out)
+            throws IOException {
+        while (length > 0) {
+            long n = in.transferTo(offset, length, out);
+            if (n <= 0) {
+                throw new IOException("Failed to copy at offset " + offset);
+            }
+            offset += n;
+            length -= n;
+        }
+    }
+
+    // E.g. trace-board-id-date-part2of5.perfetto-trace.
+    private static String getPartFilename(String name, int index, int count) {
+        int extension = name.lastIndexOf('.');
+        return name.substring(0, extension) + "-part" + (index + 1) + "of" + count
+                + name.substring(extension);
+    }
+
+    private static File getPartsDirectory(Context context, String traceName) {
+        return new File(new File(context.getCacheDir(), PARTS_DIRECTORY), traceName);
+    }
+
+    // Parts of traces that were deleted since they were split.
+    private static void deleteOrphanedParts(Context context) {
+        File[] dirs = new File(context.getCacheDir(), PARTS_DIRECTORY).listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            File trace = TraceUtils.getOutputFile(context, dir.getName());
+            File compressed = new File(trace.getPath() + TraceCompressor.EXTENSION);
+            if (!trace.exists() && !compressed.exists()) {
+                FileUtils.deleteContentsAndDir(dir);
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+import java.util.List;
+
+import perfetto.protos.FtraceStatsOuterClass.FtraceCpuStats;
+import perfetto.protos.FtraceStatsOuterClass.FtraceStats;
+import perfetto.protos.TracePacketOuterClass.TracePacket;
+import perfetto.protos.TraceStatsOuterClass.TraceStats;
+import perfetto.protos.TraceStatsOuterClass.TraceStats.BufferStats;
+
+/**
+ * Collects the buffer and ftrace statistics that traced and the ftrace data source record in
+ * a trace, and derives how much data the session produced, including data that was lost.
+ */
+public class TraceStatsVisitor implements TracePacketReader.PacketVisitor {
+
+    private TraceStats mTraceStats;
+    private FtraceStats mFtraceStartStats;
+    private FtraceStats mFtraceEndStats;
+
+    @Override
+    public void visitPacket(long offset, int size, byte[] packet, int length)
+            throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(packet, 0, length);
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case TracePacket.TRACE_STATS_FIELD_NUMBER:
+                    // Stats are cumulative, so the last ones win.
+                    mTraceStats = TraceStats.parseFrom(in.readBytes());
+                    break;
+                case TracePacket.FTRACE_STATS_FIELD_NUMBER:
+                    FtraceStats stats = FtraceStats.parseFrom(in.readBytes());
+                    if (stats.getPhase() == FtraceStats.Phase.START_OF_TRACE) {
+                        mFtraceStartStats = stats;
+                    } else if (stats.getPhase() == FtraceStats.Phase.END_OF_TRACE) {
+                        mFtraceEndStats = stats;
+                    }
+                    break;
+                default:
+                    in.skipField(tag);
+                    break;
+            }
+        }
+    }
+
+    public boolean hasStats() {
+        return mTraceStats != null && mTraceStats.getBufferStatsCount() > 0;
+    }
+
+    /* The stats of the given buffer, or null if there are none. */
+    public BufferStats getBufferStats(int buffer) {
+        if (mTraceStats == null || buffer >= mTraceStats.getBufferStatsCount()) {
+            return null;
+        }
+        return mTraceStats.getBufferStats(buffer);
+    }
+
+    /*
+     * Estimates how many bytes were produced for the given buffer over the whole session: what
+     * was written to it (including what was later overwritten), plus the chunks traced had to
+     * discard, plus the ftrace events the kernel dropped before they could be read.
+     */
+    public long getProducedBytes(int buffer) {
+        BufferStats stats = getBufferStats(buffer);
+        if (stats == null) {
+            return 0;
+        }
+
+        long produced = stats.getBytesWritten();
+        if (stats.getChunksDiscarded() > 0 && stats.getChunksWritten() > 0) {
+            produced += stats.getChunksDiscarded()
+                    * (stats.getBytesWritten() / stats.getChunksWritten());
+        }
+        return produced + getFtraceLostBytes();
+    }
+
+    /* Whether any data was lost: overwritten or discarded by traced, or overrun by ftrace. */
+    public boolean hasOverrun(int buffer) {
+        BufferStats stats = getBufferStats(buffer);
+        return (stats != null
+                && (stats.getBytesOverwritten() > 0 || stats.getChunksDiscarded() > 0))
+                || getFtraceLostBytes() > 0;
+    }
+
+    /*
+     * Estimates the size of the ftrace events that were overrun in the kernel buffers during
+     * the session, from the per-CPU overrun counts and the average size of the events read.
+     */
+    private long getFtraceLostBytes() {
+        if (mFtraceEndStats == null) {
+            return 0;
+        }
+        List<FtraceCpuStats> end = mFtraceEndStats.getCpuStatsList();
+        List<FtraceCpuStats> start = mFtraceStartStats == null
+                ? null : mFtraceStartStats.getCpuStatsList();
+
+        long lost = 0;
+        for (int i = 0; i < end.size(); i++) {
+            FtraceCpuStats cpu = end.get(i);
+            long overrun = cpu.getOverrun();
+            long readEvents = cpu.getReadEvents();
+            long bytesRead = cpu.getBytesRead();
+            if (start != null && i < start.size()) {
+                overrun -= start.get(i).getOverrun();
+                readEvents -= start.get(i).getReadEvents();
+                bytesRead -= start.get(i).getBytesRead();
+            }
+            if (overrun > 0 && readEvents > 0) {
+                lost += overrun * (bytesRead / readEvents);
+            }
+        }
+        return lost;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+import perfetto.protos.FtraceEventBundleOuterClass.FtraceEventBundle;
+import perfetto.protos.FtraceEventBundleOuterClass.FtraceEventBundle.CompactSched;
+import perfetto.protos.FtraceEventOuterClass.FtraceEvent;
+import perfetto.protos.TraceOuterClass.Trace;
+import perfetto.protos.TracePacketOuterClass.TracePacket;
+
+/**
+ * Cuts a saved trace down to a window of time, e.g. the 30 seconds that matter out of a
+ * multi-gigabyte long trace.
+ *
+ * The trace is streamed once with large sequential reads and writes, and packets are copied
+ * as they are, so memory use doesn't depend on the size of the trace. A packet is kept if:
+ *   - its timestamp is in the window,
+ *   - it is an ftrace bundle with an event in the window,
+ *   - it has no timestamp, e.g. the trace config and stats,
+ *   - or packets in the window may depend on it: clock snapshots, process trees, interned
+ *     data, descriptors, packet defaults and incremental state resets.
+ * Bundles and packets with interned data are kept whole, so a few events just outside the
+ * window can remain.
+ */
+public class TraceTrimmer implements TracePacketReader.PacketVisitor {
+
+    static final String TAG = "Traceur";
+
+    private static final String SUFFIX = "-trimmed";
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final int PACKET_TAG = (Trace.PACKET_FIELD_NUMBER << 3)
+            | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+    private final OutputStream mOut;
+    private final long mStartNs;
+    private final long mEndNs;
+
+    // The first and last timestamps kept within the window.
+    private long mFirstNs = Long.MAX_VALUE;
+    private long mLastNs = Long.MIN_VALUE;
+    private long mBytesKept;
+
+    private TraceTrimmer(OutputStream out, long startNs, long endNs) {
+        mOut = out;
+        mStartNs = startNs;
+        mEndNs = endNs;
+    }
+
+    /* Whether name is one getTrimmedFilename() gives. */
+    public static boolean isTrimmed(String name) {
+        return name.contains(SUFFIX + ".");
+    }
+
+    /* Whether the saved trace named name can be trimmed, i.e. is a perfetto trace. */
+    public static boolean canTrim(String name) {
+        String extension = "." + PerfettoUtils.OUTPUT_EXTENSION;
+        return TraceUtils.isSavedTrace(name) && !isTrimmed(name) && (name.endsWith(extension)
+                || name.endsWith(extension + TraceCompressor.EXTENSION));
+    }
+
+    /*
+     * The name of the trace trimmed from the one named name. Trimmed traces are never
+     * compressed, since they are meant to be small.
+     */
+    public static String getTrimmedFilename(String name) {
+        if (name.endsWith(TraceCompressor.EXTENSION)) {
+            name = name.substring(0, name.length() - TraceCompressor.EXTENSION.length());
+        }
+        int extension = name.lastIndexOf('.');
+        return name.substring(0, extension) + SUFFIX + name.substring(extension);
+    }
+
+    /*
+     * Writes the part of trace between the boot times startNs and endNs to output, which is
+     * replaced only once the trimmed trace is complete. trace may be compressed. Returns how
+     * long the trimmed trace covers in ms, or -1 if nothing in it is timestamped.
+     */
+    public static long trim(File trace, File output, long startNs, long endNs)
+            throws IOException {
+        // Written under a hidden name first, so that a partial file is never listed as a trace.
+        File temp = new File(output.getParentFile(), "." + output.getName() + ".tmp");
+        long startMs = SystemClock.elapsedRealtime();
+        TraceTrimmer trimmer;
+        long packets;
+        try (InputStream in = openTrace(trace);
+                FileOutputStream fileOut = new FileOutputStream(temp);
+                OutputStream out = new BufferedOutputStream(fileOut, BUFFER_SIZE)) {
+            trimmer = new TraceTrimmer(out, startNs, endNs);
+            packets = TracePacketReader.read(in, trimmer);
+            out.flush();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        if (!temp.renameTo(output)) {
+            temp.delete();
+            throw new IOException("Failed to rename " + temp + " to " + output);
+        }
+        output.setReadable(true, false);
+
+        long durationMs = Math.max(1, SystemClock.elapsedRealtime() - startMs);
+        Log.i(TAG, "Trimmed " + trace + " (" + trace.length() + " bytes, " + packets
+                + " packets) to " + output + " (" + trimmer.mBytesKept + " bytes) in "
+                + durationMs + " ms, " + (trace.length() / durationMs * 1000) + " bytes/s.");
+        return trimmer.mFirstNs <= trimmer.mLastNs
+                ? (trimmer.mLastNs - trimmer.mFirstNs) / 1000000 : -1;
+    }
+
+    /*
+     * The boot time in ns of the end of a saved trace, or -1 if nothing in it is timestamped.
+     * The offset index gives it to within a second without reading the trace, which is only
+     * read when it has no index.
+     */
+    public static long findEndNs(Context context, File trace) throws IOException {
+        long lastNs = TraceOffsetIndex.readLastTimestampNs(context, trace.getName());
+        if (lastNs > 0) {
+            return lastNs + TraceOffsetIndex.INTERVAL_NS;
+        }
+        TimestampRangeVisitor range = new TimestampRangeVisitor();
+        try (InputStream in = openTrace(trace)) {
+            TracePacketReader.read(in, range);
+        }
+        return range.hasTimestamps() ? range.getLastNs() : -1;
+    }
+
+    private static InputStream openTrace(File trace) throws IOException {
+        InputStream in = new FileInputStream(trace);
+        try {
+            if (TraceCompressor.isCompressed(trace)) {
+                in = new GZIPInputStream(in, BUFFER_SIZE);
+            }
+            return new BufferedInputStream(in, BUFFER_SIZE);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void visitPacket(long offset, int size, byte[] packet, int length)
+            throws IOException {
+        long timestampNs = 0;
+        long firstEventNs = Long.MAX_VALUE;
+        long lastEventNs = Long.MIN_VALUE;
+        boolean dependency = false;
+        boolean events = false;
+
+        CodedInputStream in = CodedInputStream.newInstance(packet, 0, length);
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case TracePacket.TIMESTAMP_FIELD_NUMBER:
+                    timestampNs = in.readUInt64();
+                    break;
+                case TracePacket.FTRACE_EVENTS_FIELD_NUMBER: {
+                    events = true;
+                    int limit = in.pushLimit(in.readRawVarint32());
+                    long[] range = readBundleRange(in);
+                    firstEventNs = Math.min(firstEventNs, range[0]);
+                    lastEventNs = Math.max(lastEventNs, range[1]);
+                    in.popLimit(limit);
+                    break;
+                }
+                case TracePacket.SEQUENCE_FLAGS_FIELD_NUMBER:
+                    dependency |= (in.readUInt32()
+                            & TracePacket.SequenceFlags.SEQ_INCREMENTAL_STATE_CLEARED_VALUE) != 0;
+                    break;
+                case TracePacket.CLOCK_SNAPSHOT_FIELD_NUMBER:
+                case TracePacket.PROCESS_TREE_FIELD_NUMBER:
+                case TracePacket.INTERNED_DATA_FIELD_NUMBER:
+                case TracePacket.TRACE_PACKET_DEFAULTS_FIELD_NUMBER:
+                case TracePacket.TRACK_DESCRIPTOR_FIELD_NUMBER:
+                    dependency = true;
+                    in.skipField(tag);
+                    break;
+                default:
+                    in.skipField(tag);
+                    break;
+            }
+        }
+
+        boolean keep;
+        if (dependency) {
+            keep = true;
+        } else if (events) {
+            keep = firstEventNs <= mEndNs && lastEventNs >= mStartNs;
+            if (keep) {
+                updateRange(Math.max(firstEventNs, mStartNs), Math.min(lastEventNs, mEndNs));
+            }
+        } else if (timestampNs == 0) {
+            keep = true;
+        } else {
+            keep = timestampNs >= mStartNs && timestampNs <= mEndNs;
+            if (keep) {
+                updateRange(timestampNs, timestampNs);
+            }
+        }
+
+        if (keep) {
+            mOut.write(PACKET_TAG);
+            writeVarint(length);
+            mOut.write(packet, 0, length);
+            mBytesKept += size;
+        }
+    }
+
+    private void updateRange(long firstNs, long lastNs) {
+        mFirstNs = Math.min(mFirstNs, firstNs);
+        mLastNs = Math.max(mLastNs, lastNs);
+    }
+
+    private void writeVarint(int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            mOut.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        mOut.write(value);
+    }
+
+    // Returns the first and last timestamps of the events in a bundle.
+    private static long[] readBundleRange(CodedInputStream in) throws IOException {
+        long[] range = { Long.MAX_VALUE, Long.MIN_VALUE };
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case FtraceEventBundle.EVENT_FIELD_NUMBER: {
+                    int limit = in.pushLimit(in.readRawVarint32());
+                    long timestampNs = readEventTimestamp(in);
+                    if (timestampNs > 0) {
+                        range[0] = Math.min(range[0], timestampNs);
+                        range[1] = Math.max(range[1], timestampNs);
+                    }
+                    in.popLimit(limit);
+                    break;
+                }
+                case FtraceEventBundle.COMPACT_SCHED_FIELD_NUMBER: {
+                    int limit = in.pushLimit(in.readRawVarint32());
+                    readCompactSchedRange(in, range);
+                    in.popLimit(limit);
+                    break;
+                }
+                default:
+                    in.skipField(tag);
+                    break;
+            }
+        }
+        return range;
+    }
+
+    // Reads up to the end of the event, which is the current limit.
+    private static long readEventTimestamp(CodedInputStream in) throws IOException {
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            if (WireFormat.getTagFieldNumber(tag) == FtraceEvent.TIMESTAMP_FIELD_NUMBER) {
+                long timestampNs = in.readUInt64();
+                in.skipRawBytes(in.getBytesUntilLimit());
+                return timestampNs;
+            }
+            in.skipField(tag);
+        }
+        return 0;
+    }
+
+    // compact_sched timestamps are deltas from the previous event of the same kind.
+    private static void readCompactSchedRange(CodedInputStream in, long[] range)
+            throws IOException {
+        long switchNs = 0;
+        long wakingNs = 0;
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            int field = WireFormat.getTagFieldNumber(tag);
+            if (field != CompactSched.SWITCH_TIMESTAMP_FIELD_NUMBER
+                    && field != CompactSched.WAKING_TIMESTAMP_FIELD_NUMBER) {
+                in.skipField(tag);
+                continue;
+            }
+            boolean packed = WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED;
+            int limit = packed ? in.pushLimit(in.readRawVarint32()) : -1;
+            do {
+                long timestampNs;
+                if (field == CompactSched.SWITCH_TIMESTAMP_FIELD_NUMBER) {
+                    timestampNs = switchNs += in.readRawVarint64();
+                } else {
+                    timestampNs = wakingNs += in.readRawVarint64();
+                }
+                range[0] = Math.min(range[0], timestampNs);
+                range[1] = Math.max(range[1], timestampNs);
+            } while (packed && in.getBytesUntilLimit() > 0);
+            if (packed) {
+                in.popLimit(limit);
+            }
+        }
+    }
+}
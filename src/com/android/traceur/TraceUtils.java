@@ -16,24 +16,24 @@
 
 package com.android.traceur;
 
+import android.content.Context;
 import android.os.Build;
-import android.os.AsyncTask;
-import android.os.FileUtils;
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.Collection;
-import java.util.concurrent.TimeUnit;
-import java.util.TreeMap;
+import java.util.SortedMap;
+
+import perfetto.protos.TraceConfigOuterClass.TraceConfig.TriggerConfig;
+import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState;
+import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState.TracingSession;
 
 /**
  * Utility functions for tracing.
@@ -47,20 +47,64 @@ public class TraceUtils {
 
     // To change Traceur to use atrace to collect traces,
     // change mTraceEngine to point to AtraceUtils().
+    // To drive traced over its consumer socket instead of spawning the perfetto
+    // binary, change mTraceEngine to point to TracedUtils().
     private static TraceEngine mTraceEngine = new PerfettoUtils();
 
-    private static final Runtime RUNTIME = Runtime.getRuntime();
     private static final int PROCESS_TIMEOUT_MS = 30000; // 30 seconds
 
+    private static final String SEGMENT_SUFFIX = "-segment";
+
+    // Resolved once per process, see getOutputDirectory().
+    private static volatile File sOutputDirectory;
+
     public interface TraceEngine {
         public String getName();
         public String getOutputExtension();
         public boolean traceStart(Collection<String> tags, int bufferSizeKb, boolean apps,
             boolean attachToBugreport, boolean longTrace, int maxLongTraceSizeMb,
-            int maxLongTraceDurationMinutes);
+            int maxLongTraceDurationMinutes, TriggerConfig triggerConfig);
         public void traceStop();
         public boolean traceDump(File outFile);
+        public boolean traceSnapshot(File outFile);
         public boolean isTracingOn();
+        public TracingServiceState queryServiceState();
+    }
+
+    /**
+     * The state of the tracing system, as seen from a single service state query.
+     */
+    public static class SystemState {
+        private final SortedMap<String, String> mCategories;
+        private final boolean mTracingOn;
+        private final TracingSession mSession;
+
+        SystemState(SortedMap<String, String> categories, boolean tracingOn,
+                TracingSession session) {
+            mCategories = categories;
+            mTracingOn = tracingOn;
+            mSession = session;
+        }
+
+        /* The available tracing categories and their descriptions. */
+        public SortedMap<String, String> getCategories() {
+            return mCategories;
+        }
+
+        /* Whether a Traceur session is in progress. */
+        public boolean isTracingOn() {
+            return mTracingOn;
+        }
+
+        /* The sizes of the Traceur session's buffers, empty if there is no session. */
+        public List<Integer> getBufferSizesKb() {
+            return mSession == null ? Collections.emptyList() : mSession.getBufferSizeKbList();
+        }
+
+        /* The state of the Traceur session as reported by traced, e.g. "STARTED". */
+        public String getSessionState() {
+            return mSession == null ? "" : mSession.getState();
+        }
     }
 
     public static String currentTraceEngine() {
@@ -69,9 +113,10 @@ public class TraceUtils {
 
     public static boolean traceStart(Collection<String> tags, int bufferSizeKb, boolean apps,
             boolean longTrace, boolean attachToBugreport, int maxLongTraceSizeMb,
-            int maxLongTraceDurationMinutes) {
+            int maxLongTraceDurationMinutes, TriggerConfig triggerConfig) {
         return mTraceEngine.traceStart(tags, bufferSizeKb, apps,
-            attachToBugreport, longTrace, maxLongTraceSizeMb, maxLongTraceDurationMinutes);
+            attachToBugreport, longTrace, maxLongTraceSizeMb, maxLongTraceDurationMinutes,
+            triggerConfig);
     }
 
     public static void traceStop() {
@@ -82,169 +127,140 @@ public class TraceUtils {
         return mTraceEngine.traceDump(outFile);
     }
 
-    public static boolean isTracingOn() {
-        return mTraceEngine.isTracingOn();
-    }
-
-    public static TreeMap<String, String> listCategories() {
-        return PerfettoUtils.perfettoListCategories();
+    public static boolean traceSnapshot(File outFile) {
+        return mTraceEngine.traceSnapshot(outFile);
     }
 
-    public static void clearSavedTraces() {
-        String cmd = "rm -f " + TRACE_DIRECTORY + "trace-*.*trace";
+    /*
+     * Fires the given perfetto triggers. Any trigger-driven session waiting on one of them
+     * starts or stops, depending on its trigger mode.
+     */
+    public static void activateTriggers(Collection<String> names) {
+        List<String> cmd = new ArrayList<>();
+        cmd.add("trigger_perfetto");
+        cmd.addAll(names);
 
-        Log.v(TAG, "Clearing trace directory: " + cmd);
+        Log.v(TAG, "Activating triggers: " + names);
         try {
-            Process rm = exec(cmd);
-
-            if (rm.waitFor() != 0) {
-                Log.e(TAG, "clearSavedTraces failed with: " + rm.exitValue());
+            Process process = execWithTimeout(cmd.toArray(new String[0]), null,
+                    PROCESS_TIMEOUT_MS);
+            if (process != null && process.exitValue() != 0) {
+                Log.e(TAG, "trigger_perfetto failed with: " + process.exitValue());
             }
-        } catch (Exception e) {
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public static Process exec(String cmd) throws IOException {
-        return exec(cmd, null);
+    public static boolean isTracingOn() {
+        return mTraceEngine.isTracingOn();
     }
 
-    public static Process exec(String cmd, String tmpdir) throws IOException {
-        return exec(cmd, tmpdir, true);
+    public static SortedMap<String, String> listCategories(Context context) {
+        return CategoryCatalog.getCategories(context);
     }
 
-    public static Process exec(String cmd, String tmpdir, boolean logOutput) throws IOException {
-        String[] cmdarray = {"sh", "-c", cmd};
-        String[] envp = {"TMPDIR=" + tmpdir};
-        envp = tmpdir == null ? null : envp;
-
-        Log.v(TAG, "exec: " + Arrays.toString(envp) + " " + Arrays.toString(cmdarray));
+    public static TracingServiceState queryServiceState() {
+        return mTraceEngine.queryServiceState();
+    }
 
-        Process process = RUNTIME.exec(cmdarray, envp);
-        new Logger("traceService:stderr", process.getErrorStream());
-        if (logOutput) {
-            new Logger("traceService:stdout", process.getInputStream());
+    /*
+     * Returns the categories and the Traceur session state from a single query of the tracing
+     * service. The category catalog is refreshed from the same query.
+     */
+    public static SystemState getSystemState(Context context) {
+        TracingServiceState state = mTraceEngine.queryServiceState();
+        if (state == null) {
+            // Fall back to asking the engine directly.
+            return new SystemState(CategoryCatalog.getCategories(context),
+                    mTraceEngine.isTracingOn(), null);
         }
 
-        return process;
+        CategoryCatalog.update(context, state);
+        TracingSession session = PerfettoUtils.findSession(state);
+        // atrace sessions don't show up in the service state.
+        boolean tracingOn = mTraceEngine.getName().equals(AtraceUtils.NAME)
+                ? mTraceEngine.isTracingOn() : session != null;
+        return new SystemState(CategoryCatalog.getCategories(context), tracingOn, session);
+    }
+
+    public static Process exec(String... cmd) throws IOException {
+        return exec(cmd, null);
+    }
+
+    public static Process exec(String[] cmd, String tmpdir) throws IOException {
+        return exec(cmd, tmpdir, true);
+    }
+
+    public static Process exec(String[] cmd, String tmpdir, boolean logOutput)
+            throws IOException {
+        return ProcessLauncher.exec(cmd, tmpdir,
+                logOutput ? null : ProcessBuilder.Redirect.PIPE);
     }
 
     // Returns the Process if the command terminated on time and null if not.
-    public static Process execWithTimeout(String cmd, String tmpdir, long timeout)
+    public static Process execWithTimeout(String[] cmd, String tmpdir, long timeout)
             throws IOException {
-        Process process = exec(cmd, tmpdir, true);
-        try {
-            if (!process.waitFor(timeout, TimeUnit.MILLISECONDS)) {
-                Log.e(TAG, "Command '" + cmd + "' has timed out after " + timeout + " ms.");
-                process.destroyForcibly();
-                // Return null to signal a timeout and that the Process was destroyed.
-                return null;
-            }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-        return process;
+        return execWithTimeout(cmd, tmpdir, timeout, null);
+    }
+
+    // Same as above, but also writes the given bytes to the command's stdin before waiting.
+    public static Process execWithTimeout(String[] cmd, String tmpdir, long timeout,
+            byte[] stdin) throws IOException {
+        return ProcessLauncher.execWithTimeout(cmd, tmpdir, timeout, stdin, null);
     }
 
     public static String getOutputFilename() {
-        String format = "yyyy-MM-dd-HH-mm-ss";
-        String now = new SimpleDateFormat(format, Locale.US).format(new Date());
-        return String.format("trace-%s-%s-%s.%s", Build.BOARD, Build.ID, now,
-            mTraceEngine.getOutputExtension());
+        return getOutputFilename("");
     }
 
-    public static File getOutputFile(String filename) {
-        return new File(TraceUtils.TRACE_DIRECTORY, filename);
+    /* The name of a segment of a rolling long trace. */
+    public static String getSegmentFilename() {
+        return getOutputFilename(SEGMENT_SUFFIX);
     }
 
-    protected static void cleanupOlderFiles(final int minCount, final long minAge) {
-        new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... params) {
-                try {
-                    FileUtils.deleteOlderFiles(new File(TRACE_DIRECTORY), minCount, minAge);
-                } catch (RuntimeException e) {
-                    Log.e(TAG, "Failed to delete older traces", e);
-                }
-                return null;
-            }
-        }.execute();
+    /* Whether filename is one getOutputFilename() gives traces, possibly compressed. */
+    public static boolean isSavedTrace(String filename) {
+        return filename.startsWith("trace-") && (filename.endsWith("trace")
+                || filename.endsWith("trace" + TraceCompressor.EXTENSION));
     }
 
-    /**
-     * Streams data from an InputStream to an OutputStream
-     */
-    static class Streamer {
-        private boolean mDone;
-
-        Streamer(final String tag, final InputStream in, final OutputStream out) {
-            new Thread(tag) {
-                @Override
-                public void run() {
-                    int read;
-                    byte[] buf = new byte[2 << 10];
-                    try {
-                        while ((read = in.read(buf)) != -1) {
-                            out.write(buf, 0, read);
-                        }
-                    } catch (IOException e) {
-                        Log.e(TAG, "Error while streaming " + tag);
-                    } finally {
-                        try {
-                            out.close();
-                        } catch (IOException e) {
-                            // Welp.
-                        }
-                        synchronized (Streamer.this) {
-                            mDone = true;
-                            Streamer.this.notify();
-                        }
-                    }
-                }
-            }.start();
-        }
+    public static boolean isSegment(String filename) {
+        return filename.contains(SEGMENT_SUFFIX + ".");
+    }
 
-        synchronized boolean isDone() {
-            return mDone;
-        }
+    private static String getOutputFilename(String suffix) {
+        String format = "yyyy-MM-dd-HH-mm-ss";
+        String now = new SimpleDateFormat(format, Locale.US).format(new Date());
+        return String.format("trace-%s-%s-%s%s.%s", Build.BOARD, Build.ID, now, suffix,
+            mTraceEngine.getOutputExtension());
+    }
 
-        synchronized void waitForDone() {
-            while (!isDone()) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
+    /*
+     * Returns the directory saved traces go to. This is TRACE_DIRECTORY unless the device
+     * configures another one, and falls back to it if the configured one isn't usable. The
+     * choice is made once, so that every trace of a process goes to the same place.
+     */
+    public static File getOutputDirectory(Context context) {
+        File dir = sOutputDirectory;
+        if (dir != null) {
+            return dir;
+        }
+        synchronized (TraceUtils.class) {
+            if (sOutputDirectory == null) {
+                dir = new File(context.getString(R.string.trace_output_directory));
+                if (!dir.isDirectory() || !dir.canWrite()) {
+                    Log.w(TAG, "Can't write to " + dir + ", saving traces to "
+                            + TRACE_DIRECTORY);
+                    dir = new File(TRACE_DIRECTORY);
                 }
+                sOutputDirectory = dir;
             }
+            return sOutputDirectory;
         }
     }
 
-    /**
-     * Redirects an InputStream to logcat.
-     */
-    private static class Logger {
-
-        Logger(final String tag, final InputStream in) {
-            new Thread(tag) {
-                @Override
-                public void run() {
-                    String line;
-                    BufferedReader r = new BufferedReader(new InputStreamReader(in));
-                    try {
-                        while ((line = r.readLine()) != null) {
-                            Log.e(TAG, tag + ": " + line);
-                        }
-                    } catch (IOException e) {
-                        Log.e(TAG, "Error while streaming " + tag);
-                    } finally {
-                        try {
-                            r.close();
-                        } catch (IOException e) {
-                            // Welp.
-                        }
-                    }
-                }
-            }.start();
-        }
+    public static File getOutputFile(Context context, String filename) {
+        return new File(getOutputDirectory(context), filename);
     }
 }
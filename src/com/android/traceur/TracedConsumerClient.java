@@ -0,0 +1,600 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.util.Log;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import perfetto.protos.TraceConfigOuterClass.TraceConfig;
+import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState;
+
+/**
+ * Minimal client for the traced consumer socket.
+ *
+ * Speaks perfetto's IPC wire protocol (length-prefixed IPCFrame messages, see
+ * protos/perfetto/ipc/wire_protocol.proto) directly over a LocalSocket, so that sessions can be
+ * controlled without forking the perfetto binary. The IPC and ConsumerPort messages aren't part
+ * of the Java protos we link against, so they are encoded by hand here; TraceConfig and
+ * TracingServiceState payloads use the generated classes.
+ *
+ * A client is not thread safe, and is expected to be used for a single operation and closed.
+ */
+public class TracedConsumerClient implements Closeable {
+
+    static final String TAG = "Traceur";
+
+    public static final LocalSocketAddress CONSUMER_SOCKET = new LocalSocketAddress(
+            "traced_consumer", LocalSocketAddress.Namespace.RESERVED);
+
+    private static final String CONSUMER_PORT = "ConsumerPort";
+    private static final int DEFAULT_TIMEOUT_MS = 10000;
+    private static final int MAX_FRAME_SIZE = 128 * 1024 * 1024;
+
+    // IPCFrame fields.
+    private static final int FRAME_REQUEST_ID = 2;
+    private static final int FRAME_BIND_SERVICE = 3;
+    private static final int FRAME_BIND_SERVICE_REPLY = 4;
+    private static final int FRAME_INVOKE_METHOD = 5;
+    private static final int FRAME_INVOKE_METHOD_REPLY = 6;
+    private static final int FRAME_REQUEST_ERROR = 7;
+
+    // IPCFrame.BindService / BindServiceReply fields.
+    private static final int BIND_SERVICE_NAME = 1;
+    private static final int BIND_REPLY_SUCCESS = 1;
+    private static final int BIND_REPLY_SERVICE_ID = 2;
+    private static final int BIND_REPLY_METHODS = 3;
+    private static final int METHOD_INFO_ID = 1;
+    private static final int METHOD_INFO_NAME = 2;
+
+    // IPCFrame.InvokeMethod / InvokeMethodReply fields.
+    private static final int INVOKE_SERVICE_ID = 1;
+    private static final int INVOKE_METHOD_ID = 2;
+    private static final int INVOKE_ARGS = 3;
+    private static final int INVOKE_REPLY_SUCCESS = 1;
+    private static final int INVOKE_REPLY_HAS_MORE = 2;
+    private static final int INVOKE_REPLY_PROTO = 3;
+
+    // IPCFrame.RequestError fields.
+    private static final int REQUEST_ERROR_MESSAGE = 1;
+
+    // ConsumerPort request and response fields, see protos/perfetto/ipc/consumer_port.proto.
+    private static final int ENABLE_TRACING_CONFIG = 1;
+    private static final int ENABLE_TRACING_ATTACH_NOTIFICATION_ONLY = 2;
+    private static final int ENABLE_TRACING_RESPONSE_ERROR = 3;
+    private static final int DETACH_KEY = 1;
+    private static final int ATTACH_KEY = 1;
+    private static final int ATTACH_RESPONSE_CONFIG = 1;
+    private static final int QUERY_SERVICE_STATE_SESSIONS_ONLY = 1;
+    private static final int QUERY_SERVICE_STATE_RESPONSE_STATE = 1;
+    private static final int CLONE_SESSION_SESSION_ID = 1;
+    private static final int CLONE_SESSION_RESPONSE_SUCCESS = 1;
+    private static final int CLONE_SESSION_RESPONSE_ERROR = 2;
+    private static final int READ_BUFFERS_RESPONSE_SLICES = 2;
+    private static final int SLICE_DATA = 1;
+    private static final int SLICE_LAST_FOR_PACKET = 2;
+
+    // Trace.packet, used to frame packets returned by ReadBuffers into a trace file.
+    private static final int TRACE_PACKET = 1;
+
+    private final LocalSocket mSocket;
+    private final DataInputStream mIn;
+    private final OutputStream mOut;
+    private final Map<String, Integer> mMethods = new HashMap<>();
+    private final ArrayDeque<Frame> mPendingFrames = new ArrayDeque<>();
+
+    private int mServiceId;
+    private long mNextRequestId = 1;
+    private long mEnableTracingRequestId = -1;
+
+    /**
+     * Connects to traced's consumer socket.
+     */
+    public static TracedConsumerClient connect() throws IOException {
+        return connect(CONSUMER_SOCKET);
+    }
+
+    /**
+     * Connects to a consumer socket at the given address and binds the ConsumerPort service.
+     * Anything that replays the wire protocol, e.g. a test stand-in listening on a filesystem
+     * socket, can be used in place of traced.
+     */
+    public static TracedConsumerClient connect(LocalSocketAddress address) throws IOException {
+        TracedConsumerClient client = new TracedConsumerClient(address);
+        try {
+            client.bind();
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+        return client;
+    }
+
+    private TracedConsumerClient(LocalSocketAddress address) throws IOException {
+        mSocket = new LocalSocket();
+        mSocket.connect(address);
+        mSocket.setSoTimeout(DEFAULT_TIMEOUT_MS);
+        mIn = new DataInputStream(mSocket.getInputStream());
+        mOut = mSocket.getOutputStream();
+    }
+
+    @Override
+    public void close() {
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            // Welp.
+        }
+    }
+
+    /**
+     * Enables a tracing session with the given config. If outputFd is non-null it is passed to
+     * traced along with the request and the trace is written into it (write_into_file).
+     *
+     * EnableTracing is a streaming call whose reply only arrives once the session ends, so this
+     * doesn't wait for it. A failure to start is reported on the next blocking call instead.
+     */
+    public void enableTracing(TraceConfig config, FileDescriptor outputFd) throws IOException {
+        ByteArrayOutputStream args = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(args);
+        out.writeByteArray(ENABLE_TRACING_CONFIG, config.toByteArray());
+        out.flush();
+        mEnableTracingRequestId = invoke("EnableTracing", args.toByteArray(), outputFd);
+    }
+
+    /**
+     * Detaches from the current session, leaving it running in traced under the given key.
+     */
+    public boolean detach(String key) throws IOException {
+        ByteArrayOutputStream args = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(args);
+        out.writeString(DETACH_KEY, key);
+        out.flush();
+        return awaitReply(invoke("Detach", args.toByteArray(), null)).success;
+    }
+
+    /**
+     * Attaches to a session previously detached with the given key, and subscribes to its
+     * tracing-disabled notification. Returns the session's config, or null if there is no
+     * such session.
+     */
+    public TraceConfig attach(String key) throws IOException {
+        ByteArrayOutputStream args = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(args);
+        out.writeString(ATTACH_KEY, key);
+        out.flush();
+        Frame reply = awaitReply(invoke("Attach", args.toByteArray(), null));
+        if (!reply.success) {
+            return null;
+        }
+
+        TraceConfig config = TraceConfig.getDefaultInstance();
+        CodedInputStream in = CodedInputStream.newInstance(reply.payload);
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            if (WireFormat.getTagFieldNumber(tag) == ATTACH_RESPONSE_CONFIG) {
+                config = TraceConfig.parseFrom(in.readBytes());
+            } else {
+                in.skipField(tag);
+            }
+        }
+
+        // Re-attached consumers only receive OnTracingDisabled if they ask for it.
+        ByteArrayOutputStream notifyArgs = new ByteArrayOutputStream();
+        CodedOutputStream notifyOut = CodedOutputStream.newInstance(notifyArgs);
+        notifyOut.writeBool(ENABLE_TRACING_ATTACH_NOTIFICATION_ONLY, true);
+        notifyOut.flush();
+        mEnableTracingRequestId = invoke("EnableTracing", notifyArgs.toByteArray(), null);
+        return config;
+    }
+
+    /**
+     * Stops the current session. Use {@link #awaitTracingDisabled} to wait for traced to finish
+     * flushing it.
+     */
+    public void disableTracing() throws IOException {
+        awaitReply(invoke("DisableTracing", new byte[0], null));
+    }
+
+    /**
+     * Waits until traced reports that the current session has been disabled. Returns false on
+     * timeout, or if the session failed.
+     */
+    public boolean awaitTracingDisabled(int timeoutMs) throws IOException {
+        if (mEnableTracingRequestId < 0) {
+            throw new IllegalStateException("No session is enabled or attached");
+        }
+        mSocket.setSoTimeout(timeoutMs);
+        try {
+            Frame reply = awaitReply(mEnableTracingRequestId);
+            String error = parseEnableTracingError(reply.payload);
+            if (error != null) {
+                Log.e(TAG, "Tracing session failed: " + error);
+                return false;
+            }
+            return reply.success;
+        } catch (SocketTimeoutException e) {
+            Log.e(TAG, "Tracing session was not disabled within " + timeoutMs + " ms.");
+            return false;
+        } finally {
+            mSocket.setSoTimeout(DEFAULT_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * Returns the serialized TracingServiceState. traced may split the state across several
+     * replies; since each is a serialized TracingServiceState, their concatenation is too.
+     */
+    public byte[] queryServiceStateRaw(boolean sessionsOnly) throws IOException {
+        ByteArrayOutputStream args = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(args);
+        out.writeBool(QUERY_SERVICE_STATE_SESSIONS_ONLY, sessionsOnly);
+        out.flush();
+
+        ByteArrayOutputStream state = new ByteArrayOutputStream();
+        long requestId = invoke("QueryServiceState", args.toByteArray(), null);
+        Frame reply;
+        do {
+            reply = awaitReply(requestId);
+            if (!reply.success) {
+                throw new IOException("QueryServiceState failed");
+            }
+            CodedInputStream in = CodedInputStream.newInstance(reply.payload);
+            for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+                if (WireFormat.getTagFieldNumber(tag) == QUERY_SERVICE_STATE_RESPONSE_STATE) {
+                    in.readBytes().writeTo(state);
+                } else {
+                    in.skipField(tag);
+                }
+            }
+        } while (reply.hasMore);
+        return state.toByteArray();
+    }
+
+    /**
+     * Returns the service state, pruned by {@link ServiceStateDecoder} to what Traceur uses.
+     */
+    public TracingServiceState queryServiceState(boolean sessionsOnly) throws IOException {
+        return ServiceStateDecoder.decode(queryServiceStateRaw(sessionsOnly));
+    }
+
+    /**
+     * Clones the session with the given id and makes the clone this client's current session.
+     * The clone is created stopped: its buffers can be read with {@link #readBuffers} and must
+     * then be released with {@link #freeBuffers}. The original session keeps running.
+     */
+    public boolean cloneSession(long sessionId) throws IOException {
+        ByteArrayOutputStream args = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(args);
+        out.writeUInt64(CLONE_SESSION_SESSION_ID, sessionId);
+        out.flush();
+        Frame reply = awaitReply(invoke("CloneSession", args.toByteArray(), null));
+
+        boolean success = false;
+        String error = "";
+        CodedInputStream in = CodedInputStream.newInstance(reply.payload);
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case CLONE_SESSION_RESPONSE_SUCCESS:
+                    success = in.readBool();
+                    break;
+                case CLONE_SESSION_RESPONSE_ERROR:
+                    error = in.readString();
+                    break;
+                default:
+                    in.skipField(tag);
+            }
+        }
+        if (!reply.success || !success) {
+            Log.e(TAG, "Failed to clone session " + sessionId + ": " + error);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Releases the buffers of the current session.
+     */
+    public void freeBuffers() throws IOException {
+        awaitReply(invoke("FreeBuffers", new byte[0], null));
+    }
+
+    /**
+     * Reads the buffers of the current session and writes them to out as a trace file, i.e. as
+     * a sequence of Trace.packet fields. Returns the number of packets written.
+     */
+    public long readBuffers(OutputStream out) throws IOException {
+        CodedOutputStream trace = CodedOutputStream.newInstance(out);
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        long packets = 0;
+
+        long requestId = invoke("ReadBuffers", new byte[0], null);
+        Frame reply;
+        do {
+            reply = awaitReply(requestId);
+            if (!reply.success) {
+                throw new IOException("ReadBuffers failed");
+            }
+            CodedInputStream in = CodedInputStream.newInstance(reply.payload);
+            for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+                if (WireFormat.getTagFieldNumber(tag) != READ_BUFFERS_RESPONSE_SLICES) {
+                    in.skipField(tag);
+                    continue;
+                }
+                CodedInputStream slice = in.readBytes().newCodedInput();
+                boolean lastSlice = false;
+                for (int t = slice.readTag(); t != 0; t = slice.readTag()) {
+                    int field = WireFormat.getTagFieldNumber(t);
+                    if (field == SLICE_DATA) {
+                        slice.readBytes().writeTo(packet);
+                    } else if (field == SLICE_LAST_FOR_PACKET) {
+                        lastSlice = slice.readBool();
+                    } else {
+                        slice.skipField(t);
+                    }
+                }
+                if (lastSlice) {
+                    trace.writeByteArray(TRACE_PACKET, packet.toByteArray());
+                    packet.reset();
+                    packets++;
+                }
+            }
+        } while (reply.hasMore);
+
+        trace.flush();
+        return packets;
+    }
+
+    /**
+     * Invokes a ConsumerPort method and returns its request id. The reply, if any, is collected
+     * with {@link #awaitReply}.
+     */
+    long invoke(String method, byte[] args, FileDescriptor fd) throws IOException {
+        Integer methodId = mMethods.get(method);
+        if (methodId == null) {
+            throw new IOException("traced does not support " + method);
+        }
+
+        ByteArrayOutputStream invoke = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(invoke);
+        out.writeUInt32(INVOKE_SERVICE_ID, mServiceId);
+        out.writeUInt32(INVOKE_METHOD_ID, methodId);
+        out.writeByteArray(INVOKE_ARGS, args);
+        out.flush();
+
+        long requestId = mNextRequestId++;
+        sendFrame(requestId, FRAME_INVOKE_METHOD, invoke.toByteArray(), fd);
+        return requestId;
+    }
+
+    /**
+     * Returns the next reply to the given request, buffering replies to other requests (e.g.
+     * the streaming EnableTracing reply) until they are asked for.
+     */
+    Frame awaitReply(long requestId) throws IOException {
+        for (Iterator<Frame> it = mPendingFrames.iterator(); it.hasNext(); ) {
+            Frame frame = it.next();
+            if (frame.requestId == requestId) {
+                it.remove();
+                return frame.checkError();
+            }
+        }
+        while (true) {
+            Frame frame = readFrame();
+            if (frame.requestId == requestId) {
+                return frame.checkError();
+            }
+            if (frame.requestId == mEnableTracingRequestId) {
+                String error = parseEnableTracingError(frame.payload);
+                if (error != null) {
+                    throw new IOException("Failed to enable tracing: " + error);
+                }
+            }
+            mPendingFrames.add(frame);
+        }
+    }
+
+    private void bind() throws IOException {
+        ByteArrayOutputStream bind = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(bind);
+        out.writeString(BIND_SERVICE_NAME, CONSUMER_PORT);
+        out.flush();
+
+        long requestId = mNextRequestId++;
+        sendFrame(requestId, FRAME_BIND_SERVICE, bind.toByteArray(), null);
+        Frame reply = awaitReply(requestId);
+        if (reply.type != FRAME_BIND_SERVICE_REPLY) {
+            throw new IOException("Unexpected reply to BindService: " + reply.type);
+        }
+
+        boolean success = false;
+        CodedInputStream in = CodedInputStream.newInstance(reply.payload);
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case BIND_REPLY_SUCCESS:
+                    success = in.readBool();
+                    break;
+                case BIND_REPLY_SERVICE_ID:
+                    mServiceId = in.readUInt32();
+                    break;
+                case BIND_REPLY_METHODS:
+                    CodedInputStream method = in.readBytes().newCodedInput();
+                    int id = 0;
+                    String name = null;
+                    for (int t = method.readTag(); t != 0; t = method.readTag()) {
+                        int field = WireFormat.getTagFieldNumber(t);
+                        if (field == METHOD_INFO_ID) {
+                            id = method.readUInt32();
+                        } else if (field == METHOD_INFO_NAME) {
+                            name = method.readString();
+                        } else {
+                            method.skipField(t);
+                        }
+                    }
+                    if (name != null) {
+                        mMethods.put(name, id);
+                    }
+                    break;
+                default:
+                    in.skipField(tag);
+            }
+        }
+        if (!success) {
+            throw new IOException("Failed to bind " + CONSUMER_PORT);
+        }
+    }
+
+    private void sendFrame(long requestId, int type, byte[] msg, FileDescriptor fd)
+            throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(msg.length + 16);
+        CodedOutputStream out = CodedOutputStream.newInstance(frame);
+        out.writeUInt64(FRAME_REQUEST_ID, requestId);
+        out.writeByteArray(type, msg);
+        out.flush();
+
+        // The header and frame are sent in a single write so that any file descriptor is
+        // delivered along with the frame it belongs to.
+        int size = frame.size();
+        byte[] buf = new byte[4 + size];
+        buf[0] = (byte) size;
+        buf[1] = (byte) (size >> 8);
+        buf[2] = (byte) (size >> 16);
+        buf[3] = (byte) (size >> 24);
+        System.arraycopy(frame.toByteArray(), 0, buf, 4, size);
+
+        if (fd != null) {
+            mSocket.setFileDescriptorsForSend(new FileDescriptor[] { fd });
+        }
+        try {
+            mOut.write(buf);
+            mOut.flush();
+        } finally {
+            if (fd != null) {
+                mSocket.setFileDescriptorsForSend(null);
+            }
+        }
+    }
+
+    private Frame readFrame() throws IOException {
+        // Frames are prefixed with their size as a little-endian uint32.
+        int size = Integer.reverseBytes(mIn.readInt());
+        if (size < 0 || size > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid IPC frame size: " + size);
+        }
+        byte[] buf = new byte[size];
+        mIn.readFully(buf);
+
+        Frame frame = new Frame();
+        CodedInputStream in = CodedInputStream.newInstance(buf);
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            int field = WireFormat.getTagFieldNumber(tag);
+            switch (field) {
+                case FRAME_REQUEST_ID:
+                    frame.requestId = in.readUInt64();
+                    break;
+                case FRAME_BIND_SERVICE_REPLY:
+                    frame.type = field;
+                    frame.payload = in.readByteArray();
+                    break;
+                case FRAME_INVOKE_METHOD_REPLY:
+                    frame.type = field;
+                    parseInvokeMethodReply(in.readByteArray(), frame);
+                    break;
+                case FRAME_REQUEST_ERROR:
+                    frame.type = field;
+                    CodedInputStream error = in.readBytes().newCodedInput();
+                    for (int t = error.readTag(); t != 0; t = error.readTag()) {
+                        if (WireFormat.getTagFieldNumber(t) == REQUEST_ERROR_MESSAGE) {
+                            frame.error = error.readString();
+                        } else {
+                            error.skipField(t);
+                        }
+                    }
+                    break;
+                default:
+                    in.skipField(tag);
+            }
+        }
+        return frame;
+    }
+
+    private static void parseInvokeMethodReply(byte[] reply, Frame frame) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(reply);
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case INVOKE_REPLY_SUCCESS:
+                    frame.success = in.readBool();
+                    break;
+                case INVOKE_REPLY_HAS_MORE:
+                    frame.hasMore = in.readBool();
+                    break;
+                case INVOKE_REPLY_PROTO:
+                    frame.payload = in.readByteArray();
+                    break;
+                default:
+                    in.skipField(tag);
+            }
+        }
+    }
+
+    // Returns the error reported in an EnableTracingResponse, or null if there is none.
+    private static String parseEnableTracingError(byte[] response) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(response);
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            if (WireFormat.getTagFieldNumber(tag) == ENABLE_TRACING_RESPONSE_ERROR) {
+                String error = in.readString();
+                return error.isEmpty() ? null : error;
+            }
+            in.skipField(tag);
+        }
+        return null;
+    }
+
+    /**
+     * A decoded IPCFrame.
+     */
+    static class Frame {
+        long requestId;
+        int type;
+        boolean success;
+        boolean hasMore;
+        byte[] payload = new byte[0];
+        String error;
+
+        Frame checkError() throws IOException {
+            if (type == FRAME_REQUEST_ERROR) {
+                throw new IOException("traced request failed: " + error);
+            }
+            return this;
+        }
+    }
+}
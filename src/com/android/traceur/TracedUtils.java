@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.net.LocalSocketAddress;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+
+import perfetto.protos.TraceConfigOuterClass.TraceConfig;
+import perfetto.protos.TraceConfigOuterClass.TraceConfig.TriggerConfig;
+import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState;
+import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState.TracingSession;
+
+/**
+ * Trace engine that talks to traced over its consumer socket instead of spawning the perfetto
+ * command line client. Sessions are configured exactly like PerfettoUtils ones, and the two
+ * engines can stop each other's sessions.
+ */
+public class TracedUtils implements TraceUtils.TraceEngine {
+
+    static final String TAG = "Traceur";
+    public static final String NAME = "TRACED";
+
+    private static final String OUTPUT_EXTENSION = "perfetto-trace";
+
+    private final LocalSocketAddress mSocketAddress;
+
+    public TracedUtils() {
+        this(TracedConsumerClient.CONSUMER_SOCKET);
+    }
+
+    // Allows pointing the engine at a stand-in for traced.
+    TracedUtils(LocalSocketAddress socketAddress) {
+        mSocketAddress = socketAddress;
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public String getOutputExtension() {
+        return OUTPUT_EXTENSION;
+    }
+
+    public boolean traceStart(Collection<String> tags, int bufferSizeKb, boolean apps,
+            boolean attachToBugreport, boolean longTrace, int maxLongTraceSizeMb,
+            int maxLongTraceDurationMinutes, TriggerConfig triggerConfig) {
+        if (isTracingOn()) {
+            Log.e(TAG, "Attempting to start traced session but trace is already in progress");
+            return false;
+        }
+
+        TraceConfig config = PerfettoUtils.buildTraceConfig(tags, bufferSizeKb, apps,
+                attachToBugreport, longTrace, maxLongTraceSizeMb, maxLongTraceDurationMinutes,
+                triggerConfig);
+
+        Log.v(TAG, "Starting traced session.");
+        File tempFile = new File(PerfettoUtils.TEMP_TRACE_LOCATION);
+        // Opening with MODE_TRUNCATE also clears any previous temporary trace.
+        try (ParcelFileDescriptor output = ParcelFileDescriptor.open(tempFile,
+                    ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE
+                            | ParcelFileDescriptor.MODE_WRITE_ONLY);
+                TracedConsumerClient client = TracedConsumerClient.connect(mSocketAddress)) {
+            // A session that stops on a trigger is read out of its ring buffer instead.
+            client.enableTracing(config,
+                    config.getWriteIntoFile() ? output.getFileDescriptor() : null);
+            if (!client.detach(PerfettoUtils.PERFETTO_TAG)) {
+                Log.e(TAG, "Failed to detach from traced session.");
+                return false;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "traced traceStart failed", e);
+            return false;
+        }
+
+        Log.v(TAG, "traced traceStart succeeded!");
+        return true;
+    }
+
+    public void traceStop() {
+        Log.v(TAG, "Stopping traced session.");
+
+        try (TracedConsumerClient client = TracedConsumerClient.connect(mSocketAddress)) {
+            TraceConfig config = client.attach(PerfettoUtils.PERFETTO_TAG);
+            if (config == null) {
+                Log.w(TAG, "No trace appears to be in progress.");
+                return;
+            }
+            client.disableTracing();
+            if (!client.awaitTracingDisabled(PerfettoUtils.STOP_TIMEOUT_MS)) {
+                Log.e(TAG, "traced traceStop did not complete.");
+                return;
+            }
+            if (!config.getWriteIntoFile()) {
+                // The trace is only in the session's ring buffer.
+                long packets;
+                try (FileOutputStream out =
+                        new FileOutputStream(PerfettoUtils.TEMP_TRACE_LOCATION)) {
+                    packets = client.readBuffers(out);
+                }
+                client.freeBuffers();
+                Log.v(TAG, "Read " + packets + " packets from the stopped session.");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public boolean traceDump(File outFile) {
+        traceStop();
+
+        // Short-circuit if a trace was not stopped.
+        if (isTracingOn()) {
+            Log.e(TAG, "Trace was not stopped successfully, aborting trace dump.");
+            return false;
+        }
+
+        return PerfettoUtils.saveInProgressTrace(outFile);
+    }
+
+    public boolean traceSnapshot(File outFile) {
+        File tempFile = new File(PerfettoUtils.TEMP_SNAPSHOT_LOCATION);
+        try (TracedConsumerClient client = TracedConsumerClient.connect(mSocketAddress)) {
+            TracingSession session = PerfettoUtils.findSession(client.queryServiceState(true));
+            if (session == null) {
+                Log.e(TAG, "No trace is in progress, aborting trace snapshot.");
+                return false;
+            }
+
+            Log.v(TAG, "Cloning traced session " + session.getId() + ".");
+            if (!client.cloneSession(session.getId())) {
+                return false;
+            }
+            // The clone is already stopped, so its buffers can be read right away.
+            long packets;
+            try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                packets = client.readBuffers(out);
+            }
+            client.freeBuffers();
+            Log.v(TAG, "Read " + packets + " packets from the cloned session.");
+        } catch (IOException e) {
+            Log.e(TAG, "traced traceSnapshot failed", e);
+            tempFile.delete();
+            return false;
+        }
+
+        return PerfettoUtils.saveTrace(PerfettoUtils.TEMP_SNAPSHOT_LOCATION, outFile);
+    }
+
+    public boolean isTracingOn() {
+        try {
+            return PerfettoUtils.findSession(queryServiceState(true)) != null;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public TracingServiceState queryServiceState() {
+        try {
+            return queryServiceState(false);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to query traced service state", e);
+            return null;
+        }
+    }
+
+    /*
+     * Returns the service state as seen by Traceur's uid. With sessionsOnly, producers and
+     * data sources are left out, which keeps the reply small.
+     */
+    private TracingServiceState queryServiceState(boolean sessionsOnly) throws IOException {
+        try (TracedConsumerClient client = TracedConsumerClient.connect(mSocketAddress)) {
+            return client.queryServiceState(sessionsOnly);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import perfetto.protos.TraceConfigOuterClass.TraceConfig;
+import perfetto.protos.TraceConfigOuterClass.TraceConfig.TriggerConfig;
+import perfetto.protos.TracePacketOuterClass.TracePacket;
+import perfetto.protos.TriggerOuterClass.Trigger;
+
+/**
+ * Collects the triggers that traced recorded in a trace, in the order they were received, and
+ * the trigger config of the session, from the trace config that traced writes into the trace.
+ */
+public class TriggerVisitor implements TracePacketReader.PacketVisitor {
+
+    public static class FiredTrigger {
+        public final String name;
+        public final String producerName;
+        /* Boot time at which traced received the trigger. */
+        public final long timestampNs;
+
+        FiredTrigger(String name, String producerName, long timestampNs) {
+            this.name = name;
+            this.producerName = producerName;
+            this.timestampNs = timestampNs;
+        }
+    }
+
+    private final List<FiredTrigger> mTriggers = new ArrayList<>();
+    private TriggerConfig mTriggerConfig;
+
+    public List<FiredTrigger> getTriggers() {
+        return mTriggers;
+    }
+
+    /* The trigger config of the session, or null if it wasn't trigger-driven. */
+    public TriggerConfig getTriggerConfig() {
+        return mTriggerConfig;
+    }
+
+    @Override
+    public void visitPacket(long offset, int size, byte[] packet, int length)
+            throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(packet, 0, length);
+        long timestampNs = 0;
+        Trigger trigger = null;
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case TracePacket.TIMESTAMP_FIELD_NUMBER:
+                    timestampNs = in.readUInt64();
+                    break;
+                case TracePacket.TRIGGER_FIELD_NUMBER:
+                    trigger = Trigger.parseFrom(in.readBytes());
+                    break;
+                case TracePacket.TRACE_CONFIG_FIELD_NUMBER: {
+                    TraceConfig config = TraceConfig.parseFrom(in.readBytes());
+                    if (config.hasTriggerConfig() && config.getTriggerConfig().getTriggerMode()
+                            != TriggerConfig.TriggerMode.UNSPECIFIED) {
+                        mTriggerConfig = config.getTriggerConfig();
+                    }
+                    break;
+                }
+                default:
+                    in.skipField(tag);
+                    break;
+            }
+        }
+        if (trigger != null) {
+            mTriggers.add(new FiredTrigger(trigger.getTriggerName(), trigger.getProducerName(),
+                    timestampNs));
+        }
+    }
+}
@@ -45,11 +45,15 @@ public class UserConsentActivityDialog extends AlertActivity
 
     private static final String TAG = "Traceur";
 
+    /* The path of the trace being shared, if a redacted copy of it can be shared instead. */
+    static final String EXTRA_TRACE = "com.android.traceur.EXTRA_TRACE";
+
     private static final String PREF_KEY_SHOW_DIALOG = "show-dialog";
     private static final int PREF_STATE_SHOW = 0;
     private static final int PREF_STATE_HIDE = 1;
 
     private Intent mNextIntent;
+    private String mTracePath;
     private CheckBox mDontShowAgain;
 
     @Override
@@ -58,12 +62,15 @@ public class UserConsentActivityDialog extends AlertActivity
 
         this.getWindow().addSystemFlags(SYSTEM_FLAG_HIDE_NON_SYSTEM_OVERLAY_WINDOWS);
         mNextIntent = getIntent().getParcelableExtra(Intent.EXTRA_INTENT);
+        mTracePath = getIntent().getStringExtra(EXTRA_TRACE);
 
         // If the user has previously indicated to never show this dialog again,
-        // go ahead and start the target intent and finish this activity.
+        // go ahead and start the target intent and finish this activity. The trace saved
+        // notification still offers to share a redacted copy.
         if (getShowDialogState(this) == PREF_STATE_HIDE) {
             startActivity(mNextIntent);
             finish();
+            return;
         }
 
         final AlertController.AlertParams params = mAlertParams;
@@ -75,6 +82,10 @@ public class UserConsentActivityDialog extends AlertActivity
         params.mNegativeButtonText = getString(android.R.string.cancel);
         params.mPositiveButtonListener = this;
         params.mNegativeButtonListener = this;
+        if (mTracePath != null) {
+            params.mNeutralButtonText = getString(R.string.share_redacted);
+            params.mNeutralButtonListener = this;
+        }
 
         mDontShowAgain = (CheckBox) params.mView.findViewById(android.R.id.checkbox);
 
@@ -95,6 +106,9 @@ public class UserConsentActivityDialog extends AlertActivity
                 toast.show();
                 Log.e(TAG, "Sharing trace failed: No apps available.");
             }
+        } else if (which == AlertDialog.BUTTON_NEUTRAL) {
+            // The redacted copy gets its own trace saved notification to share it from.
+            TraceService.redactTrace(this, new File(mTracePath));
         }
 
         finish();
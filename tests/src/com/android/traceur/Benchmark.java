@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the iterations of a benchmark, and reports the results to the instrumentation, so
+ * that they show up in the test results, and to logcat.
+ */
+class Benchmark {
+
+    static final String TAG = "Traceur";
+
+    interface Body {
+        void run() throws Exception;
+    }
+
+    /*
+     * Runs body warmup times, then times it iterations times. Returns the median time in ns,
+     * after reporting it and the minimum as name.
+     */
+    static long measure(String name, int warmup, int iterations, Body body) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            body.run();
+        }
+        long[] nanos = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long startNs = SystemClock.elapsedRealtimeNanos();
+            body.run();
+            nanos[i] = SystemClock.elapsedRealtimeNanos() - startNs;
+        }
+        Arrays.sort(nanos);
+        long medianNs = nanos[iterations / 2];
+        report(name + "_median_us", TimeUnit.NANOSECONDS.toMicros(medianNs));
+        report(name + "_min_us", TimeUnit.NANOSECONDS.toMicros(nanos[0]));
+        return medianNs;
+    }
+
+    static void report(String key, long value) {
+        Log.i(TAG, "Benchmark " + key + ": " + value);
+        Bundle status = new Bundle();
+        status.putLong(key, value);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+}
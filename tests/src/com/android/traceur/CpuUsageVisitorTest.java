@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import static com.android.traceur.TraceFixtures.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import perfetto.protos.FtraceEventBundleOuterClass.FtraceEventBundle;
+import perfetto.protos.FtraceEventBundleOuterClass.FtraceEventBundle.CompactSched;
+import perfetto.protos.FtraceEventOuterClass.FtraceEvent;
+import perfetto.protos.ProcessTreeOuterClass.ProcessTree;
+import perfetto.protos.Sched.SchedSwitchFtraceEvent;
+import perfetto.protos.Sched.SchedWakingFtraceEvent;
+import perfetto.protos.TracePacketOuterClass.TracePacket;
+
+@RunWith(AndroidJUnit4.class)
+public class CpuUsageVisitorTest {
+
+    private static final long US = 1000;
+    private static final int CPU = 2;
+
+    // An app with a main thread and a render thread, and a daemon missing from the process
+    // tree, which is named after its main thread.
+    private static final int APP_PID = 100;
+    private static final int RENDER_TID = 101;
+    private static final int DAEMON_PID = 200;
+
+    private static final long RUNNING = 0;
+    private static final long SLEEPING = 1;
+
+    // The events, in time order, that both kinds of bundle hold:
+    //   1000 us: the app's main thread is switched in.
+    //   1500 us: the render thread is woken.
+    //   3000 us: the main thread is preempted by the render thread, which waited 1500 us.
+    //   4000 us: the daemon is woken.
+    //   5500 us: the render thread sleeps, and the main thread, which waited 2500 us, runs.
+    //   7000 us: the main thread sleeps, and the daemon, which waited 3000 us, runs.
+    //   8000 us: the daemon sleeps, and the CPU idles.
+    private static final long[] SWITCH_US = { 1000, 3000, 5500, 7000, 8000 };
+    private static final int[] SWITCH_PREV_TIDS = { 0, APP_PID, RENDER_TID, APP_PID, DAEMON_PID };
+    private static final long[] SWITCH_PREV_STATES = { RUNNING, RUNNING, SLEEPING, SLEEPING,
+            SLEEPING };
+    private static final int[] SWITCH_NEXT_TIDS = { APP_PID, RENDER_TID, APP_PID, DAEMON_PID, 0 };
+    private static final String[] SWITCH_NEXT_COMMS = { "app", "RenderThread", "app", "daemon",
+            "swapper/2" };
+    private static final long[] WAKING_US = { 1500, 4000 };
+    private static final int[] WAKING_TIDS = { RENDER_TID, DAEMON_PID };
+    private static final String[] WAKING_COMMS = { "RenderThread", "daemon" };
+
+    private File mTrace;
+
+    @Before
+    public void setUp() {
+        mTrace = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "cpu-test.perfetto-trace");
+    }
+
+    @After
+    public void tearDown() {
+        mTrace.delete();
+    }
+
+    @Test
+    public void decodesSchedSwitchEvents() throws Exception {
+        assertUsage(visit(schedSwitchBundle()));
+    }
+
+    @Test
+    public void decodesCompactSched() throws Exception {
+        assertUsage(visit(compactSchedBundle()));
+    }
+
+    @Test
+    public void hasNoUsageWithoutSchedulerEvents() throws Exception {
+        CpuUsageVisitor cpu = visit(TraceFixtures.bundle(1000 * US, 2000 * US));
+
+        assertFalse(cpu.hasUsage());
+        assertEquals(-1, cpu.getDurationMs());
+        assertEquals(List.of(), cpu.getTopThreads(CpuUsageVisitor.TOP_COUNT));
+    }
+
+    private CpuUsageVisitor visit(TracePacket bundle) throws Exception {
+        TraceFixtures.write(mTrace, List.of(config(), bundle, processTree()));
+        CpuUsageVisitor cpu = new CpuUsageVisitor();
+        TracePacketReader.read(mTrace, cpu);
+        return cpu;
+    }
+
+    private static void assertUsage(CpuUsageVisitor cpu) {
+        assertTrue(cpu.hasUsage());
+        assertEquals(7, cpu.getDurationMs());
+
+        List<CpuUsageVisitor.Usage> threads = cpu.getTopThreads(CpuUsageVisitor.TOP_COUNT);
+        assertEquals(List.of(APP_PID, RENDER_TID, DAEMON_PID), ids(threads));
+        assertEquals(List.of("app", "RenderThread", "daemon"), names(threads));
+        assertEquals(List.of(3500 * US, 2500 * US, 1000 * US), cpuNs(threads));
+
+        List<CpuUsageVisitor.Usage> waits = cpu.getTopWaits(CpuUsageVisitor.TOP_COUNT);
+        assertEquals(List.of(DAEMON_PID, APP_PID, RENDER_TID), ids(waits));
+        assertEquals(List.of(3000 * US, 2500 * US, 1500 * US), waitNs(waits));
+        for (CpuUsageVisitor.Usage wait : waits) {
+            // Each thread waited once.
+            assertEquals(wait.waitNs, wait.maxWaitNs);
+        }
+
+        // The render thread counts towards its process, named from the process tree.
+        List<CpuUsageVisitor.Usage> processes = cpu.getTopProcesses(1);
+        assertEquals(List.of(APP_PID), ids(processes));
+        assertEquals(List.of("com.example.app"), names(processes));
+        assertEquals(List.of(6000 * US), cpuNs(processes));
+        assertEquals(List.of(4000 * US), waitNs(processes));
+
+        processes = cpu.getTopProcesses(CpuUsageVisitor.TOP_COUNT);
+        assertEquals(List.of(APP_PID, DAEMON_PID), ids(processes));
+        assertEquals(List.of("com.example.app", "daemon"), names(processes));
+    }
+
+    private static TracePacket schedSwitchBundle() {
+        FtraceEventBundle.Builder bundle = FtraceEventBundle.newBuilder().setCpu(CPU);
+        int w = 0;
+        for (int s = 0; s < SWITCH_US.length; s++) {
+            for (; w < WAKING_US.length && WAKING_US[w] < SWITCH_US[s]; w++) {
+                bundle.addEvent(FtraceEvent.newBuilder()
+                        .setTimestamp(WAKING_US[w] * US)
+                        .setPid(SWITCH_NEXT_TIDS[s - 1])
+                        .setSchedWaking(SchedWakingFtraceEvent.newBuilder()
+                                .setPid(WAKING_TIDS[w])
+                                .setComm(WAKING_COMMS[w])
+                                .setTargetCpu(CPU)));
+            }
+            bundle.addEvent(FtraceEvent.newBuilder()
+                    .setTimestamp(SWITCH_US[s] * US)
+                    .setPid(SWITCH_PREV_TIDS[s])
+                    .setSchedSwitch(SchedSwitchFtraceEvent.newBuilder()
+                            .setPrevPid(SWITCH_PREV_TIDS[s])
+                            .setPrevState(SWITCH_PREV_STATES[s])
+                            .setNextPid(SWITCH_NEXT_TIDS[s])
+                            .setNextComm(SWITCH_NEXT_COMMS[s])));
+        }
+        return TracePacket.newBuilder()
+                .setFtraceEvents(bundle)
+                .setTrustedPacketSequenceId(1)
+                .build();
+    }
+
+    // The same events as columns, with timestamps delta-encoded and comms interned.
+    private static TracePacket compactSchedBundle() {
+        CompactSched.Builder compact = CompactSched.newBuilder();
+        List<String> interned = new ArrayList<>();
+        long lastUs = 0;
+        for (int s = 0; s < SWITCH_US.length; s++) {
+            compact.addSwitchTimestamp((SWITCH_US[s] - lastUs) * US)
+                    .addSwitchPrevState(SWITCH_PREV_STATES[s])
+                    .addSwitchNextPid(SWITCH_NEXT_TIDS[s])
+                    .addSwitchNextPrio(120)
+                    .addSwitchNextCommIndex(intern(interned, SWITCH_NEXT_COMMS[s]));
+            lastUs = SWITCH_US[s];
+        }
+        lastUs = 0;
+        for (int w = 0; w < WAKING_US.length; w++) {
+            compact.addWakingTimestamp((WAKING_US[w] - lastUs) * US)
+                    .addWakingPid(WAKING_TIDS[w])
+                    .addWakingTargetCpu(CPU)
+                    .addWakingPrio(120)
+                    .addWakingCommIndex(intern(interned, WAKING_COMMS[w]));
+            lastUs = WAKING_US[w];
+        }
+        compact.addAllInternTable(interned);
+        return TracePacket.newBuilder()
+                .setFtraceEvents(FtraceEventBundle.newBuilder()
+                        .setCpu(CPU)
+                        .setCompactSched(compact))
+                .setTrustedPacketSequenceId(1)
+                .build();
+    }
+
+    private static int intern(List<String> interned, String comm) {
+        int index = interned.indexOf(comm);
+        if (index < 0) {
+            index = interned.size();
+            interned.add(comm);
+        }
+        return index;
+    }
+
+    // Written after the bundle, as when perfetto writes its buffers one after the other.
+    private static TracePacket processTree() {
+        return TracePacket.newBuilder()
+                .setTimestamp(9000 * US)
+                .setProcessTree(ProcessTree.newBuilder()
+                        .addProcesses(ProcessTree.Process.newBuilder()
+                                .setPid(APP_PID)
+                                .setPpid(1)
+                                .addCmdline("com.example.app")
+                                .addCmdline("--flag"))
+                        .addThreads(ProcessTree.Thread.newBuilder()
+                                .setTid(RENDER_TID)
+                                .setTgid(APP_PID)
+                                .setName("RenderThread")))
+                .build();
+    }
+
+    private static List<Integer> ids(List<CpuUsageVisitor.Usage> usages) {
+        List<Integer> ids = new ArrayList<>();
+        for (CpuUsageVisitor.Usage usage : usages) {
+            ids.add(usage.id);
+        }
+        return ids;
+    }
+
+    private static List<String> names(List<CpuUsageVisitor.Usage> usages) {
+        List<String> names = new ArrayList<>();
+        for (CpuUsageVisitor.Usage usage : usages) {
+            names.add(usage.name);
+        }
+        return names;
+    }
+
+    private static List<Long> cpuNs(List<CpuUsageVisitor.Usage> usages) {
+        List<Long> cpuNs = new ArrayList<>();
+        for (CpuUsageVisitor.Usage usage : usages) {
+            cpuNs.add(usage.cpuNs);
+        }
+        return cpuNs;
+    }
+
+    private static List<Long> waitNs(List<CpuUsageVisitor.Usage> usages) {
+        List<Long> waitNs = new ArrayList<>();
+        for (CpuUsageVisitor.Usage usage : usages) {
+            waitNs.add(usage.waitNs);
+        }
+        return waitNs;
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import perfetto.protos.TraceConfigOuterClass.TraceConfig;
+import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState;
+import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState.TracingSession;
+
+/**
+ * Stands in for traced's consumer socket, on an abstract socket of its own.
+ *
+ * It speaks the server side of perfetto's IPC wire protocol, with the frames traced sends, for
+ * one session at a time. Packets given to it are written into the file passed along with
+ * EnableTracing, or returned by ReadBuffers for a session that doesn't write into a file.
+ * Clients are served one after the other, like TracedUtils connects.
+ */
+class FakeTraced implements Closeable {
+
+    private static final String[] METHODS = {"EnableTracing", "DisableTracing", "Detach",
+        "Attach", "QueryServiceState", "CloneSession", "ReadBuffers", "FreeBuffers"};
+    private static final int SERVICE_ID = 7;
+
+    // IPCFrame fields, see protos/perfetto/ipc/wire_protocol.proto.
+    private static final int FRAME_REQUEST_ID = 2;
+    private static final int FRAME_BIND_SERVICE = 3;
+    private static final int FRAME_BIND_SERVICE_REPLY = 4;
+    private static final int FRAME_INVOKE_METHOD = 5;
+    private static final int FRAME_INVOKE_METHOD_REPLY = 6;
+
+    private final String mName;
+    private final LocalServerSocket mServer;
+    private final Thread mThread;
+    private final TracingServiceState mDataSources;
+    private final List<byte[]> mPackets;
+
+    private final List<String> mCalls = Collections.synchronizedList(new ArrayList<>());
+    private volatile TraceConfig mConfig;
+    private volatile String mDetachKey;
+    private volatile boolean mReceivedOutputFd;
+
+    /*
+     * dataSources is what QueryServiceState returns besides the session, and packets the
+     * trace of the session.
+     */
+    FakeTraced(TracingServiceState dataSources, List<byte[]> packets) throws IOException {
+        mName = "traceur-fake-traced-" + System.nanoTime();
+        mServer = new LocalServerSocket(mName);
+        mDataSources = dataSources;
+        mPackets = packets;
+        mThread = new Thread(this::serve, "fake-traced");
+        mThread.start();
+    }
+
+    LocalSocketAddress getAddress() {
+        return new LocalSocketAddress(mName, LocalSocketAddress.Namespace.ABSTRACT);
+    }
+
+    /* The ConsumerPort methods invoked so far, in order. */
+    List<String> getCalls() {
+        synchronized (mCalls) {
+            return new ArrayList<>(mCalls);
+        }
+    }
+
+    /* The config of the session, null if none was started. */
+    TraceConfig getConfig() {
+        return mConfig;
+    }
+
+    String getDetachKey() {
+        return mDetachKey;
+    }
+
+    boolean receivedOutputFd() {
+        return mReceivedOutputFd;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServer.close();
+        try {
+            mThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve() {
+        while (true) {
+            try (LocalSocket socket = mServer.accept()) {
+                new Connection(socket).serve();
+            } catch (IOException e) {
+                // The server socket was closed.
+                return;
+            }
+        }
+    }
+
+    private class Connection {
+        private final LocalSocket mSocket;
+        private final DataInputStream mIn;
+        private final OutputStream mOut;
+        private long mEnableTracingRequestId = -1;
+
+        Connection(LocalSocket socket) throws IOException {
+            mSocket = socket;
+            mIn = new DataInputStream(socket.getInputStream());
+            mOut = socket.getOutputStream();
+        }
+
+        void serve() throws IOException {
+            while (true) {
+                byte[] frame;
+                try {
+                    frame = new byte[Integer.reverseBytes(mIn.readInt())];
+                } catch (EOFException e) {
+                    // The client is done.
+                    return;
+                }
+                mIn.readFully(frame);
+                FileDescriptor[] fds = mSocket.getAncillaryFileDescriptors();
+                handleFrame(frame, fds == null || fds.length == 0 ? null : fds[0]);
+            }
+        }
+
+        private void handleFrame(byte[] frame, FileDescriptor fd) throws IOException {
+            CodedInputStream in = CodedInputStream.newInstance(frame);
+            long requestId = 0;
+            for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                    case FRAME_REQUEST_ID:
+                        requestId = in.readUInt64();
+                        break;
+                    case FRAME_BIND_SERVICE:
+                        in.skipField(tag);
+                        sendFrame(requestId, FRAME_BIND_SERVICE_REPLY, bindServiceReply());
+                        break;
+                    case FRAME_INVOKE_METHOD:
+                        CodedInputStream invoke = in.readBytes().newCodedInput();
+                        int methodId = 0;
+                        byte[] args = new byte[0];
+                        for (int t = invoke.readTag(); t != 0; t = invoke.readTag()) {
+                            int field = WireFormat.getTagFieldNumber(t);
+                            if (field == 2) {
+                                methodId = invoke.readUInt32();
+                            } else if (field == 3) {
+                                args = invoke.readByteArray();
+                            } else {
+                                invoke.skipField(t);
+                            }
+                        }
+                        String method = METHODS[methodId - 1];
+                        mCalls.add(method);
+                        invoke(requestId, method, args, fd);
+                        break;
+                    default:
+                        in.skipField(tag);
+                        break;
+                }
+            }
+        }
+
+        private void invoke(long requestId, String method, byte[] args, FileDescriptor fd)
+                throws IOException {
+            CodedInputStream in = CodedInputStream.newInstance(args);
+            switch (method) {
+                case "EnableTracing":
+                    // Field 1 is the config, 2 attach_notification_only.
+                    for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+                        if (WireFormat.getTagFieldNumber(tag) == 1) {
+                            mConfig = TraceConfig.parseFrom(in.readBytes());
+                        } else {
+                            in.skipField(tag);
+                        }
+                    }
+                    if (fd != null) {
+                        mReceivedOutputFd = true;
+                        writeTrace(fd);
+                    }
+                    // Replied to once the session is disabled.
+                    mEnableTracingRequestId = requestId;
+                    break;
+                case "Detach":
+                    in.readTag();
+                    mDetachKey = in.readString();
+                    sendReply(requestId, true, false, new byte[0]);
+                    break;
+                case "Attach":
+                    in.readTag();
+                    String key = in.readString();
+                    if (mConfig == null || !key.equals(mDetachKey)) {
+                        sendReply(requestId, false, false, new byte[0]);
+                    } else {
+                        sendReply(requestId, true, false, message(1, mConfig.toByteArray()));
+                    }
+                    break;
+                case "DisableTracing":
+                    sendReply(requestId, true, false, new byte[0]);
+                    // The session stops, and the consumer is told so.
+                    mDetachKey = null;
+                    if (mEnableTracingRequestId >= 0) {
+                        sendReply(mEnableTracingRequestId, true, false, new byte[0]);
+                    }
+                    break;
+                case "QueryServiceState":
+                    // Split across two replies, like traced does with large states.
+                    TracingServiceState.Builder sessions = TracingServiceState.newBuilder();
+                    if (mDetachKey != null) {
+                        sessions.addTracingSessions(TracingSession.newBuilder()
+                                .setId(1)
+                                .setUniqueSessionName(mConfig.getUniqueSessionName())
+                                .setState("STARTED"));
+                    }
+                    sendReply(requestId, true, true, message(1, mDataSources.toByteArray()));
+                    sendReply(requestId, true, false,
+                            message(1, sessions.build().toByteArray()));
+                    break;
+                case "ReadBuffers":
+                    // Every packet but the last is split in two slices, and the last one is
+                    // sent in a reply of its own.
+                    ByteArrayOutputStream slices = new ByteArrayOutputStream();
+                    CodedOutputStream out = CodedOutputStream.newInstance(slices);
+                    for (int i = 0; i < mPackets.size() - 1; i++) {
+                        byte[] packet = mPackets.get(i);
+                        int half = packet.length / 2;
+                        out.writeByteArray(2, slice(Arrays.copyOfRange(packet, 0, half), false));
+                        out.writeByteArray(2, slice(
+                                Arrays.copyOfRange(packet, half, packet.length), true));
+                    }
+                    out.flush();
+                    sendReply(requestId, true, true, slices.toByteArray());
+                    sendReply(requestId, true, false,
+                            message(2, slice(mPackets.get(mPackets.size() - 1), true)));
+                    break;
+                default:
+                    sendReply(requestId, true, false, new byte[0]);
+                    break;
+            }
+        }
+
+        // Writes the packets like traced writes into the file of a write_into_file session.
+        private void writeTrace(FileDescriptor fd) throws IOException {
+            try (FileOutputStream file = new FileOutputStream(fd)) {
+                CodedOutputStream out = CodedOutputStream.newInstance(file);
+                for (byte[] packet : mPackets) {
+                    out.writeByteArray(1, packet);
+                }
+                out.flush();
+            }
+        }
+
+        private byte[] bindServiceReply() throws IOException {
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            CodedOutputStream out = CodedOutputStream.newInstance(reply);
+            out.writeBool(1, true);
+            out.writeUInt32(2, SERVICE_ID);
+            for (int i = 0; i < METHODS.length; i++) {
+                ByteArrayOutputStream method = new ByteArrayOutputStream();
+                CodedOutputStream methodOut = CodedOutputStream.newInstance(method);
+                methodOut.writeUInt32(1, i + 1);
+                methodOut.writeString(2, METHODS[i]);
+                methodOut.flush();
+                out.writeByteArray(3, method.toByteArray());
+            }
+            out.flush();
+            return reply.toByteArray();
+        }
+
+        private void sendReply(long requestId, boolean success, boolean hasMore, byte[] reply)
+                throws IOException {
+            ByteArrayOutputStream invokeReply = new ByteArrayOutputStream();
+            CodedOutputStream out = CodedOutputStream.newInstance(invokeReply);
+            out.writeBool(1, success);
+            out.writeBool(2, hasMore);
+            out.writeByteArray(3, reply);
+            out.flush();
+            sendFrame(requestId, FRAME_INVOKE_METHOD_REPLY, invokeReply.toByteArray());
+        }
+
+        private void sendFrame(long requestId, int type, byte[] msg) throws IOException {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            CodedOutputStream out = CodedOutputStream.newInstance(frame);
+            out.writeUInt64(FRAME_REQUEST_ID, requestId);
+            out.writeByteArray(type, msg);
+            out.flush();
+
+            int size = frame.size();
+            mOut.write(new byte[] {(byte) size, (byte) (size >> 8), (byte) (size >> 16),
+                (byte) (size >> 24)});
+            frame.writeTo(mOut);
+            mOut.flush();
+        }
+    }
+
+    private static byte[] slice(byte[] data, boolean last) throws IOException {
+        ByteArrayOutputStream slice = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(slice);
+        out.writeByteArray(1, data);
+        out.writeBool(2, last);
+        out.flush();
+        return slice.toByteArray();
+    }
+
+    // A message with a single length-delimited field.
+    private static byte[] message(int field, byte[] value) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(message);
+        out.writeByteArray(field, value);
+        out.flush();
+        return message.toByteArray();
+    }
+}
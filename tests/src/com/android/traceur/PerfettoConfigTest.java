@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.List;
+
+import perfetto.protos.TraceConfigOuterClass.TraceConfig;
+import perfetto.protos.TraceConfigOuterClass.TraceConfig.TriggerConfig;
+
+/**
+ * Checks that traced accepts the configs Traceur builds, by recording short sessions with them
+ * through the perfetto command line client, like PerfettoUtils does.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PerfettoConfigTest {
+
+    private static final String SESSION_NAME = "traceur-config-test";
+    private static final String TRIGGER_NAME = "traceur-config-test";
+    private static final File OUTPUT = new File("/data/local/traces/.traceur-config-test.trace");
+    private static final int SESSION_MS = 1000;
+    private static final int TIMEOUT_MS = 30000;
+
+    private static final List<String> TAGS = List.of("gfx", "memory", "power", "sched", "view");
+
+    @After
+    public void tearDown() {
+        OUTPUT.delete();
+    }
+
+    @Test
+    public void acceptsShortTraceConfig() throws Exception {
+        assertAccepted(buildConfig(false, PerfettoUtils.TRIGGER_MODE_OFF));
+    }
+
+    @Test
+    public void acceptsLongTraceConfig() throws Exception {
+        assertAccepted(buildConfig(true, PerfettoUtils.TRIGGER_MODE_OFF));
+    }
+
+    @Test
+    public void acceptsStartTriggerConfig() throws Exception {
+        assertAccepted(buildConfig(false, PerfettoUtils.TRIGGER_MODE_START));
+        assertAccepted(buildConfig(true, PerfettoUtils.TRIGGER_MODE_START));
+    }
+
+    @Test
+    public void acceptsStopTriggerConfig() throws Exception {
+        assertAccepted(buildConfig(false, PerfettoUtils.TRIGGER_MODE_STOP));
+        assertAccepted(buildConfig(true, PerfettoUtils.TRIGGER_MODE_STOP));
+    }
+
+    @Test
+    public void stopTriggerConfigOnlyRecordsIntoRingBuffer() {
+        TraceConfig config = buildConfig(true, PerfettoUtils.TRIGGER_MODE_STOP);
+        assertFalse(config.getWriteIntoFile());
+        assertFalse(config.hasFileWritePeriodMs());
+        assertFalse(config.hasMaxFileSizeBytes());
+        assertTrue(buildConfig(true, PerfettoUtils.TRIGGER_MODE_START).getWriteIntoFile());
+    }
+
+    /*
+     * Builds the config the app would for these settings, made to end on its own after
+     * SESSION_MS without colliding with or notifying a session recorded by Traceur.
+     */
+    private static TraceConfig buildConfig(boolean longTrace, String triggerMode) {
+        TriggerConfig triggerConfig = PerfettoUtils.buildTriggerConfig(triggerMode,
+                List.of(TRIGGER_NAME), 1, 0);
+        TraceConfig.Builder config = PerfettoUtils.buildTraceConfig(TAGS, 1024, true, true,
+                longTrace, 16, 1, triggerConfig).toBuilder()
+            .setUniqueSessionName(SESSION_NAME)
+            .setNotifyTraceur(false)
+            .clearBugreportScore();
+        if (triggerConfig != null) {
+            // Nothing fires the trigger, so the session ends at the timeout.
+            config.setTriggerConfig(triggerConfig.toBuilder().setTriggerTimeoutMs(SESSION_MS));
+        } else {
+            config.setDurationMs(SESSION_MS);
+        }
+        return config.build();
+    }
+
+    private static void assertAccepted(TraceConfig config) throws Exception {
+        String[] cmd = {"perfetto", "-c", "-", "-o", OUTPUT.getPath()};
+        Process process = ProcessLauncher.execWithTimeout(cmd, OUTPUT.getParent(), TIMEOUT_MS,
+                config.toByteArray(), null);
+        assertNotNull("perfetto didn't exit", process);
+        // perfetto logs why traced refused the config to logcat.
+        assertEquals("traced refused the config, see logcat", 0, process.exitValue());
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class ProcessLauncherTest {
+
+    private static final long TIMEOUT_MS = 10000;
+
+    // Far more than a pipe holds, so that writing it outlives a command that doesn't read it.
+    private static final byte[] STDIN = new byte[4 << 20];
+
+    @Test
+    public void writesStdin() throws Exception {
+        String[] cmd = {"sh", "-c", "cat > /dev/null"};
+        Process process = ProcessLauncher.execWithTimeout(cmd, null, TIMEOUT_MS, STDIN, null);
+
+        assertNotNull(process);
+        assertEquals(0, process.exitValue());
+    }
+
+    @Test
+    public void reportsTheExitCodeOfCommandsThatDontReadStdin() throws Exception {
+        String[] cmd = {"sh", "-c", "exit 3"};
+        Process process = ProcessLauncher.execWithTimeout(cmd, null, TIMEOUT_MS, STDIN, null);
+
+        assertNotNull(process);
+        assertEquals(3, process.exitValue());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import perfetto.protos.FtraceDescriptorOuterClass.FtraceDescriptor.AtraceCategory;
+import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState;
+import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState.DataSource;
+
+/**
+ * Compares ServiceStateDecoder against a full parse of the service state this device reports,
+ * both in latency and in the heap that each decoded state holds on to.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class ServiceStateDecoderBenchmark {
+
+    private static final int ITERATIONS = 200;
+    private static final int TIMEOUT_MS = 10000;
+
+    private static byte[] sServiceState;
+
+    @BeforeClass
+    public static void queryServiceState() throws Exception {
+        String[] cmd = {"perfetto", "--query-raw"};
+        Process perfetto = ProcessLauncher.exec(cmd, null, ProcessBuilder.Redirect.PIPE);
+        try (InputStream in = perfetto.getInputStream()) {
+            sServiceState = in.readAllBytes();
+        }
+        assertTrue("perfetto didn't exit", perfetto.waitFor(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(0, perfetto.exitValue());
+        Benchmark.report("service_state_bytes", sServiceState.length);
+    }
+
+    @Test
+    public void decodesTheSameCategories() throws Exception {
+        assertEquals(getCategories(TracingServiceState.parseFrom(sServiceState)),
+                getCategories(ServiceStateDecoder.decode(sServiceState)));
+    }
+
+    @Test
+    public void fullParse() throws Exception {
+        Benchmark.measure("service_state_parse", 20, ITERATIONS,
+                () -> TracingServiceState.parseFrom(sServiceState));
+        Benchmark.report("service_state_parse_retained_bytes",
+                measureRetainedBytes(() -> TracingServiceState.parseFrom(sServiceState)));
+    }
+
+    @Test
+    public void decode() throws Exception {
+        Benchmark.measure("service_state_decode", 20, ITERATIONS,
+                () -> ServiceStateDecoder.decode(sServiceState));
+        Benchmark.report("service_state_decode_retained_bytes",
+                measureRetainedBytes(() -> ServiceStateDecoder.decode(sServiceState)));
+    }
+
+    /*
+     * Returns the heap that each result of decode holds on to, from the used heap around a
+     * forced GC before and after keeping ITERATIONS results alive. Garbage made while decoding
+     * isn't counted, since there's no public API for the bytes a thread allocated.
+     */
+    private static long measureRetainedBytes(Callable<Object> decode) throws Exception {
+        Object[] results = new Object[ITERATIONS];
+        long beforeBytes = getUsedHeapBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            results[i] = decode.call();
+        }
+        long afterBytes = getUsedHeapBytes();
+        Reference.reachabilityFence(results);
+        return Math.max(0, afterBytes - beforeBytes) / ITERATIONS;
+    }
+
+    private static long getUsedHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        runtime.runFinalization();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static List<String> getCategories(TracingServiceState state) {
+        List<String> categories = new ArrayList<>();
+        for (DataSource dataSource : state.getDataSourcesList()) {
+            if (!dataSource.getDsDescriptor().hasFtraceDescriptor()) {
+                continue;
+            }
+            for (AtraceCategory category :
+                    dataSource.getDsDescriptor().getFtraceDescriptor().getAtraceCategoriesList()) {
+                categories.add(category.getName() + ": " + category.getDescription());
+            }
+        }
+        return categories;
+    }
+}
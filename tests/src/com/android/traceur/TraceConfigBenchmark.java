@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Compares the cost of starting perfetto with the binary config Traceur passes on stdin
+ * against the textproto here-doc it used to pass through the shell.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class TraceConfigBenchmark {
+
+    private static final List<String> TAGS = List.of("gfx", "memory", "power", "sched", "view");
+    private static final int BUFFER_SIZE_KB = 16384;
+    private static final String MARKER = "PERFETTO_ARGUMENTS";
+    private static final int TIMEOUT_MS = 10000;
+
+    @Test
+    public void buildConfig() throws Exception {
+        Benchmark.measure("config_build_textproto", 100, 1000, () -> buildLegacyConfig(TAGS));
+        Benchmark.measure("config_build_binary", 100, 1000,
+                () -> PerfettoUtils.buildTraceConfig(TAGS, BUFFER_SIZE_KB, true, true, true, 0,
+                        0, null).toByteArray());
+    }
+
+    @Test
+    public void spawnPerfetto() throws Exception {
+        String legacy = "perfetto --dry-run -o /dev/null -c - --txt <<" + MARKER + "\n"
+                + buildLegacyConfig(TAGS) + "\n" + MARKER;
+        byte[] config = PerfettoUtils.buildTraceConfig(TAGS, BUFFER_SIZE_KB, true, true, true,
+                0, 0, null).toByteArray();
+
+        Benchmark.measure("config_spawn_textproto", 3, 20,
+                () -> assertExitedCleanly(new String[] {"sh", "-c", legacy}, null));
+        Benchmark.measure("config_spawn_binary", 3, 20,
+                () -> assertExitedCleanly(new String[] {"perfetto", "--dry-run", "-o", "/dev/null",
+                        "-c", "-"}, config));
+    }
+
+    private static void assertExitedCleanly(String[] cmd, byte[] stdin) throws Exception {
+        Process process = ProcessLauncher.execWithTimeout(cmd, null, TIMEOUT_MS, stdin, null);
+        assertNotNull("perfetto didn't exit", process);
+        assertEquals("perfetto refused the config, see logcat", 0, process.exitValue());
+    }
+
+    /*
+     * The textproto config PerfettoUtils used to build for a long trace with these tags,
+     * before it moved to TraceConfig. Tags it doesn't handle specially are left out.
+     */
+    private static String buildLegacyConfig(List<String> tags) {
+        int numCpus = Runtime.getRuntime().availableProcessors();
+
+        StringBuilder config = new StringBuilder()
+            .append("write_into_file: true\n")
+            .append("flush_period_ms: 30000\n")
+            .append("bugreport_score: 500\n")
+            .append("notify_traceur: true\n")
+            .append("file_write_period_ms: 1000\n")
+            .append("incremental_state_config {\n")
+            .append("  clear_period_ms: 15000\n")
+            .append("} \n")
+            .append("buffers {\n")
+            .append("  size_kb: " + BUFFER_SIZE_KB * numCpus + "\n")
+            .append("  fill_policy: RING_BUFFER\n")
+            .append("} \n")
+            .append("buffers {\n")
+            .append("  size_kb: 2048\n")
+            .append("  fill_policy: RING_BUFFER\n")
+            .append("} \n")
+            .append("data_sources {\n")
+            .append("  config {\n")
+            .append("    name: \"linux.ftrace\"\n")
+            .append("    target_buffer: 0\n")
+            .append("    ftrace_config {\n")
+            .append("      symbolize_ksyms: true\n");
+
+        for (String tag : tags) {
+            String cleanTag = tag.replaceAll("[^a-zA-Z0-9_]", "");
+            config.append("      atrace_categories: \"" + cleanTag + "\"\n");
+        }
+        config.append("      atrace_apps: \"*\"\n")
+            .append("      compact_sched {\n")
+            .append("        enabled: true\n")
+            .append("      }\n")
+            .append("      buffer_size_kb: 8192\n")
+            .append("      drain_period_ms: 1000\n")
+            .append("    }\n")
+            .append("  }\n")
+            .append("}\n")
+            .append(" \n")
+            .append("data_sources: {\n")
+            .append("  config { \n")
+            .append("    name: \"android.gpu.memory\"\n")
+            .append("    target_buffer: 0\n")
+            .append("  }\n")
+            .append("}\n")
+            .append("data_sources {\n")
+            .append("  config {\n")
+            .append("    name: \"linux.process_stats\"\n")
+            .append("    target_buffer: 1\n")
+            .append("    process_stats_config {\n")
+            .append("      proc_stats_poll_ms: 60000\n")
+            .append("    }\n")
+            .append("  }\n")
+            .append("} \n")
+            .append("data_sources: {\n")
+            .append("  config { \n")
+            .append("    name: \"android.power\"\n")
+            .append("    target_buffer: 1\n")
+            .append("    android_power_config {\n")
+            .append("      battery_poll_ms: 5000\n")
+            .append("      collect_power_rails: true\n")
+            .append("      battery_counters: BATTERY_COUNTER_CAPACITY_PERCENT\n")
+            .append("      battery_counters: BATTERY_COUNTER_CHARGE\n")
+            .append("      battery_counters: BATTERY_COUNTER_CURRENT\n")
+            .append("    }\n")
+            .append("  }\n")
+            .append("}\n")
+            .append("data_sources: {\n")
+            .append("  config { \n")
+            .append("    name: \"android.sys_stats\"\n")
+            .append("    target_buffer: 1\n")
+            .append("    sys_stats_config {\n")
+            .append("      vmstat_period_ms: 1000\n")
+            .append("    }\n")
+            .append("  }\n")
+            .append("}\n")
+            .append("data_sources: {\n")
+            .append("  config { \n")
+            .append("    name: \"android.surfaceflinger.frametimeline\"\n")
+            .append("  }\n")
+            .append("}\n");
+        return config.toString();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import static com.android.traceur.TraceFixtures.clear;
+import static com.android.traceur.TraceFixtures.config;
+import static com.android.traceur.TraceFixtures.event;
+import static com.android.traceur.TraceFixtures.packet;
+import static com.android.traceur.TraceFixtures.trackDescriptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import perfetto.protos.InternedDataOuterClass.InternedData;
+import perfetto.protos.TracePacketOuterClass.TracePacket;
+import perfetto.protos.TrackEventOuterClass.EventName;
+
+@RunWith(AndroidJUnit4.class)
+public class TraceDeduplicatorTest {
+
+    private File mTrace;
+
+    @Before
+    public void setUp() {
+        mTrace = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "dedup-test.perfetto-trace");
+    }
+
+    @After
+    public void tearDown() {
+        mTrace.delete();
+    }
+
+    @Test
+    public void dropsClearsThatRepeatTheInternedState() throws Exception {
+        TracePacket first = clear(10, "a", "b").build();
+        TracePacket repeated = clear(30, "a", "b").build();
+        TracePacket extended = clear(50, "a", "b", "c").build();
+
+        List<TracePacket> packets = compact(List.of(config(), first, event(20, 1), repeated,
+                event(40, 2), extended, event(60, 3)));
+
+        // The first clear of the sequence stays, the others go with the entries they repeat.
+        assertEquals(List.of(config(), first, event(20, 1), packet(30).build(), event(40, 2),
+                packet(50).setInternedData(InternedData.newBuilder()
+                        .addEventNames(EventName.newBuilder().setIid(3).setName("c")))
+                        .build(),
+                event(60, 3)), packets);
+    }
+
+    @Test
+    public void keepsClearsThatChangeTheInternedState() throws Exception {
+        List<TracePacket> trace = List.of(config(), clear(10, "a", "b").build(), event(20, 1),
+                clear(30, "b", "a").build(), event(40, 1));
+
+        assertEquals(trace, compact(trace));
+    }
+
+    @Test
+    public void keepsClearsAfterDroppedPackets() throws Exception {
+        List<TracePacket> kept = List.of(config(), clear(10, "a", "b").build(), event(20, 1),
+                // The writer lost packets, which may have interned something else.
+                packet(30).setPreviousPacketDropped(true).build(),
+                clear(40, "a", "b").build(), event(50, 1),
+                clear(60, "a", "b").setPreviousPacketDropped(true).build(), event(70, 1));
+        List<TracePacket> trace = new ArrayList<>(kept);
+        trace.add(clear(80, "a", "b").build());
+
+        List<TracePacket> expected = new ArrayList<>(kept);
+        expected.add(packet(80).build());
+        assertEquals(expected, compact(trace));
+    }
+
+    @Test
+    public void dropsRepeatedTrackDescriptors() throws Exception {
+        TracePacket track = trackDescriptor(42, "track");
+        TracePacket other = trackDescriptor(43, "other");
+        TracePacket renamed = trackDescriptor(42, "renamed");
+
+        assertEquals(List.of(config(), track, other, renamed),
+                compact(List.of(config(), track, other, track, renamed, other)));
+    }
+
+    @Test
+    public void leavesTracesWithNothingToDropAlone() throws Exception {
+        List<TracePacket> trace = List.of(config(), clear(10, "a").build(), event(20, 1),
+                trackDescriptor(42, "track"));
+        TraceFixtures.write(mTrace, trace);
+        long length = mTrace.length();
+
+        TraceDeduplicator.Result result = TraceDeduplicator.compact(mTrace);
+
+        assertNotNull(result);
+        assertEquals(0, result.getSavedBytes());
+        assertEquals(length, mTrace.length());
+        assertEquals(trace, TraceFixtures.read(mTrace));
+    }
+
+    // Compacts a trace of packets, and returns the packets of the result.
+    private List<TracePacket> compact(List<TracePacket> packets) throws Exception {
+        TraceFixtures.write(mTrace, packets);
+        long length = mTrace.length();
+
+        TraceDeduplicator.Result result = TraceDeduplicator.compact(mTrace);
+
+        assertNotNull(result);
+        assertEquals(length, result.originalBytes);
+        assertEquals(mTrace.length(), result.compactedBytes);
+        assertTrue(result.compactedBytes <= length);
+        return TraceFixtures.read(mTrace);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import perfetto.protos.ClockSnapshotOuterClass.ClockSnapshot;
+import perfetto.protos.Ftrace.PrintFtraceEvent;
+import perfetto.protos.FtraceEventBundleOuterClass.FtraceEventBundle;
+import perfetto.protos.FtraceEventOuterClass.FtraceEvent;
+import perfetto.protos.InternedDataOuterClass.InternedData;
+import perfetto.protos.ProcessTreeOuterClass.ProcessTree;
+import perfetto.protos.TraceConfigOuterClass.TraceConfig;
+import perfetto.protos.TraceOuterClass.Trace;
+import perfetto.protos.TracePacketOuterClass.TracePacket;
+import perfetto.protos.TrackDescriptorOuterClass.TrackDescriptor;
+import perfetto.protos.TrackEventOuterClass.EventName;
+import perfetto.protos.TrackEventOuterClass.TrackEvent;
+
+/**
+ * Builds the small traces that the tests of the trace rewriters run on.
+ */
+class TraceFixtures {
+
+    static final int SEQUENCE_ID = 1;
+
+    static void write(File file, List<TracePacket> packets) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            Trace.newBuilder().addAllPacket(packets).build().writeTo(out);
+        }
+    }
+
+    // Fails if the file isn't a valid trace.
+    static List<TracePacket> read(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return Trace.parseFrom(in).getPacketList();
+        }
+    }
+
+    static TracePacket config() {
+        return TracePacket.newBuilder()
+                .setTraceConfig(TraceConfig.newBuilder().setDurationMs(10000))
+                .build();
+    }
+
+    static TracePacket clockSnapshot(long timestampNs) {
+        return TracePacket.newBuilder()
+                .setTimestamp(timestampNs)
+                .setClockSnapshot(ClockSnapshot.newBuilder()
+                        .addClocks(ClockSnapshot.Clock.newBuilder()
+                                .setClockId(ClockSnapshot.Clock.BuiltinClocks.BOOTTIME_VALUE)
+                                .setTimestamp(timestampNs)))
+                .build();
+    }
+
+    static TracePacket processTree(long timestampNs, int pid) {
+        return TracePacket.newBuilder()
+                .setTimestamp(timestampNs)
+                .setProcessTree(ProcessTree.newBuilder()
+                        .addProcesses(ProcessTree.Process.newBuilder()
+                                .setPid(pid)
+                                .setPpid(1)
+                                .addCmdline("com.example.app" + pid)))
+                .build();
+    }
+
+    static TracePacket.Builder packet(long timestampNs) {
+        return TracePacket.newBuilder()
+                .setTimestamp(timestampNs)
+                .setTrustedPacketSequenceId(SEQUENCE_ID);
+    }
+
+    // A track event that refers to interned names.
+    static TracePacket event(long timestampNs, long nameIid) {
+        return packet(timestampNs)
+                .setTrackEvent(TrackEvent.newBuilder()
+                        .setType(TrackEvent.Type.TYPE_INSTANT)
+                        .setNameIid(nameIid))
+                .build();
+    }
+
+    // A packet that clears the incremental state of its sequence and interns names[i] as iid
+    // i + 1.
+    static TracePacket.Builder clear(long timestampNs, String... names) {
+        return packet(timestampNs)
+                .setSequenceFlags(
+                        TracePacket.SequenceFlags.SEQ_INCREMENTAL_STATE_CLEARED_VALUE)
+                .setInternedData(internedNames(names));
+    }
+
+    static InternedData internedNames(String... names) {
+        InternedData.Builder interned = InternedData.newBuilder();
+        for (int i = 0; i < names.length; i++) {
+            interned.addEventNames(EventName.newBuilder().setIid(i + 1).setName(names[i]));
+        }
+        return interned.build();
+    }
+
+    static TracePacket trackDescriptor(long uuid, String name) {
+        return TracePacket.newBuilder()
+                .setTrustedPacketSequenceId(SEQUENCE_ID + 1)
+                .setTrackDescriptor(TrackDescriptor.newBuilder().setUuid(uuid).setName(name))
+                .build();
+    }
+
+    // An ftrace bundle with a print event at each of the timestamps.
+    static TracePacket bundle(long... timestampsNs) {
+        FtraceEventBundle.Builder bundle = FtraceEventBundle.newBuilder().setCpu(0);
+        for (long timestampNs : timestampsNs) {
+            bundle.addEvent(FtraceEvent.newBuilder()
+                    .setTimestamp(timestampNs)
+                    .setPid(1000)
+                    .setPrint(PrintFtraceEvent.newBuilder().setBuf("I|1000|event\n")));
+        }
+        return TracePacket.newBuilder()
+                .setFtraceEvents(bundle)
+                .setTrustedPacketSequenceId(SEQUENCE_ID + 2)
+                .build();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import static com.android.traceur.TraceFixtures.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+
+import perfetto.protos.AndroidLog.AndroidLogPacket;
+import perfetto.protos.Ftrace.PrintFtraceEvent;
+import perfetto.protos.FtraceEventBundleOuterClass.FtraceEventBundle;
+import perfetto.protos.FtraceEventOuterClass.FtraceEvent;
+import perfetto.protos.ProcessTreeOuterClass.ProcessTree;
+import perfetto.protos.TracePacketOuterClass.TracePacket;
+
+@RunWith(AndroidJUnit4.class)
+public class TraceRedactorTest {
+
+    private static final Set<String> ALL = Set.of(TraceRedactor.REDACT_COMMAND_LINES,
+            TraceRedactor.REDACT_SLICE_NAMES, TraceRedactor.REDACT_LOGCAT);
+    private static final Set<String> ALLOWED = Set.of("system_server", "com.android.systemui");
+
+    private static final int APP_PID = 200;
+    private static final int SYSTEM_SERVER_PID = 100;
+    private static final int SYSTEMUI_PID = 300;
+
+    // Each atrace message, and what it is redacted to when its process isn't allowlisted.
+    private static final String[][] MESSAGES = {
+        { "B|200|secret\n", "B|200|redacted\n" },
+        { "E|200", "E|200" },
+        { "C|200|secret|42", "C|200|redacted|42" },
+        { "S|200|secret|7", "S|200|redacted|7" },
+        { "F|200|secret|7", "F|200|redacted|7" },
+        { "G|200|track|secret|7", "G|200|redacted|redacted|7" },
+        { "H|200|track|7", "H|200|redacted|7" },
+        { "I|200|secret", "I|200|redacted" },
+        { "N|200|track|secret", "N|200|redacted|redacted" },
+        // Names can hold '|'.
+        { "B|200|se|cret", "B|200|redacted" },
+        { "C|200|se|cret|42", "C|200|redacted|42" },
+        { "X|200|unknown type", "X|200|redacted" },
+        { "not atrace\n", "redacted\n" },
+        // Processes that aren't in any process tree.
+        { "B|999|secret", "B|999|redacted" },
+        // Allowlisted processes, including one named "package:process".
+        { "B|100|kept", "B|100|kept" },
+        { "C|300|kept|1", "C|300|kept|1" },
+    };
+
+    private File mTrace;
+    private File mOutput;
+
+    @Before
+    public void setUp() {
+        mTrace = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "redact-test.perfetto-trace");
+        mOutput = new File(mTrace.getParentFile(),
+                TraceRedactor.getRedactedFilename(mTrace.getName()));
+    }
+
+    @After
+    public void tearDown() {
+        mTrace.delete();
+        mOutput.delete();
+    }
+
+    @Test
+    public void redactsEverything() throws Exception {
+        TraceFixtures.write(mTrace, trace());
+
+        assertEquals(mOutput, TraceRedactor.redact(mTrace, ALL, ALLOWED));
+        assertEquals(List.of(config(), bundle(1), processTree(false)),
+                TraceFixtures.read(mOutput));
+    }
+
+    @Test
+    public void redactsOnlySliceNames() throws Exception {
+        TraceFixtures.write(mTrace, trace());
+
+        TraceRedactor.redact(mTrace, Set.of(TraceRedactor.REDACT_SLICE_NAMES), ALLOWED);
+
+        assertEquals(List.of(config(), logcat(), bundle(1), processTree(true)),
+                TraceFixtures.read(mOutput));
+    }
+
+    @Test
+    public void keepsEverythingWithoutRedactions() throws Exception {
+        TraceFixtures.write(mTrace, trace());
+
+        TraceRedactor.redact(mTrace, Set.of(), ALLOWED);
+
+        assertEquals(trace(), TraceFixtures.read(mOutput));
+    }
+
+    @Test
+    public void redactsCompressedTraces() throws Exception {
+        TraceFixtures.write(mTrace, trace());
+        File compressed = TraceCompressor.compress(mTrace).file;
+        try {
+            // The copy is never compressed.
+            File output = TraceRedactor.redact(compressed, ALL, ALLOWED);
+            assertNotNull(output);
+            assertEquals(mOutput, output);
+            assertEquals(List.of(config(), bundle(1), processTree(false)),
+                    TraceFixtures.read(output));
+        } finally {
+            compressed.delete();
+        }
+    }
+
+    /*
+     * A trace with logcat, and the process tree after the slices of its processes, as when
+     * perfetto writes its buffers one after the other.
+     */
+    private static List<TracePacket> trace() {
+        return List.of(config(), logcat(), bundle(0), processTree(true));
+    }
+
+    private static TracePacket logcat() {
+        return TracePacket.newBuilder()
+                .setTimestamp(10)
+                .setAndroidLog(AndroidLogPacket.newBuilder()
+                        .addEvents(AndroidLogPacket.LogEvent.newBuilder()
+                                .setPid(APP_PID)
+                                .setTag("App")
+                                .setMessage("secret")))
+                .build();
+    }
+
+    // The bundle with the messages in column index of MESSAGES.
+    private static TracePacket bundle(int index) {
+        FtraceEventBundle.Builder bundle = FtraceEventBundle.newBuilder().setCpu(0);
+        long timestampNs = 100;
+        for (String[] message : MESSAGES) {
+            bundle.addEvent(FtraceEvent.newBuilder()
+                    .setTimestamp(timestampNs++)
+                    .setPid(APP_PID)
+                    .setPrint(PrintFtraceEvent.newBuilder()
+                            .setIp(1234)
+                            .setBuf(message[index])));
+        }
+        return TracePacket.newBuilder()
+                .setFtraceEvents(bundle)
+                .setTrustedPacketSequenceId(1)
+                .build();
+    }
+
+    private static TracePacket processTree(boolean arguments) {
+        ProcessTree.Process.Builder app = ProcessTree.Process.newBuilder()
+                .setPid(APP_PID)
+                .setPpid(1)
+                .addCmdline("com.example.app");
+        if (arguments) {
+            app.addCmdline("--token=secret");
+        }
+        return TracePacket.newBuilder()
+                .setTimestamp(1000)
+                .setProcessTree(ProcessTree.newBuilder()
+                        .addProcesses(ProcessTree.Process.newBuilder()
+                                .setPid(SYSTEM_SERVER_PID)
+                                .setPpid(1)
+                                .addCmdline("system_server"))
+                        .addProcesses(app)
+                        .addProcesses(ProcessTree.Process.newBuilder()
+                                .setPid(SYSTEMUI_PID)
+                                .setPpid(1)
+                                .addCmdline("com.android.systemui:ui")))
+                .build();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import static com.android.traceur.TraceFixtures.bundle;
+import static com.android.traceur.TraceFixtures.clockSnapshot;
+import static com.android.traceur.TraceFixtures.config;
+import static com.android.traceur.TraceFixtures.event;
+import static com.android.traceur.TraceFixtures.processTree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.FileUtils;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import perfetto.protos.TracePacketOuterClass.TracePacket;
+
+@RunWith(AndroidJUnit4.class)
+public class TraceSplitterTest {
+
+    private static final long MS = 1000000;
+    private static final int MAX_BYTES = 8192;
+
+    private Context mContext;
+    private File mTrace;
+    private List<File> mParts;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mTrace = new File(mContext.getCacheDir(), "split-test.perfetto-trace");
+    }
+
+    @After
+    public void tearDown() {
+        mTrace.delete();
+        if (mParts != null) {
+            FileUtils.deleteContentsAndDir(mParts.get(0).getParentFile());
+        }
+    }
+
+    @Test
+    public void doesNotSplitSmallTraces() throws Exception {
+        TraceFixtures.write(mTrace, List.of(config(), clockSnapshot(0), event(MS, 1)));
+
+        assertNull(TraceSplitter.split(mContext, mTrace, MAX_BYTES));
+    }
+
+    @Test
+    public void splitsIntoPartsThatLoadOnTheirOwn() throws Exception {
+        List<TracePacket> header = List.of(config(), clockSnapshot(0), processTree(0, 1234));
+        // Events that depend on earlier packets, between self-contained ftrace bundles.
+        List<TracePacket> body = new ArrayList<>();
+        int snapshotIndex = -1;
+        for (int i = 0; i < 100; i++) {
+            long timestampNs = i * 10 * MS;
+            if (i == 50) {
+                snapshotIndex = body.size();
+                body.add(clockSnapshot(timestampNs));
+            }
+            body.add(event(timestampNs, 1));
+            long[] timestampsNs = new long[10];
+            for (int j = 0; j < timestampsNs.length; j++) {
+                timestampsNs[j] = timestampNs + j * MS;
+            }
+            body.add(bundle(timestampsNs));
+        }
+        List<TracePacket> packets = new ArrayList<>(header);
+        packets.addAll(body);
+        TraceFixtures.write(mTrace, packets);
+
+        mParts = TraceSplitter.split(mContext, mTrace, MAX_BYTES);
+
+        assertNotNull(mParts);
+        assertTrue(mParts.size() > 2);
+        int next = 0;
+        for (int i = 0; i < mParts.size(); i++) {
+            File part = mParts.get(i);
+            assertTrue(part.getName().endsWith("-part" + (i + 1) + "of" + mParts.size()
+                    + ".perfetto-trace"));
+            assertTrue(part.length() <= MAX_BYTES);
+
+            List<TracePacket> partPackets = TraceFixtures.read(part);
+            assertEquals(header, partPackets.subList(0, header.size()));
+            List<TracePacket> rest = partPackets.subList(header.size(), partPackets.size());
+            // Parts after the snapshot in the body start with it.
+            if (next > snapshotIndex) {
+                assertEquals(body.get(snapshotIndex), rest.get(0));
+                rest = rest.subList(1, rest.size());
+            }
+            if (i > 0) {
+                // Cut before a bundle, since those depend on nothing before them.
+                assertTrue(rest.get(0).hasFtraceEvents());
+            }
+            assertEquals(body.subList(next, next + rest.size()), rest);
+            next += rest.size();
+        }
+        // Nothing is lost or repeated between parts.
+        assertEquals(body.size(), next);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.google.protobuf.CodedOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import perfetto.protos.ClockSnapshotOuterClass.ClockSnapshot;
+import perfetto.protos.Ftrace.PrintFtraceEvent;
+import perfetto.protos.FtraceEventBundleOuterClass.FtraceEventBundle;
+import perfetto.protos.FtraceEventOuterClass.FtraceEvent;
+import perfetto.protos.TraceOuterClass.Trace;
+import perfetto.protos.TracePacketOuterClass.TracePacket;
+
+/**
+ * Measures how fast TraceTrimmer cuts a 30 second window out of a multi-gigabyte trace.
+ *
+ * The trace is synthetic: back to back ftrace bundles of print events. Its size in MB can be
+ * set with the trace-size-mb instrumentation argument.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class TraceTrimmerBenchmark {
+
+    private static final String SIZE_ARGUMENT = "trace-size-mb";
+    private static final long DEFAULT_SIZE_MB = 2048;
+    private static final long MEGABYTES_TO_BYTES = 1024L * 1024L;
+
+    private static final int EVENTS_PER_BUNDLE = 100;
+    private static final long EVENT_INTERVAL_NS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long WINDOW_NS = TimeUnit.SECONDS.toNanos(30);
+
+    private File mTrace;
+    private File mOutput;
+
+    @Before
+    public void setUp() {
+        File dir = InstrumentationRegistry.getTargetContext().getCacheDir();
+        mTrace = new File(dir, "trim-benchmark.perfetto-trace");
+        mOutput = new File(dir, "trim-benchmark-trimmed.perfetto-trace");
+    }
+
+    @After
+    public void tearDown() {
+        mTrace.delete();
+        mOutput.delete();
+    }
+
+    @Test
+    public void trimWindow() throws Exception {
+        long sizeBytes = Long.parseLong(InstrumentationRegistry.getArguments()
+                .getString(SIZE_ARGUMENT, Long.toString(DEFAULT_SIZE_MB))) * MEGABYTES_TO_BYTES;
+        // Room for the trace and the part of it that is kept, with some to spare.
+        assumeTrue("Not enough free space for the trace",
+                mTrace.getParentFile().getUsableSpace() > sizeBytes * 3 / 2);
+
+        long endNs = writeTrace(mTrace, sizeBytes);
+        long startNs = (endNs - WINDOW_NS) / 2;
+
+        long[] durationMs = new long[1];
+        long medianNs = Benchmark.measure("trim", 0, 3, () -> durationMs[0] =
+                TraceTrimmer.trim(mTrace, mOutput, startNs, startNs + WINDOW_NS));
+        Benchmark.report("trim_input_mb", mTrace.length() / MEGABYTES_TO_BYTES);
+        Benchmark.report("trim_output_mb", mOutput.length() / MEGABYTES_TO_BYTES);
+        Benchmark.report("trim_mb_per_s", mTrace.length() * TimeUnit.SECONDS.toNanos(1)
+                / MEGABYTES_TO_BYTES / medianNs);
+
+        // The window starts and ends mid-bundle, so the bundles at its edges are kept whole.
+        assertEquals(TimeUnit.NANOSECONDS.toMillis(WINDOW_NS), durationMs[0], 1);
+        TracePacketReader.read(mOutput, (offset, size, packet, length) ->
+                TracePacket.parseFrom(Arrays.copyOf(packet, length)));
+    }
+
+    /*
+     * Writes a trace of at least sizeBytes to file, and returns the timestamp of its last
+     * event.
+     */
+    private static long writeTrace(File file, long sizeBytes) throws Exception {
+        PrintFtraceEvent print = PrintFtraceEvent.newBuilder()
+                .setBuf("C|1000|traceur_benchmark_counter_with_a_fairly_long_name|1234567\n")
+                .build();
+        long timestampNs = EVENT_INTERVAL_NS;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20)) {
+            CodedOutputStream coded = CodedOutputStream.newInstance(out, 1 << 16);
+            coded.writeMessage(Trace.PACKET_FIELD_NUMBER, TracePacket.newBuilder()
+                    .setClockSnapshot(ClockSnapshot.newBuilder()
+                            .addClocks(ClockSnapshot.Clock.newBuilder()
+                                    .setClockId(ClockSnapshot.Clock.BuiltinClocks.BOOTTIME_VALUE)
+                                    .setTimestamp(0)))
+                    .build());
+            long written = 0;
+            while (written < sizeBytes) {
+                FtraceEventBundle.Builder bundle = FtraceEventBundle.newBuilder().setCpu(0);
+                for (int i = 0; i < EVENTS_PER_BUNDLE; i++) {
+                    bundle.addEvent(FtraceEvent.newBuilder()
+                            .setTimestamp(timestampNs)
+                            .setPid(1000)
+                            .setPrint(print));
+                    timestampNs += EVENT_INTERVAL_NS;
+                }
+                TracePacket packet = TracePacket.newBuilder()
+                        .setFtraceEvents(bundle)
+                        .setTrustedPacketSequenceId(1)
+                        .build();
+                coded.writeMessage(Trace.PACKET_FIELD_NUMBER, packet);
+                written += packet.getSerializedSize();
+            }
+            coded.flush();
+        }
+        return timestampNs - EVENT_INTERVAL_NS;
+    }
+}
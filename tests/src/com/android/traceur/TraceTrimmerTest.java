@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import static com.android.traceur.TraceFixtures.bundle;
+import static com.android.traceur.TraceFixtures.clear;
+import static com.android.traceur.TraceFixtures.clockSnapshot;
+import static com.android.traceur.TraceFixtures.config;
+import static com.android.traceur.TraceFixtures.event;
+import static com.android.traceur.TraceFixtures.packet;
+import static com.android.traceur.TraceFixtures.processTree;
+import static com.android.traceur.TraceFixtures.trackDescriptor;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.List;
+
+import perfetto.protos.TracePacketOuterClass.TracePacket;
+
+@RunWith(AndroidJUnit4.class)
+public class TraceTrimmerTest {
+
+    private static final long MS = 1000000;
+    private static final long START_NS = 1000 * MS;
+    private static final long END_NS = 2000 * MS;
+
+    private File mTrace;
+    private File mOutput;
+
+    @Before
+    public void setUp() {
+        File dir = InstrumentationRegistry.getTargetContext().getCacheDir();
+        mTrace = new File(dir, "trim-test.perfetto-trace");
+        mOutput = new File(dir, TraceTrimmer.getTrimmedFilename(mTrace.getName()));
+    }
+
+    @After
+    public void tearDown() {
+        mTrace.delete();
+        mOutput.delete();
+    }
+
+    @Test
+    public void keepsOnlyTheWindowAndWhatItDependsOn() throws Exception {
+        TracePacket config = config();
+        TracePacket clockSnapshot = clockSnapshot(10 * MS);
+        TracePacket processTree = processTree(20 * MS, 1234);
+        TracePacket clear = clear(30 * MS, "a", "b").build();
+        TracePacket descriptor = trackDescriptor(42, "track");
+        TracePacket before = event(500 * MS, 1);
+        TracePacket bundleBefore = bundle(800 * MS, 900 * MS);
+        TracePacket bundleAcross = bundle(900 * MS, 1100 * MS);
+        TracePacket inside = event(1500 * MS, 2);
+        TracePacket interned = packet(1600 * MS)
+                .setInternedData(TraceFixtures.internedNames("a", "b", "c"))
+                .build();
+        TracePacket lastClockSnapshot = clockSnapshot(2500 * MS);
+        TracePacket bundleAfter = bundle(2100 * MS, 2200 * MS);
+        TracePacket after = event(2600 * MS, 1);
+
+        TraceFixtures.write(mTrace, List.of(config, clockSnapshot, processTree, clear,
+                descriptor, before, bundleBefore, bundleAcross, inside, interned,
+                lastClockSnapshot, bundleAfter, after));
+        long durationMs = TraceTrimmer.trim(mTrace, mOutput, START_NS, END_NS);
+
+        assertEquals(List.of(config, clockSnapshot, processTree, clear, descriptor,
+                bundleAcross, inside, interned, lastClockSnapshot), TraceFixtures.read(mOutput));
+        // From the start of the window to the event in it, the bundle being cut at the start.
+        assertEquals(500, durationMs);
+    }
+
+    @Test
+    public void trimsCompressedTraces() throws Exception {
+        List<TracePacket> packets = List.of(config(), clockSnapshot(10 * MS),
+                event(500 * MS, 1), event(1500 * MS, 1));
+        TraceFixtures.write(mTrace, packets);
+        File compressed = TraceCompressor.compress(mTrace).file;
+        try {
+            // A single event, so the trimmed trace covers no time.
+            assertEquals(0, TraceTrimmer.trim(compressed, mOutput, START_NS, END_NS));
+            assertEquals(List.of(packets.get(0), packets.get(1), packets.get(3)),
+                    TraceFixtures.read(mOutput));
+        } finally {
+            compressed.delete();
+        }
+    }
+
+    @Test
+    public void returnsNoDurationForAnEmptyWindow() throws Exception {
+        TracePacket config = config();
+        TraceFixtures.write(mTrace, List.of(config, event(500 * MS, 1), event(2500 * MS, 1)));
+
+        assertEquals(-1, TraceTrimmer.trim(mTrace, mOutput, START_NS, END_NS));
+        assertEquals(List.of(config), TraceFixtures.read(mOutput));
+    }
+}
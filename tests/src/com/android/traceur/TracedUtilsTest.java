@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.traceur;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import perfetto.protos.DataSourceDescriptorOuterClass.DataSourceDescriptor;
+import perfetto.protos.FtraceDescriptorOuterClass.FtraceDescriptor;
+import perfetto.protos.FtraceDescriptorOuterClass.FtraceDescriptor.AtraceCategory;
+import perfetto.protos.TraceConfigOuterClass.TraceConfig.TriggerConfig;
+import perfetto.protos.TraceOuterClass.Trace;
+import perfetto.protos.TracePacketOuterClass.TracePacket;
+import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState;
+import perfetto.protos.TracingServiceStateOuterClass.TracingServiceState.DataSource;
+
+/**
+ * Drives TracedUtils against FakeTraced, to check the IPC framing of TracedConsumerClient.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TracedUtilsTest {
+
+    private static final List<String> TAGS = List.of("gfx", "sched");
+    private static final int PACKET_COUNT = 5;
+
+    private File mOutput;
+
+    @Before
+    public void setUp() {
+        // The engine records into the same temporary file as a real session would.
+        assumeFalse("A trace is being recorded",
+                new File(PerfettoUtils.TEMP_TRACE_LOCATION).exists());
+        mOutput = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "traced-utils-test.perfetto-trace");
+    }
+
+    @After
+    public void tearDown() {
+        if (mOutput != null) {
+            mOutput.delete();
+        }
+        new File(PerfettoUtils.TEMP_TRACE_LOCATION).delete();
+    }
+
+    @Test
+    public void queryServiceStateDecodesSplitReplies() throws Exception {
+        try (FakeTraced traced = new FakeTraced(dataSources(), packets())) {
+            TracingServiceState state = new TracedUtils(traced.getAddress()).queryServiceState();
+            assertNotNull(state);
+            assertEquals(2, state.getDataSourcesCount());
+            assertEquals("linux.ftrace", state.getDataSources(0).getDsDescriptor().getName());
+            assertEquals(List.of("gfx", "sched"), categoryNames(state));
+            assertEquals(0, state.getTracingSessionsCount());
+        }
+    }
+
+    @Test
+    public void traceStartEnablesAndDetaches() throws Exception {
+        try (FakeTraced traced = new FakeTraced(dataSources(), packets())) {
+            TracedUtils engine = new TracedUtils(traced.getAddress());
+            assertFalse(engine.isTracingOn());
+            assertTrue(engine.traceStart(TAGS, 1024, true, false, false, 0, 0, null));
+
+            assertEquals(PerfettoUtils.PERFETTO_TAG, traced.getDetachKey());
+            assertEquals(PerfettoUtils.PERFETTO_TAG, traced.getConfig().getUniqueSessionName());
+            assertTrue(traced.getConfig().getWriteIntoFile());
+            assertTrue(traced.receivedOutputFd());
+            assertTrue(engine.isTracingOn());
+        }
+    }
+
+    @Test
+    public void traceDumpSavesTraceWrittenIntoFile() throws Exception {
+        try (FakeTraced traced = new FakeTraced(dataSources(), packets())) {
+            TracedUtils engine = new TracedUtils(traced.getAddress());
+            assertTrue(engine.traceStart(TAGS, 1024, true, false, false, 0, 0, null));
+            assertTrue(engine.traceDump(mOutput));
+
+            assertFalse(engine.isTracingOn());
+            assertFalse(traced.getCalls().contains("ReadBuffers"));
+            assertEquals(toLists(packets()), toLists(readPackets(mOutput)));
+        }
+    }
+
+    @Test
+    public void traceDumpReadsRingBufferOfStopTriggerSession() throws Exception {
+        TriggerConfig trigger = PerfettoUtils.buildTriggerConfig(PerfettoUtils.TRIGGER_MODE_STOP,
+                List.of("test"), 1, 0);
+        try (FakeTraced traced = new FakeTraced(dataSources(), packets())) {
+            TracedUtils engine = new TracedUtils(traced.getAddress());
+            assertTrue(engine.traceStart(TAGS, 1024, true, false, false, 0, 0, trigger));
+            assertFalse(traced.receivedOutputFd());
+            assertTrue(engine.traceDump(mOutput));
+
+            List<String> calls = traced.getCalls();
+            assertTrue(calls.indexOf("ReadBuffers") > calls.indexOf("DisableTracing"));
+            assertTrue(calls.indexOf("FreeBuffers") > calls.indexOf("ReadBuffers"));
+            assertEquals(toLists(packets()), toLists(readPackets(mOutput)));
+        }
+    }
+
+    private static TracingServiceState dataSources() {
+        FtraceDescriptor ftrace = FtraceDescriptor.newBuilder()
+                .addAtraceCategories(AtraceCategory.newBuilder()
+                        .setName("gfx").setDescription("Graphics"))
+                .addAtraceCategories(AtraceCategory.newBuilder()
+                        .setName("sched").setDescription("CPU Scheduling"))
+                .build();
+        return TracingServiceState.newBuilder()
+                .addDataSources(DataSource.newBuilder().setDsDescriptor(
+                        DataSourceDescriptor.newBuilder()
+                                .setName("linux.ftrace")
+                                .setFtraceDescriptor(ftrace)))
+                .addDataSources(DataSource.newBuilder().setDsDescriptor(
+                        DataSourceDescriptor.newBuilder().setName("track_event")))
+                .build();
+    }
+
+    private static List<byte[]> packets() {
+        List<byte[]> packets = new ArrayList<>();
+        for (int i = 0; i < PACKET_COUNT; i++) {
+            packets.add(TracePacket.newBuilder()
+                    .setTimestamp(1000000L * (i + 1))
+                    .setTrustedPacketSequenceId(1)
+                    .build().toByteArray());
+        }
+        return packets;
+    }
+
+    private static List<String> categoryNames(TracingServiceState state) {
+        List<String> names = new ArrayList<>();
+        for (AtraceCategory category :
+                state.getDataSources(0).getDsDescriptor().getFtraceDescriptor()
+                        .getAtraceCategoriesList()) {
+            names.add(category.getName());
+        }
+        return names;
+    }
+
+    // Compared as lists of bytes, since arrays don't implement equals().
+    private static List<List<Byte>> toLists(List<byte[]> arrays) {
+        List<List<Byte>> lists = new ArrayList<>();
+        for (byte[] array : arrays) {
+            List<Byte> list = new ArrayList<>();
+            for (byte b : array) {
+                list.add(b);
+            }
+            lists.add(list);
+        }
+        return lists;
+    }
+
+    private static List<byte[]> readPackets(File file) throws IOException {
+        List<byte[]> packets = new ArrayList<>();
+        try (InputStream in = new FileInputStream(file)) {
+            for (TracePacket packet : Trace.parseFrom(in).getPacketList()) {
+                packets.add(packet.toByteArray());
+            }
+        }
+        return packets;
+    }
+}